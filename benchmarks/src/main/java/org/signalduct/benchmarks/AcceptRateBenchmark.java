@@ -0,0 +1,61 @@
+package org.signalduct.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.signalduct.Connection;
+import org.signalduct.impl.ConnectionListenerAdapter;
+import org.signalduct.impl.ServerNetwork;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many connections per second a ServerNetwork accepts and reports as connected,
+ * when clients connect over loopback one after another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptRateBenchmark {
+
+    private static final int PORT = 18766;
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private ServerNetwork serverNetwork;
+    private InetSocketAddress serverAddress;
+    private long openedConnections = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        serverNetwork = new ServerNetwork(PORT, new ConnectionListenerAdapter() {
+            @Override public void onConnected(Connection connection) {
+                acceptedConnections.incrementAndGet();
+            }
+        });
+        serverNetwork.start();
+
+        serverAddress = new InetSocketAddress("localhost", PORT);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        serverNetwork.stop();
+    }
+
+    @Benchmark
+    public void connect() throws Exception {
+        final SocketChannel channel = SocketChannel.open(serverAddress);
+        openedConnections++;
+
+        // Wait until the server has reported the connection
+        while (acceptedConnections.get() < openedConnections) {
+            Thread.yield();
+        }
+
+        channel.close();
+    }
+}
@@ -0,0 +1,111 @@
+package org.signalduct.benchmarks;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.FlushMode;
+import org.signalduct.SlowConsumerPolicy;
+import org.signalduct.SocketOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection that is not connected to any network, used when benchmarking filters on their own.
+ */
+public final class BenchmarkConnection implements Connection {
+
+    private final Map<String, Object> customData = new HashMap<String, Object>();
+
+    @Override public void addListener(ConnectionListener listener) {
+    }
+
+    @Override public void removeListener(ConnectionListener listener) {
+    }
+
+    @Override public void sendMessage(Object message) {
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public void cork() {
+    }
+
+    @Override public void uncork() {
+    }
+
+    @Override public void setFlushMode(FlushMode flushMode) {
+    }
+
+    @Override public FlushMode getFlushMode() {
+        return FlushMode.END_OF_TICK;
+    }
+
+    @Override public void setTcpNoDelay(boolean tcpNoDelay) {
+    }
+
+    @Override public void setSocketOptions(SocketOptions socketOptions) {
+    }
+
+    @Override public void pauseReading() {
+    }
+
+    @Override public void resumeReading() {
+    }
+
+    @Override public void pauseReading(int delayMilliseconds) {
+    }
+
+    @Override public boolean isReadingPaused() {
+        return false;
+    }
+
+    @Override public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+    }
+
+    @Override public boolean isWritable() {
+        return true;
+    }
+
+    @Override public long getQueuedBytes() {
+        return 0;
+    }
+
+    @Override public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+    }
+
+    @Override public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return SlowConsumerPolicy.QUEUE;
+    }
+
+    @Override public void setIdleTimeouts(int readIdleTimeoutMilliseconds, int writeIdleTimeoutMilliseconds) {
+    }
+
+    @Override public void setHeartbeat(Object heartbeatMessage, int intervalMilliseconds) {
+    }
+
+    @Override public boolean isConnected() {
+        return true;
+    }
+
+    @Override public void waitUntilConnected(int timeoutMilliseconds) {
+    }
+
+    @Override public void disconnect() {
+    }
+
+    @Override public void setCustomData(String name, Object data) {
+        if (data == null) customData.remove(name);
+        else customData.put(name, data);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T> T getCustomData(String name) {
+        return (T) customData.get(name);
+    }
+
+    @Override public <T> T getCustomData(String name, T defaultValue) {
+        final T data = getCustomData(name);
+        return data == null ? defaultValue : data;
+    }
+}
@@ -0,0 +1,86 @@
+package org.signalduct.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.signalduct.Connection;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.filter.LengthPrefixFramingFilter;
+import org.signalduct.filter.SerializationFilter;
+import org.signalduct.impl.ClientNetwork;
+import org.signalduct.impl.ConnectionListenerAdapter;
+import org.signalduct.impl.ServerNetwork;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip latency of a message sent from a client to an echoing server over loopback,
+ * through framing and serialization filters on both sides.
+ *
+ * Uses the sample time mode, so the results include the p50, p99 and p999 percentiles of the latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoLatencyBenchmark {
+
+    private static final int PORT = 18765;
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 5000;
+
+    private ServerNetwork serverNetwork;
+    private ClientNetwork clientNetwork;
+    private Connection connectionToServer;
+    private PositionMessage message;
+
+    private volatile long receivedReplies = 0;
+    private long sentMessages = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        serverNetwork = new ServerNetwork(PORT, new ConnectionListenerAdapter() {
+            @Override public void onMessage(Connection connection, Object message) {
+                connection.sendMessage(message);
+            }
+        });
+        addFilters(serverNetwork.getFilterChain());
+        serverNetwork.start();
+
+        clientNetwork = new ClientNetwork();
+        addFilters(clientNetwork.getFilterChain());
+        connectionToServer = clientNetwork.connectTo(new InetSocketAddress("localhost", PORT), new ConnectionListenerAdapter() {
+            @Override public void onMessage(Connection connection, Object message) {
+                receivedReplies++;
+            }
+        });
+        connectionToServer.waitUntilConnected(CONNECT_TIMEOUT_MILLISECONDS);
+
+        message = new PositionMessage(42, 1, 2, 3);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        clientNetwork.stop();
+        serverNetwork.stop();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        sentMessages++;
+        connectionToServer.sendMessage(message);
+
+        // Spin until the reply arrives, to avoid adding thread wakeup latency to the measurement
+        while (receivedReplies < sentMessages) {
+            Thread.yield();
+        }
+    }
+
+    private static void addFilters(FilterChain filterChain) {
+        final SerializationFilter serializationFilter = new SerializationFilter();
+        serializationFilter.register(1, PositionMessage.class, PositionMessage.CODEC);
+
+        filterChain.addFilterLast(new LengthPrefixFramingFilter());
+        filterChain.addFilterLast(serializationFilter);
+    }
+}
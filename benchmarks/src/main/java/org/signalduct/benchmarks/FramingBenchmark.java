@@ -0,0 +1,140 @@
+package org.signalduct.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.filter.LengthPrefixFramingFilter;
+import org.signalduct.filter.LowerLevel;
+import org.signalduct.filter.SerializationFilter;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the framing and serialization filters, in messages per second.
+ *
+ * The framing benchmarks decode a read buffer holding FRAMES_PER_READ frames, so the results are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final int FRAMES_PER_READ = 64;
+
+    @Param({"16", "256"})
+    public int frameLength;
+
+    @Param({"VARINT", "FIXED_INT"})
+    public LengthPrefixFramingFilter.PrefixType prefixType;
+
+    private final BufferPool bufferPool = new BufferPool();
+    private LengthPrefixFramingFilter framingFilter;
+    private SerializationFilter serializationFilter;
+    private Connection connection;
+    private ByteBuffer readBuffer;
+    private ByteBuffer payload;
+    private ByteBuffer encodedPosition;
+    private PositionMessage position;
+    private ConnectionListener higherLevel;
+    private LowerLevel lowerLevel;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        framingFilter = new LengthPrefixFramingFilter(prefixType, LengthPrefixFramingFilter.DEFAULT_MAX_FRAME_LENGTH, bufferPool);
+        serializationFilter = new SerializationFilter(bufferPool);
+        serializationFilter.register(1, PositionMessage.class, PositionMessage.CODEC);
+        connection = new BenchmarkConnection();
+        position = new PositionMessage(42, 1, 2, 3);
+
+        higherLevel = new ConnectionListener() {
+            @Override public void onMessage(Connection connection, Object message) {
+                blackhole.consume(message);
+            }
+
+            @Override public void onConnected(Connection connection) {
+            }
+
+            @Override public void onDisconnected(Connection connection) {
+            }
+
+            @Override public void onError(Connection connection, String errorType, String errorDescription) {
+                throw new IllegalStateException("Unexpected error in benchmark: " + errorDescription);
+            }
+        };
+
+        lowerLevel = new LowerLevel() {
+            @Override public void sendMessage(Connection connection, Object message) {
+                // Return sent buffers to the pool, as the network would after writing them
+                if (message instanceof ByteBuffer[]) {
+                    for (ByteBuffer buffer : (ByteBuffer[]) message) {
+                        bufferPool.release(buffer);
+                    }
+                }
+                else {
+                    bufferPool.release((ByteBuffer) message);
+                }
+            }
+
+            @Override public void sendDisconnect(Connection connection) {
+            }
+        };
+
+        // Build a read buffer with the frames, using the filter itself to write the prefixes
+        readBuffer = ByteBuffer.allocateDirect(FRAMES_PER_READ * (frameLength + prefixType.getMaxLength()));
+        payload = ByteBuffer.allocateDirect(frameLength);
+        for (int i = 0; i < FRAMES_PER_READ; i++) {
+            framingFilter.sendMessage(connection, payload.duplicate(), new LowerLevel() {
+                @Override public void sendMessage(Connection connection, Object message) {
+                    for (ByteBuffer buffer : (ByteBuffer[]) message) {
+                        readBuffer.put(buffer);
+                    }
+                }
+
+                @Override public void sendDisconnect(Connection connection) {
+                }
+            }, higherLevel);
+        }
+        readBuffer.flip();
+
+        encodedPosition = ByteBuffer.allocateDirect(64);
+        serializationFilter.sendMessage(connection, position, new LowerLevel() {
+            @Override public void sendMessage(Connection connection, Object message) {
+                encodedPosition.put((ByteBuffer) message);
+            }
+
+            @Override public void sendDisconnect(Connection connection) {
+            }
+        }, higherLevel);
+        encodedPosition.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_READ)
+    public void decodeFrames() {
+        readBuffer.rewind();
+        framingFilter.receiveMessage(connection, readBuffer, higherLevel, lowerLevel);
+    }
+
+    @Benchmark
+    public void encodeFrame() {
+        framingFilter.sendMessage(connection, payload, lowerLevel, higherLevel);
+    }
+
+    @Benchmark
+    public void deserializeMessage() {
+        encodedPosition.rewind();
+        serializationFilter.receiveMessage(connection, encodedPosition, higherLevel, lowerLevel);
+    }
+
+    @Benchmark
+    public void serializeMessage() {
+        serializationFilter.sendMessage(connection, position, lowerLevel, higherLevel);
+    }
+
+}
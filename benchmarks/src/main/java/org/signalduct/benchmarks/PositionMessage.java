@@ -0,0 +1,43 @@
+package org.signalduct.benchmarks;
+
+import org.signalduct.filter.MessageCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small message type used in the benchmarks, similar to a typical game state update.
+ */
+public final class PositionMessage {
+
+    /**
+     * Codec that encodes the fields of the message as fixed size values.
+     */
+    public static final MessageCodec<PositionMessage> CODEC = new MessageCodec<PositionMessage>() {
+        @Override public int getMaxEncodedSize(PositionMessage message) {
+            return 8 + 4 + 4 + 4;
+        }
+
+        @Override public void encode(PositionMessage message, ByteBuffer target) {
+            target.putLong(message.entityId);
+            target.putFloat(message.x);
+            target.putFloat(message.y);
+            target.putFloat(message.z);
+        }
+
+        @Override public PositionMessage decode(ByteBuffer source) {
+            return new PositionMessage(source.getLong(), source.getFloat(), source.getFloat(), source.getFloat());
+        }
+    };
+
+    public final long entityId;
+    public final float x;
+    public final float y;
+    public final float z;
+
+    public PositionMessage(long entityId, float x, float y, float z) {
+        this.entityId = entityId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+}
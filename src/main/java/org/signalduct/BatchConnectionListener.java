@@ -0,0 +1,18 @@
+package org.signalduct;
+
+/**
+ * ConnectionListener that can also receive several messages at once,
+ * for example all the messages decoded from one read from the network.
+ */
+public interface BatchConnectionListener extends ConnectionListener {
+
+    /**
+     * Called when several messages are received together from the network, or a lower level filter.
+     * Has the same effect as calling onMessage for each message in the batch, in order.
+     *
+     * @param connection connection that the messages were received from.
+     * @param messages the received messages.  Only valid until this call returns.
+     *                 May be modified, without affecting what the other listeners of the connection receive.
+     */
+    void onMessages(Connection connection, MessageBatch messages);
+}
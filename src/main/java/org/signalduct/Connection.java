@@ -1,5 +1,6 @@
 package org.signalduct;
 
+import org.signalduct.impl.NetworkException;
 
 /**
  * Represents a network connection between a client and server.
@@ -19,9 +20,147 @@ public interface Connection {
 
     /**
      * Send a message object to the connected network.
+     * When the message is written depends on the flush mode of the connection, and on whether it is corked.
      */
     void sendMessage(Object message);
 
+    /**
+     * Writes all sent messages to the network as soon as possible, regardless of the flush mode and corking.
+     */
+    void flush();
+
+    /**
+     * Holds back writing of sent messages until uncork is called, so that several messages can be
+     * written together.  Calls may be nested, the messages are written when the outermost cork is removed.
+     * Data that was already being written when cork was called may still be written.
+     */
+    void cork();
+
+    /**
+     * Removes a cork added with cork(), and writes the held back messages according to the flush mode
+     * when the last cork is removed.
+     */
+    void uncork();
+
+    /**
+     * @param flushMode determines when sent messages are written to the network.  Defaults to FlushMode.END_OF_TICK.
+     */
+    void setFlushMode(FlushMode flushMode);
+
+    /**
+     * @return determines when sent messages are written to the network.
+     */
+    FlushMode getFlushMode();
+
+    /**
+     * @param tcpNoDelay if true, disables Nagle's algorithm on the socket, so that small writes are sent
+     *                   without waiting for acknowledgements of earlier data.
+     * @throws NetworkException if the socket option could not be set.
+     */
+    void setTcpNoDelay(boolean tcpNoDelay) throws NetworkException;
+
+    /**
+     * Sets socket options for this connection, overriding the socket options of the network for it.
+     * Options that are not set in the specified options are left as they are.
+     *
+     * @param socketOptions socket options to set.
+     * @throws NetworkException if a socket option could not be set.
+     */
+    void setSocketOptions(SocketOptions socketOptions) throws NetworkException;
+
+
+    /**
+     * Stops reading incoming data from the network until resumeReading is called, so that the remote end is slowed
+     * down by TCP flow control when the receive buffers fill up.  Data that has already been read is still delivered.
+     * Calls may be nested, reading continues when resumeReading has been called as many times as pauseReading.
+     */
+    void pauseReading();
+
+    /**
+     * Removes a pause added with pauseReading, and continues reading incoming data when the last pause is removed.
+     */
+    void resumeReading();
+
+    /**
+     * Pauses reading like pauseReading, and removes the pause again after the delay, using the timer of the network
+     * thread of the connection, so no thread of its own is needed.  The pending removal is cancelled if the
+     * connection is closed first.  Does nothing if a pause added by an earlier call is still in effect, or if the
+     * connection is not handled by a network thread yet.
+     *
+     * @param delayMilliseconds milliseconds until reading is resumed.
+     */
+    void pauseReading(int delayMilliseconds);
+
+    /**
+     * @return true if reading incoming data is paused.
+     */
+    boolean isReadingPaused();
+
+    /**
+     * Sets the limits for queued outgoing data that determine when the connection is writable.
+     * The connection becomes unwritable when the queued data grows past the high watermark,
+     * and writable again when it falls to the low watermark.  Listeners are notified of the changes,
+     * and the slow consumer policy is applied to messages sent while over the high watermark.
+     *
+     * @param lowWatermark number of queued bytes at or below which the connection becomes writable again.
+     * @param highWatermark number of queued bytes above which the connection becomes unwritable.
+     */
+    void setWriteWatermarks(int lowWatermark, int highWatermark);
+
+    /**
+     * @return true if the queued outgoing data has not grown past the high watermark,
+     *         or has since fallen to the low watermark.
+     */
+    boolean isWritable();
+
+    /**
+     * @return number of bytes sent with the connection that have not yet been written to the network.
+     */
+    long getQueuedBytes();
+
+    /**
+     * @param slowConsumerPolicy what to do with sent messages when the queued outgoing data exceeds the high watermark.
+     *                           Defaults to SlowConsumerPolicy.QUEUE.
+     */
+    void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy);
+
+    /**
+     * @return what to do with sent messages when the queued outgoing data exceeds the high watermark.
+     */
+    SlowConsumerPolicy getSlowConsumerPolicy();
+
+    /**
+     * Reports idle connections to the listeners, with onError calls of the type "read_idle" when nothing has been
+     * received for the read idle timeout, and "write_idle" when nothing has been written for the write idle timeout.
+     * Idleness is reported again after each further timeout period without activity.
+     * Listeners can for example disconnect clients that stay silent.
+     *
+     * @param readIdleTimeoutMilliseconds time without received data after which the connection is read idle, or 0 to not check.
+     * @param writeIdleTimeoutMilliseconds time without written data after which the connection is write idle, or 0 to not check.
+     */
+    void setIdleTimeouts(int readIdleTimeoutMilliseconds, int writeIdleTimeoutMilliseconds);
+
+    /**
+     * Sends the heartbeat message whenever nothing has been written for the interval,
+     * so that the remote end and any intermediate routers see the connection as alive.
+     *
+     * @param heartbeatMessage message to send, passed through the filter chain like other sent messages.
+     * @param intervalMilliseconds time without written data after which a heartbeat is sent, or 0 to not send heartbeats.
+     */
+    void setHeartbeat(Object heartbeatMessage, int intervalMilliseconds);
+
+    /**
+     * @return true if the connection is currently open.
+     */
+    boolean isConnected();
+
+    /**
+     * Blocks until the connection is established.
+     *
+     * @param timeoutMilliseconds max time to wait.
+     * @throws NetworkException if the connection was not established within the timeout, or the wait was interrupted.
+     */
+    void waitUntilConnected(int timeoutMilliseconds) throws NetworkException;
 
     /**
      * Stop the connection.
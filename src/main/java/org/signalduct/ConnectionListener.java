@@ -22,6 +22,17 @@ public interface ConnectionListener {
      */
     void onDisconnected(Connection connection);
 
+    /**
+     * Called when the queued outgoing data of the connection grows past its high watermark,
+     * and when it falls back to its low watermark.  Called directly by the network, not through the filters.
+     * Does nothing by default.
+     *
+     * @param connection the connection whose writability changed.
+     * @param writable false if senders should stop sending, true if they can continue.
+     */
+    default void onWritabilityChanged(Connection connection, boolean writable) {
+    }
+
     /**
      * Called if there was some error with a connection.
      *
@@ -0,0 +1,26 @@
+package org.signalduct;
+
+/**
+ * Determines when messages sent with a connection are written to the network.
+ */
+public enum FlushMode {
+
+    /**
+     * Sent messages are written at the end of the current round of network event handling.
+     * Messages sent while handling incoming events are coalesced into as few gathering writes as possible,
+     * and messages sent from other threads are written on the next round.  This is the default.
+     */
+    END_OF_TICK,
+
+    /**
+     * Sent messages are written right away when sent from the network thread,
+     * and on the next round of network event handling when sent from other threads.
+     * Best combined with TCP_NODELAY for latency sensitive connections.
+     */
+    IMMEDIATE,
+
+    /**
+     * Sent messages are queued until Connection.flush() is called.
+     */
+    MANUAL
+}
@@ -0,0 +1,120 @@
+package org.signalduct;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Queues the messages received on a connection, for an application that polls them at its own pace,
+ * for example once per game loop tick.
+ *
+ * When the number of queued messages reaches the high watermark, reading from the connection is paused, so that a
+ * client sending faster than the application consumes is slowed down by TCP flow control instead of filling memory.
+ * Reading is resumed when polling has brought the number of queued messages down to the low watermark.
+ * A few more messages than the high watermark may be queued, as data that has already been read is still delivered.
+ *
+ * The queued messages must stay valid after they have been delivered, so a filter that decodes or copies received
+ * data, such as the SerializationFilter, should be placed in the filter chain.
+ *
+ * Messages may be polled from any thread.
+ */
+public final class InboundMessageQueue implements BatchConnectionListener {
+
+    /**
+     * Default number of queued messages at or below which reading is resumed.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 256;
+
+    /**
+     * Default number of queued messages at which reading is paused.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 1024;
+
+    private final Connection connection;
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    private final ConcurrentLinkedQueue<Object> messages = new ConcurrentLinkedQueue<Object>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicBoolean readingPaused = new AtomicBoolean(false);
+
+    /**
+     * Creates a queue with the default watermarks, and adds it as a listener to the connection.
+     */
+    public InboundMessageQueue(Connection connection) {
+        this(connection, DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+    }
+
+    /**
+     * Creates a queue and adds it as a listener to the connection.
+     *
+     * @param connection connection whose received messages should be queued.
+     * @param lowWatermark number of queued messages at or below which reading from the connection is resumed.
+     * @param highWatermark number of queued messages at which reading from the connection is paused.
+     */
+    public InboundMessageQueue(Connection connection, int lowWatermark, int highWatermark) {
+        notNull(connection, "connection");
+        positive(highWatermark, "highWatermark");
+        if (lowWatermark < 0 || lowWatermark >= highWatermark) throw new IllegalArgumentException("lowWatermark (" + lowWatermark + ") should be at least zero and smaller than highWatermark (" + highWatermark + ")");
+
+        this.connection = connection;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+
+        connection.addListener(this);
+    }
+
+    /**
+     * @return the oldest queued message, or null if there are no queued messages.
+     */
+    public Object poll() {
+        final Object message = messages.poll();
+        if (message != null) size.decrementAndGet();
+
+        // Also checked when the queue is empty, in case the pause was made after the last message was polled
+        if (size.get() <= lowWatermark && readingPaused.compareAndSet(true, false)) {
+            connection.resumeReading();
+        }
+
+        return message;
+    }
+
+    /**
+     * @return number of queued messages.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the connection whose messages are queued.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override public void onMessage(Connection connection, Object message) {
+        messages.add(message);
+        if (size.incrementAndGet() >= highWatermark && readingPaused.compareAndSet(false, true)) {
+            connection.pauseReading();
+        }
+    }
+
+    @Override public void onMessages(Connection connection, MessageBatch messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            onMessage(connection, messages.get(i));
+        }
+    }
+
+    @Override public void onConnected(Connection connection) {
+    }
+
+    @Override public void onDisconnected(Connection connection) {
+    }
+
+    @Override public void onError(Connection connection, String errorType, String errorDescription) {
+    }
+}
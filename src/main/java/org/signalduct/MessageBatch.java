@@ -0,0 +1,121 @@
+package org.signalduct;
+
+import java.util.Arrays;
+
+/**
+ * A list of messages received on one connection, delivered together with one call instead of one call per message.
+ *
+ * Batches are reused by the code that creates them, so a batch and its contents are only valid until the
+ * call it was passed to returns.  Receivers may modify the batch they are passed, for example to replace or
+ * remove messages before passing the batch on.  When a connection has several listeners, each listener that
+ * handles batches is passed its own batch, so changes made by one listener are not seen by the others.
+ */
+public final class MessageBatch {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private Object[] messages;
+    private int size;
+
+    /**
+     * Creates a new empty batch with the default initial capacity.
+     */
+    public MessageBatch() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of messages the batch can hold before it needs to grow.
+     */
+    public MessageBatch(int initialCapacity) {
+        if (initialCapacity < 1) throw new IllegalArgumentException("initialCapacity should be positive, but was " + initialCapacity);
+
+        messages = new Object[initialCapacity];
+    }
+
+    /**
+     * Adds a message to the end of the batch.
+     */
+    public void add(Object message) {
+        if (size == messages.length) {
+            messages = Arrays.copyOf(messages, size * 2);
+        }
+
+        messages[size++] = message;
+    }
+
+    /**
+     * Adds all messages of the other batch to the end of this batch.
+     */
+    public void addAll(MessageBatch other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.messages[i]);
+        }
+    }
+
+    /**
+     * @return the message at the specified index.
+     */
+    public Object get(int index) {
+        checkIndex(index);
+        return messages[index];
+    }
+
+    /**
+     * Replaces the message at the specified index.
+     */
+    public void set(int index, Object message) {
+        checkIndex(index);
+        messages[index] = message;
+    }
+
+    /**
+     * Removes all messages from the index onwards.
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) throw new IndexOutOfBoundsException("Can not truncate batch of size " + size + " to size " + newSize);
+
+        Arrays.fill(messages, newSize, size, null);
+        size = newSize;
+    }
+
+    /**
+     * Removes all messages, so that the batch can be reused.
+     */
+    public void clear() {
+        truncate(0);
+    }
+
+    /**
+     * @return number of messages in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the batch contains no messages.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Passes the messages of this batch to the listener, with one onMessages call if the listener handles batches,
+     * and otherwise with one onMessage call per message.
+     */
+    public void deliverTo(Connection connection, ConnectionListener listener) {
+        if (listener instanceof BatchConnectionListener) {
+            ((BatchConnectionListener) listener).onMessages(connection, this);
+        }
+        else {
+            for (int i = 0; i < size; i++) {
+                listener.onMessage(connection, messages[i]);
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " is outside the batch of size " + size);
+    }
+}
@@ -36,6 +36,11 @@ public class NioServerNetwork extends NetworkBase implements ServerNetwork {
                            // TODO: Implement
 
                        }
+
+                       @Override public void onError(Connection connection, String errorType, String errorDescription) {
+                           // TODO: Implement
+
+                       }
                    });
     }
 
@@ -0,0 +1,38 @@
+package org.signalduct;
+
+/**
+ * Determines what happens to sent messages when the outgoing data queued for a connection exceeds its
+ * high watermark, because the remote end does not read the data as fast as it is sent.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Messages are queued regardless of the amount of queued data.
+     * Senders should stop sending when the connection reports that it is no longer writable.  This is the default.
+     */
+    QUEUE,
+
+    /**
+     * Threads sending messages block while the connection is not writable, until the queued data falls below the
+     * low watermark or the connection is closed.  Messages sent from the network thread are never blocked, as that
+     * would stop the queued data from being written.
+     */
+    BLOCK,
+
+    /**
+     * The oldest queued messages that have not yet started to be written are dropped,
+     * until the queued data is below the high watermark.  Applied when the queued data is written.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Messages that would take the queued data over the high watermark are dropped.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The connection is disconnected when a message would take the queued data over the high watermark,
+     * after reporting an error to the listeners.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,209 @@
+package org.signalduct;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Socket options to apply to the channels of a network or a connection.
+ * Options that are not set (null) are left at the defaults of the platform.
+ *
+ * Networks take a copy of the options when they are set, so the same instance can be changed and reused afterwards.
+ */
+public final class SocketOptions {
+
+    private Boolean tcpNoDelay;
+    private Integer sendBufferSize;
+    private Integer receiveBufferSize;
+    private Boolean keepAlive;
+    private Integer lingerSeconds;
+    private Boolean reuseAddress;
+
+    /**
+     * Creates socket options with nothing set, leaving all options at the defaults of the platform.
+     */
+    public SocketOptions() {
+    }
+
+    /**
+     * Creates a copy of the specified options.
+     */
+    public SocketOptions(SocketOptions options) {
+        notNull(options, "options");
+
+        tcpNoDelay = options.tcpNoDelay;
+        sendBufferSize = options.sendBufferSize;
+        receiveBufferSize = options.receiveBufferSize;
+        keepAlive = options.keepAlive;
+        lingerSeconds = options.lingerSeconds;
+        reuseAddress = options.reuseAddress;
+    }
+
+    /**
+     * @return options for small messages that should be delivered without delay, such as game state or chat.
+     *         Disables Nagle's algorithm, and leaves the buffer sizes at the platform defaults.
+     */
+    public static SocketOptions lowLatency() {
+        final SocketOptions options = new SocketOptions();
+        options.setTcpNoDelay(true);
+        return options;
+    }
+
+    /**
+     * @return options for transferring large amounts of data, where throughput matters more than latency.
+     *         Keeps Nagle's algorithm enabled, and uses one megabyte send and receive buffers, so that a fast
+     *         connection with a long round trip time can be kept full.
+     */
+    public static SocketOptions bulkThroughput() {
+        final SocketOptions options = new SocketOptions();
+        options.setTcpNoDelay(false);
+        options.setSendBufferSize(1024 * 1024);
+        options.setReceiveBufferSize(1024 * 1024);
+        return options;
+    }
+
+    /**
+     * @param tcpNoDelay TCP_NODELAY, if true small writes are sent without waiting for acknowledgements of earlier data.
+     *                   Null to use the platform default.
+     */
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF, size of the send buffer of the operating system in bytes, which the operating
+     *                       system may adjust.  Null to use the platform default.
+     */
+    public void setSendBufferSize(Integer sendBufferSize) {
+        if (sendBufferSize != null) positive(sendBufferSize, "sendBufferSize");
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public Integer getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF, size of the receive buffer of the operating system in bytes, which the
+     *                          operating system may adjust.  Receive buffers larger than 64 kB only take full effect
+     *                          when set before the connection is established, so they should be set for the network
+     *                          rather than for individual connections.  Null to use the platform default.
+     */
+    public void setReceiveBufferSize(Integer receiveBufferSize) {
+        if (receiveBufferSize != null) positive(receiveBufferSize, "receiveBufferSize");
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public Integer getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @param keepAlive SO_KEEPALIVE, if true the operating system probes idle connections to detect dead peers.
+     *                  Null to use the platform default.
+     */
+    public void setKeepAlive(Boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Positive linger times are not supported, as the behaviour of closing a non-blocking socket with them is
+     * undefined, and may block the network thread.  Queued outgoing data is written before a disconnected
+     * connection is closed anyway.
+     *
+     * @param lingerSeconds SO_LINGER, zero to reset the connection when it is closed, discarding unsent data,
+     *                      or a negative value to close normally.  Null to use the platform default.
+     */
+    public void setLingerSeconds(Integer lingerSeconds) {
+        if (lingerSeconds != null && lingerSeconds > 0) throw new IllegalArgumentException("lingerSeconds should be zero or negative, but was " + lingerSeconds);
+
+        this.lingerSeconds = lingerSeconds;
+    }
+
+    public Integer getLingerSeconds() {
+        return lingerSeconds;
+    }
+
+    /**
+     * @param reuseAddress SO_REUSEADDR, if true a server can bind to its port while connections from an earlier
+     *                     run are still in the TIME_WAIT state.  Null to use the platform default.
+     */
+    public void setReuseAddress(Boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public Boolean getReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * @return a copy of these options, with the options that are set in the overrides replacing the ones in these.
+     */
+    public SocketOptions overriddenWith(SocketOptions overrides) {
+        notNull(overrides, "overrides");
+
+        final SocketOptions options = new SocketOptions(this);
+        if (overrides.tcpNoDelay != null) options.tcpNoDelay = overrides.tcpNoDelay;
+        if (overrides.sendBufferSize != null) options.sendBufferSize = overrides.sendBufferSize;
+        if (overrides.receiveBufferSize != null) options.receiveBufferSize = overrides.receiveBufferSize;
+        if (overrides.keepAlive != null) options.keepAlive = overrides.keepAlive;
+        if (overrides.lingerSeconds != null) options.lingerSeconds = overrides.lingerSeconds;
+        if (overrides.reuseAddress != null) options.reuseAddress = overrides.reuseAddress;
+        return options;
+    }
+
+    /**
+     * Sets the options that are set in this object to the socket channel.
+     * @throws IOException if an option could not be set.
+     */
+    public void applyTo(SocketChannel channel) throws IOException {
+        notNull(channel, "channel");
+
+        if (tcpNoDelay != null) channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize != null) channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        if (keepAlive != null) channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (lingerSeconds != null) channel.setOption(StandardSocketOptions.SO_LINGER, lingerSeconds);
+        applyCommonOptions(channel);
+    }
+
+    /**
+     * Sets the options that apply to listening sockets to the server socket channel.  Should be called before the
+     * channel is bound.  The receive buffer size is then inherited by accepted connections, and the other options
+     * should be applied to each accepted channel separately.
+     * @throws IOException if an option could not be set.
+     */
+    public void applyTo(ServerSocketChannel channel) throws IOException {
+        notNull(channel, "channel");
+
+        applyCommonOptions(channel);
+    }
+
+    private void applyCommonOptions(NetworkChannel channel) throws IOException {
+        if (receiveBufferSize != null) channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if (reuseAddress != null) channel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+    }
+
+    @Override public String toString() {
+        return "SocketOptions{" +
+               "tcpNoDelay=" + tcpNoDelay +
+               ", sendBufferSize=" + sendBufferSize +
+               ", receiveBufferSize=" + receiveBufferSize +
+               ", keepAlive=" + keepAlive +
+               ", lingerSeconds=" + lingerSeconds +
+               ", reuseAddress=" + reuseAddress +
+               '}';
+    }
+}
@@ -0,0 +1,25 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+
+/**
+ * MessageFilter that can process a batch of received messages with one call.
+ * The filter chain calls receiveMessage for each message of a batch for filters that do not implement this interface.
+ */
+public interface BatchMessageFilter extends MessageFilter {
+
+    /**
+     * Called when several messages are received together from the lower level network side.
+     * Has the same effect as calling receiveMessage for each message in the batch, in order.
+     *
+     * The batch may be modified and passed on to the next filter with MessageBatch.deliverTo.
+     *
+     * @param connection connection that the messages are received from.
+     * @param messages received messages.  Only valid until this call returns.
+     * @param nextFilter the next higher level to forward processed messages to.
+     * @param previousFilter if some replies to lower levels are needed, this can be used to send messages.
+     */
+    void receiveMessages(Connection connection, MessageBatch messages, ConnectionListener nextFilter, LowerLevel previousFilter);
+}
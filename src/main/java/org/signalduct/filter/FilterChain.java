@@ -2,6 +2,7 @@ package org.signalduct.filter;
 
 import org.signalduct.Connection;
 import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
 
 /**
  * Represents a set of filters that can be applied to incoming and outgoing messages.
@@ -35,6 +36,14 @@ public interface FilterChain extends MessageFiltering {
      */
     void filterReceivedMessage(Connection connection, Object message);
 
+    /**
+     * Apply filters to several messages received together from the network.
+     * Filters that can not handle batches are passed the messages one at a time.
+     * @param connection the connection that the event happened on.
+     * @param messages the received messages.  Only valid until this call returns, and may be modified by the filters.
+     */
+    void filterReceivedMessages(Connection connection, MessageBatch messages);
+
     /**
      * Apply filters to a message sent from the application to the network.
      * @param connection the connection that the event happened on.
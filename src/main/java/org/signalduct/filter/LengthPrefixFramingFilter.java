@@ -0,0 +1,369 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Splits the received byte stream into frames that are prefixed with their length,
+ * and prefixes sent messages with their length.
+ *
+ * Received frames are passed to the next filter as ByteBuffers.  When a frame is contained in one read, the passed
+ * buffer is a slice of the read buffer, so no data is copied.  Only frames that span several reads are assembled
+ * into a buffer from the buffer pool.  In both cases the passed buffer is only valid until the receiveMessage call
+ * returns, so higher levels that need to keep the data must copy it.
+ *
+ * All complete frames found in one received buffer are passed on together as a MessageBatch,
+ * so that filters and listeners that handle batches are called once per read instead of once per frame.
+ *
+ * Sent messages should be ByteBuffers, arrays of ByteBuffers, or byte arrays.  The length prefix is written into a
+ * separate buffer that is sent together with the message, so sent messages are not copied either.
+ *
+ * The state of partially received frames, and the batch, are stored in the custom data of each connection,
+ * so one filter instance can be used for all connections of a network.
+ */
+public final class LengthPrefixFramingFilter implements MessageFilter {
+
+    /**
+     * Error type passed to onError when a frame longer than the max frame length is received.
+     * The connection is disconnected when that happens.
+     */
+    public static final String FRAME_TOO_LONG_ERROR = "frame_too_long";
+
+    /**
+     * Default maximum length of a frame, excluding the length prefix.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    /**
+     * Encoding of the length prefix.
+     */
+    public static enum PrefixType {
+
+        /**
+         * Length encoded as an unsigned variable length integer, using 7 bits per byte, least significant bits first.
+         * Takes one byte for frames shorter than 128 bytes, and at most five bytes.
+         */
+        VARINT(5),
+
+        /**
+         * Length encoded as a four byte big endian integer.
+         */
+        FIXED_INT(4);
+
+        private final int maxLength;
+
+        private PrefixType(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @return max number of bytes needed for a length prefix of this type.
+         */
+        public int getMaxLength() {
+            return maxLength;
+        }
+    }
+
+    /**
+     * Receive state of a connection: a frame that has been partially received, and the batch for complete frames.
+     */
+    private static final class FramingState {
+        private final MessageBatch frames = new MessageBatch();
+        private ByteBuffer buffer;
+        private int prefixLength;
+        private int frameLength = -1;
+    }
+
+    private final PrefixType prefixType;
+    private final int maxFrameLength;
+    private final BufferPool bufferPool;
+    private final String framingStateKey;
+
+    /**
+     * Creates a framing filter with variable length integer prefixes, the default max frame length, and the default buffer pool.
+     */
+    public LengthPrefixFramingFilter() {
+        this(PrefixType.VARINT);
+    }
+
+    /**
+     * Creates a framing filter with the default max frame length and the default buffer pool.
+     * @param prefixType encoding of the length prefix.
+     */
+    public LengthPrefixFramingFilter(PrefixType prefixType) {
+        this(prefixType, DEFAULT_MAX_FRAME_LENGTH, BufferPool.getDefault());
+    }
+
+    /**
+     * @param prefixType encoding of the length prefix.
+     * @param maxFrameLength longest frame that is accepted, excluding the prefix.
+     *                       Connections that send longer frames are disconnected.
+     * @param bufferPool pool to get buffers for length prefixes and frames that span several reads from.
+     */
+    public LengthPrefixFramingFilter(PrefixType prefixType, int maxFrameLength, BufferPool bufferPool) {
+        notNull(prefixType, "prefixType");
+        positive(maxFrameLength, "maxFrameLength");
+        notNull(bufferPool, "bufferPool");
+
+        this.prefixType = prefixType;
+        this.maxFrameLength = maxFrameLength;
+        this.bufferPool = bufferPool;
+
+        framingStateKey = LengthPrefixFramingFilter.class.getName() + "@" + System.identityHashCode(this);
+    }
+
+    @Override public void receiveMessage(Connection connection,
+                                         Object message,
+                                         ConnectionListener nextFilter,
+                                         LowerLevel previousFilter) {
+        final ByteBuffer data = (ByteBuffer) message;
+
+        FramingState state = connection.getCustomData(framingStateKey);
+        if (state == null) {
+            state = new FramingState();
+            connection.setCustomData(framingStateKey, state);
+        }
+
+        // Complete any frame left over from previous reads first
+        if (state.buffer != null) {
+            if (!continuePartialFrame(connection, state, data, nextFilter, previousFilter)) return;
+        }
+
+        // Collect complete frames as slices of the received data, and pass them on together
+        final MessageBatch frames = state.frames;
+        try {
+            while (data.hasRemaining()) {
+                final int frameStart = data.position();
+                final int frameLength = readLength(data);
+
+                if (frameLength == -1) {
+                    // Prefix not complete, save it for the next read
+                    data.position(frameStart);
+                    startPartialFrame(state, data, -1, 0);
+                    break;
+                }
+
+                if (frameLength > maxFrameLength) {
+                    passOnFrames(connection, frames, nextFilter);
+                    rejectFrame(connection, frameLength, nextFilter, previousFilter);
+                    return;
+                }
+
+                if (data.remaining() < frameLength) {
+                    // Frame not complete, save it for the next read
+                    final int prefixLength = data.position() - frameStart;
+                    data.position(frameStart);
+                    startPartialFrame(state, data, frameLength, prefixLength);
+                    break;
+                }
+
+                final ByteBuffer frame = data.slice();
+                frame.limit(frameLength);
+                data.position(data.position() + frameLength);
+
+                frames.add(frame);
+            }
+
+            passOnFrames(connection, frames, nextFilter);
+        } finally {
+            frames.clear();
+        }
+    }
+
+    private void passOnFrames(Connection connection, MessageBatch frames, ConnectionListener nextFilter) {
+        if (frames.size() == 1) nextFilter.onMessage(connection, frames.get(0));
+        else if (frames.size() > 1) frames.deliverTo(connection, nextFilter);
+    }
+
+    private void startPartialFrame(FramingState partialFrame, ByteBuffer data, int frameLength, int prefixLength) {
+        final int capacity = frameLength < 0 ? prefixType.getMaxLength() : prefixLength + frameLength;
+        partialFrame.buffer = bufferPool.acquire(capacity);
+        partialFrame.buffer.put(data);
+        partialFrame.frameLength = frameLength;
+        partialFrame.prefixLength = prefixLength;
+    }
+
+    /**
+     * Adds received data to a partially received frame, and passes the frame on if it was completed.
+     * @return true if the frame was completed, false if more data is needed or the connection was rejected.
+     */
+    private boolean continuePartialFrame(Connection connection,
+                                         FramingState partialFrame,
+                                         ByteBuffer data,
+                                         ConnectionListener nextFilter,
+                                         LowerLevel previousFilter) {
+        // Complete the prefix one byte at a time, it is at most a few bytes long
+        while (partialFrame.frameLength < 0) {
+            if (!data.hasRemaining()) return false;
+
+            partialFrame.buffer.put(data.get());
+
+            final ByteBuffer prefix = partialFrame.buffer.duplicate();
+            prefix.flip();
+            final int frameLength = readLength(prefix);
+            if (frameLength >= 0) {
+                if (frameLength > maxFrameLength) {
+                    releasePartialFrame(partialFrame);
+                    rejectFrame(connection, frameLength, nextFilter, previousFilter);
+                    return false;
+                }
+
+                partialFrame.frameLength = frameLength;
+                partialFrame.prefixLength = prefix.position();
+                ensurePartialFrameCapacity(partialFrame, partialFrame.prefixLength + frameLength);
+            }
+        }
+
+        // Copy as much of the frame as is available
+        final int missingBytes = partialFrame.prefixLength + partialFrame.frameLength - partialFrame.buffer.position();
+        final int bytesToCopy = Math.min(missingBytes, data.remaining());
+        final int dataLimit = data.limit();
+        data.limit(data.position() + bytesToCopy);
+        partialFrame.buffer.put(data);
+        data.limit(dataLimit);
+
+        if (bytesToCopy < missingBytes) return false;
+
+        // Pass on the completed frame
+        final ByteBuffer frame = partialFrame.buffer;
+        frame.flip();
+        frame.position(partialFrame.prefixLength);
+        try {
+            nextFilter.onMessage(connection, frame.slice());
+        } finally {
+            releasePartialFrame(partialFrame);
+        }
+
+        return true;
+    }
+
+    private void ensurePartialFrameCapacity(FramingState partialFrame, int capacity) {
+        if (partialFrame.buffer.capacity() < capacity) {
+            final ByteBuffer oldBuffer = partialFrame.buffer;
+            partialFrame.buffer = bufferPool.acquire(capacity);
+            oldBuffer.flip();
+            partialFrame.buffer.put(oldBuffer);
+            bufferPool.release(oldBuffer);
+        }
+    }
+
+    private void releasePartialFrame(FramingState partialFrame) {
+        bufferPool.release(partialFrame.buffer);
+        partialFrame.buffer = null;
+        partialFrame.frameLength = -1;
+        partialFrame.prefixLength = 0;
+    }
+
+    private void rejectFrame(Connection connection, int frameLength, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        nextFilter.onError(connection, FRAME_TOO_LONG_ERROR, "Received a frame of " + frameLength + " bytes, " +
+                                                             "but the max frame length is " + maxFrameLength + " bytes.  Disconnecting.");
+        previousFilter.sendDisconnect(connection);
+    }
+
+    /**
+     * Reads a length prefix from the buffer.
+     * @return the read length, or -1 if the buffer does not contain the whole prefix.
+     *         If the prefix was read, the position of the buffer is moved past it, otherwise it is undefined.
+     */
+    private int readLength(ByteBuffer data) {
+        switch (prefixType) {
+            case FIXED_INT:
+                if (data.remaining() < 4) return -1;
+                final int length = data.getInt();
+                return length < 0 ? Integer.MAX_VALUE : length;
+
+            case VARINT:
+            default:
+                int value = 0;
+                for (int shift = 0; shift < 35; shift += 7) {
+                    if (!data.hasRemaining()) return -1;
+
+                    final byte b = data.get();
+                    value |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) return value < 0 ? Integer.MAX_VALUE : value;
+                }
+
+                // Malformed prefix, report it as too long
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    private void writeLength(ByteBuffer target, int length) {
+        switch (prefixType) {
+            case FIXED_INT:
+                target.putInt(length);
+                break;
+
+            case VARINT:
+            default:
+                while ((length & ~0x7F) != 0) {
+                    target.put((byte) ((length & 0x7F) | 0x80));
+                    length >>>= 7;
+                }
+                target.put((byte) length);
+                break;
+        }
+    }
+
+    @Override public void sendMessage(Connection connection,
+                                      Object message,
+                                      LowerLevel nextFilter,
+                                      ConnectionListener previousFilter) {
+        final ByteBuffer prefix = bufferPool.acquire(prefixType.getMaxLength());
+
+        if (message instanceof ByteBuffer) {
+            final ByteBuffer payload = (ByteBuffer) message;
+            writeLength(prefix, payload.remaining());
+            prefix.flip();
+            nextFilter.sendMessage(connection, new ByteBuffer[]{prefix, payload});
+        }
+        else if (message instanceof ByteBuffer[]) {
+            final ByteBuffer[] payload = (ByteBuffer[]) message;
+            int length = 0;
+            for (ByteBuffer buffer : payload) {
+                length += buffer.remaining();
+            }
+            writeLength(prefix, length);
+            prefix.flip();
+
+            final ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+            buffers[0] = prefix;
+            System.arraycopy(payload, 0, buffers, 1, payload.length);
+            nextFilter.sendMessage(connection, buffers);
+        }
+        else if (message instanceof byte[]) {
+            final byte[] payload = (byte[]) message;
+            writeLength(prefix, payload.length);
+            prefix.flip();
+            nextFilter.sendMessage(connection, new ByteBuffer[]{prefix, ByteBuffer.wrap(payload)});
+        }
+        else {
+            bufferPool.release(prefix);
+            throw new IllegalArgumentException("Expected a ByteBuffer, ByteBuffer array, or byte array message to frame, " +
+                                               "but got " + (message == null ? "null" : message.getClass().getName()));
+        }
+    }
+
+    @Override public void receiveConnect(Connection connection, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        nextFilter.onConnected(connection);
+    }
+
+    @Override public void receiveDisconnect(Connection connection, ConnectionListener nextFilter) {
+        // Any partial frame is left to the garbage collector instead of the pool,
+        // as the disconnect may arrive from another thread while the frame is still being read into.
+        connection.setCustomData(framingStateKey, null);
+
+        nextFilter.onDisconnected(connection);
+    }
+
+    @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+        nextFilter.sendDisconnect(connection);
+    }
+}
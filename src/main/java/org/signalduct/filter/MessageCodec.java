@@ -0,0 +1,37 @@
+package org.signalduct.filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes messages of some type to bytes, and decodes them back.
+ * Used by the SerializationFilter, which takes care of identifying the type of each message.
+ *
+ * Implementations should be thread safe, as the same codec is used for all connections of a network.
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * @return an upper bound for the number of bytes that encode() writes for the specified message.
+     *         Used to reserve a large enough buffer before encoding.
+     */
+    int getMaxEncodedSize(T message);
+
+    /**
+     * Writes the message to the target buffer, starting at its current position.
+     *
+     * @param message message to encode.
+     * @param target buffer with at least getMaxEncodedSize(message) bytes remaining.
+     */
+    void encode(T message, ByteBuffer target);
+
+    /**
+     * Reads a message from the source buffer.
+     * The buffer is only valid during the call, so the returned message must not refer to it.
+     *
+     * @param source buffer positioned at the start of the encoded message, with its limit at the end of it.
+     * @return the decoded message.
+     * @throws java.nio.BufferUnderflowException if the data ends before the message is complete.
+     */
+    T decode(ByteBuffer source);
+
+}
@@ -0,0 +1,231 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+
+import java.nio.ByteBuffer;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Limits the number of messages and bytes per second received from each connection, with a token bucket for each,
+ * so that an abusive client can not make the application spend its CPU on decoding and handling its messages.
+ *
+ * Should be placed after the framing filter and before any decoding filters, so that excess messages are handled
+ * while they are still ByteBuffers.  Bytes are counted for received ByteBuffers only.
+ *
+ * Each bucket holds one second worth of tokens, but at least one message, allowing short bursts.  A message is let through while there are
+ * tokens for at least one message and one byte left, so a message larger than the byte bucket still gets through
+ * when the bucket is full, and takes the byte bucket negative until it has been refilled.
+ *
+ * What happens to messages exceeding the limits is determined by the ExcessPolicy.
+ * An error is reported to the higher levels each time a connection starts exceeding the limits.
+ *
+ * The buckets of each connection are stored in the custom data of the connection,
+ * so one filter instance can be used for all connections of a network.
+ */
+public final class RateLimitFilter implements BatchMessageFilter {
+
+    /**
+     * Error type passed to onError when a connection starts exceeding the rate limits.
+     */
+    public static final String RATE_LIMIT_ERROR = "rate_limit";
+
+    /**
+     * Determines what happens to received messages that exceed the rate limits.
+     */
+    public static enum ExcessPolicy {
+
+        /**
+         * Messages exceeding the limits are discarded.
+         */
+        DROP,
+
+        /**
+         * All messages are passed on, but reading from the connection is paused until the buckets have been refilled,
+         * so that the client is slowed down by TCP flow control.  Messages that were already read are not delayed.
+         */
+        DELAY,
+
+        /**
+         * The connection is disconnected when a message exceeds the limits.
+         * The messages of the same batch are discarded, as are any messages received after the disconnect.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Token buckets of a connection.  Only accessed by the thread receiving messages from the connection.
+     */
+    private static final class RateState {
+        private double messageTokens;
+        private double byteTokens;
+        private long lastRefillTime;
+        private boolean exceeding;
+        private boolean disconnected;
+
+        private RateState(double messageTokens, double byteTokens, long currentTime) {
+            this.messageTokens = messageTokens;
+            this.byteTokens = byteTokens;
+            this.lastRefillTime = currentTime;
+        }
+    }
+
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final ExcessPolicy excessPolicy;
+    private final String rateStateKey;
+
+    /**
+     * @param messagesPerSecond max number of messages received per second from each connection, or 0 for no limit.
+     * @param bytesPerSecond max number of bytes received per second from each connection, or 0 for no limit.
+     * @param excessPolicy what to do with messages that exceed the limits.
+     */
+    public RateLimitFilter(double messagesPerSecond, double bytesPerSecond, ExcessPolicy excessPolicy) {
+        if (!(messagesPerSecond >= 0)) throw new IllegalArgumentException("messagesPerSecond should be zero or positive, but was " + messagesPerSecond);
+        if (!(bytesPerSecond >= 0)) throw new IllegalArgumentException("bytesPerSecond should be zero or positive, but was " + bytesPerSecond);
+        notNull(excessPolicy, "excessPolicy");
+
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.excessPolicy = excessPolicy;
+
+        rateStateKey = RateLimitFilter.class.getName() + "@" + System.identityHashCode(this);
+    }
+
+    @Override public void receiveMessage(Connection connection, Object message, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        if (admit(connection, getState(connection), message, nextFilter, previousFilter)) {
+            nextFilter.onMessage(connection, message);
+        }
+    }
+
+    @Override public void receiveMessages(Connection connection, MessageBatch messages, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        final RateState state = getState(connection);
+
+        // Remove excess messages from the batch in place.  With the DISCONNECT policy the whole batch is discarded
+        // when a message exceeds the limits, including the messages admitted before it, as the connection is being
+        // closed and the application should not act on anything more from it.
+        int admittedCount = 0;
+        final int count = messages.size();
+        for (int i = 0; i < count; i++) {
+            final Object message = messages.get(i);
+            if (admit(connection, state, message, nextFilter, previousFilter)) {
+                messages.set(admittedCount++, message);
+            }
+            else if (excessPolicy == ExcessPolicy.DISCONNECT) {
+                admittedCount = 0;
+                break;
+            }
+        }
+        messages.truncate(admittedCount);
+
+        if (!messages.isEmpty()) messages.deliverTo(connection, nextFilter);
+    }
+
+    @Override public void sendMessage(Connection connection, Object message, LowerLevel nextFilter, ConnectionListener previousFilter) {
+        nextFilter.sendMessage(connection, message);
+    }
+
+    @Override public void receiveConnect(Connection connection, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        nextFilter.onConnected(connection);
+    }
+
+    @Override public void receiveDisconnect(Connection connection, ConnectionListener nextFilter) {
+        connection.setCustomData(rateStateKey, null);
+        nextFilter.onDisconnected(connection);
+    }
+
+    @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+        nextFilter.sendDisconnect(connection);
+    }
+
+    /**
+     * Takes tokens for the message from the buckets of the connection, and applies the excess policy if needed.
+     * @return true if the message should be passed on.
+     */
+    private boolean admit(final Connection connection, final RateState state, Object message, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        // Messages already read when the connection was disconnected are discarded
+        if (state.disconnected) return false;
+
+        refill(state, System.nanoTime());
+
+        final boolean withinLimits = (messagesPerSecond <= 0 || state.messageTokens >= 1) &&
+                                     (bytesPerSecond <= 0 || state.byteTokens > 0);
+
+        if (withinLimits || excessPolicy == ExcessPolicy.DELAY) {
+            if (messagesPerSecond > 0) state.messageTokens--;
+            if (bytesPerSecond > 0 && message instanceof ByteBuffer) state.byteTokens -= ((ByteBuffer) message).remaining();
+        }
+
+        if (withinLimits) {
+            state.exceeding = false;
+            if (excessPolicy == ExcessPolicy.DELAY) pauseIfInDebt(connection, state);
+            return true;
+        }
+
+        final boolean startedExceeding = !state.exceeding;
+        state.exceeding = true;
+
+        switch (excessPolicy) {
+            case DELAY:
+                if (startedExceeding) {
+                    nextFilter.onError(connection, RATE_LIMIT_ERROR, "Receiving faster than the rate limit, reading is delayed");
+                }
+                pauseIfInDebt(connection, state);
+                return true;
+
+            case DISCONNECT:
+                state.disconnected = true;
+                nextFilter.onError(connection, RATE_LIMIT_ERROR, "Receiving faster than the rate limit.  Disconnecting.");
+                previousFilter.sendDisconnect(connection);
+                return false;
+
+            case DROP:
+            default:
+                if (startedExceeding) {
+                    nextFilter.onError(connection, RATE_LIMIT_ERROR, "Receiving faster than the rate limit, excess messages are dropped");
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Pauses reading from the connection until the buckets have been refilled, if they are empty.
+     * The pause is removed by the timer of the connection, which cancels it if the connection is closed first.
+     */
+    private void pauseIfInDebt(Connection connection, RateState state) {
+        long delayMilliseconds = 0;
+        if (messagesPerSecond > 0 && state.messageTokens < 0) {
+            delayMilliseconds = Math.max(delayMilliseconds, (long) Math.ceil(-state.messageTokens * 1000 / messagesPerSecond));
+        }
+        if (bytesPerSecond > 0 && state.byteTokens < 0) {
+            delayMilliseconds = Math.max(delayMilliseconds, (long) Math.ceil(-state.byteTokens * 1000 / bytesPerSecond));
+        }
+
+        if (delayMilliseconds > 0) connection.pauseReading((int) Math.min(delayMilliseconds, Integer.MAX_VALUE));
+    }
+
+    private void refill(RateState state, long currentTime) {
+        final double elapsedSeconds = (currentTime - state.lastRefillTime) / 1000000000.0;
+        if (messagesPerSecond > 0) state.messageTokens = Math.min(messageBucketSize(), state.messageTokens + elapsedSeconds * messagesPerSecond);
+        if (bytesPerSecond > 0) state.byteTokens = Math.min(bytesPerSecond, state.byteTokens + elapsedSeconds * bytesPerSecond);
+        state.lastRefillTime = currentTime;
+    }
+
+    private double messageBucketSize() {
+        return Math.max(1, messagesPerSecond);
+    }
+
+    /**
+     * Only called from the thread receiving messages from the connection, so the state is never created twice.
+     */
+    private RateState getState(Connection connection) {
+        RateState state = connection.getCustomData(rateStateKey);
+        if (state == null) {
+            state = new RateState(messageBucketSize(), bytesPerSecond, System.nanoTime());
+            connection.setCustomData(rateStateKey, state);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,212 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Converts sent message objects to bytes, and received bytes back to message objects.
+ *
+ * Each message class is registered with a compact integer id and a codec.  Sent messages are encoded by their codec
+ * directly into a buffer from the buffer pool, prefixed with the id of their class as a variable length integer.
+ * Received ByteBuffers are decoded by the codec registered for the id they start with, without copying them first.
+ *
+ * Should be placed above a framing filter, so that each received buffer contains exactly one message.
+ *
+ * Registering message classes is thread safe, but should normally be done before any messages are sent or received.
+ * Messages are looked up by their exact class, subclasses of registered classes need to be registered separately.
+ */
+public final class SerializationFilter implements BatchMessageFilter {
+
+    /**
+     * Error type passed to onError when a message with an unregistered id is received.  The message is discarded.
+     */
+    public static final String UNKNOWN_MESSAGE_TYPE_ERROR = "unknown_message_type";
+
+    /**
+     * Error type passed to onError when a received message could not be decoded.  The message is discarded.
+     */
+    public static final String MALFORMED_MESSAGE_ERROR = "malformed_message";
+
+    /**
+     * Largest supported message class id.  Ids are used as indexes into a lookup table, so they should be kept small.
+     */
+    public static final int MAX_MESSAGE_ID = 0xFFFF;
+
+    private static final int MAX_ID_LENGTH = 3;
+
+    /**
+     * A registered message class.
+     */
+    private static final class Registration {
+        private final int id;
+        private final Class<?> messageType;
+        private final MessageCodec<Object> codec;
+
+        @SuppressWarnings("unchecked")
+        private Registration(int id, Class<?> messageType, MessageCodec<?> codec) {
+            this.id = id;
+            this.messageType = messageType;
+            this.codec = (MessageCodec<Object>) codec;
+        }
+    }
+
+    private final BufferPool bufferPool;
+
+    // Replaced with updated copies when classes are registered, so that lookups need no locking
+    private volatile Map<Class<?>, Registration> registrationsByType = new IdentityHashMap<Class<?>, Registration>();
+    private volatile Registration[] registrationsById = new Registration[0];
+    private final Object registrationLock = new Object();
+
+    /**
+     * Creates a serialization filter that gets buffers for encoded messages from the default buffer pool.
+     */
+    public SerializationFilter() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool pool to get buffers for encoded messages from.
+     */
+    public SerializationFilter(BufferPool bufferPool) {
+        notNull(bufferPool, "bufferPool");
+
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Registers a message class, so that messages of it can be sent and received.
+     * Both ends of a connection must register the same classes with the same ids.
+     *
+     * @param id id that identifies the message class in the encoded data, from 0 to MAX_MESSAGE_ID.
+     * @param messageType class of the messages.
+     * @param codec codec used to encode and decode the messages.
+     * @throws IllegalArgumentException if the id or class is already registered.
+     */
+    public <T> void register(int id, Class<T> messageType, MessageCodec<? super T> codec) {
+        notNull(messageType, "messageType");
+        notNull(codec, "codec");
+        if (id < 0 || id > MAX_MESSAGE_ID) throw new IllegalArgumentException("The message id should be in the range 0.." + MAX_MESSAGE_ID + ", but was " + id);
+
+        synchronized (registrationLock) {
+            if (registrationsByType.containsKey(messageType)) throw new IllegalArgumentException("The message class " + messageType.getName() + " is already registered");
+            if (id < registrationsById.length && registrationsById[id] != null) throw new IllegalArgumentException("The message id " + id + " is already used by " + registrationsById[id].messageType.getName());
+
+            final Registration registration = new Registration(id, messageType, codec);
+
+            final Map<Class<?>, Registration> newRegistrationsByType = new IdentityHashMap<Class<?>, Registration>(registrationsByType);
+            newRegistrationsByType.put(messageType, registration);
+
+            final Registration[] newRegistrationsById = new Registration[Math.max(registrationsById.length, id + 1)];
+            System.arraycopy(registrationsById, 0, newRegistrationsById, 0, registrationsById.length);
+            newRegistrationsById[id] = registration;
+
+            registrationsByType = newRegistrationsByType;
+            registrationsById = newRegistrationsById;
+        }
+    }
+
+    @Override public void receiveMessage(Connection connection,
+                                         Object message,
+                                         ConnectionListener nextFilter,
+                                         LowerLevel previousFilter) {
+        final Object decodedMessage = decode(connection, (ByteBuffer) message, nextFilter);
+        if (decodedMessage != null) nextFilter.onMessage(connection, decodedMessage);
+    }
+
+    /**
+     * Decodes the batch in place, and passes on the decoded messages as one batch.
+     * Errors for messages that could not be decoded are reported before the batch is passed on.
+     */
+    @Override public void receiveMessages(Connection connection,
+                                          MessageBatch messages,
+                                          ConnectionListener nextFilter,
+                                          LowerLevel previousFilter) {
+        int size = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            final Object decodedMessage = decode(connection, (ByteBuffer) messages.get(i), nextFilter);
+            if (decodedMessage != null) messages.set(size++, decodedMessage);
+        }
+        messages.truncate(size);
+
+        if (size > 0) messages.deliverTo(connection, nextFilter);
+    }
+
+    /**
+     * @return the decoded message, or null if it could not be decoded, in which case the error has been reported to nextFilter.
+     */
+    private Object decode(Connection connection, ByteBuffer data, ConnectionListener nextFilter) {
+        try {
+            final int id = readId(data);
+            final Registration[] registrations = registrationsById;
+            if (id < 0 || id >= registrations.length || registrations[id] == null) {
+                nextFilter.onError(connection, UNKNOWN_MESSAGE_TYPE_ERROR, "Received a message with the unregistered message id " + id);
+                return null;
+            }
+
+            return registrations[id].codec.decode(data);
+        } catch (RuntimeException e) {
+            nextFilter.onError(connection, MALFORMED_MESSAGE_ERROR, "Could not decode a received message: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override public void sendMessage(Connection connection,
+                                      Object message,
+                                      LowerLevel nextFilter,
+                                      ConnectionListener previousFilter) {
+        notNull(message, "message");
+
+        final Registration registration = registrationsByType.get(message.getClass());
+        if (registration == null) throw new IllegalArgumentException("The message class " + message.getClass().getName() + " has not been registered with the " + getClass().getSimpleName());
+
+        final ByteBuffer buffer = bufferPool.acquire(MAX_ID_LENGTH + registration.codec.getMaxEncodedSize(message));
+        try {
+            writeId(buffer, registration.id);
+            registration.codec.encode(message, buffer);
+        } catch (RuntimeException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+
+        nextFilter.sendMessage(connection, buffer);
+    }
+
+    @Override public void receiveConnect(Connection connection, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        nextFilter.onConnected(connection);
+    }
+
+    @Override public void receiveDisconnect(Connection connection, ConnectionListener nextFilter) {
+        nextFilter.onDisconnected(connection);
+    }
+
+    @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+        nextFilter.sendDisconnect(connection);
+    }
+
+    private static void writeId(ByteBuffer target, int id) {
+        while ((id & ~0x7F) != 0) {
+            target.put((byte) ((id & 0x7F) | 0x80));
+            id >>>= 7;
+        }
+        target.put((byte) id);
+    }
+
+    private static int readId(ByteBuffer source) {
+        int id = 0;
+        for (int shift = 0; shift < 7 * MAX_ID_LENGTH; shift += 7) {
+            final byte b = source.get();
+            id |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return id;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,64 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+
+/**
+ * Base class for TransformingMessageFilters.
+ * Passes messages through the transform methods, and passes connect and disconnect events on unchanged.
+ * Received batches are transformed in place and passed on as one batch.
+ * By default the transform methods pass messages on unchanged too.
+ */
+public abstract class TransformingFilterBase implements TransformingMessageFilter, BatchMessageFilter {
+
+    @Override public Object transformReceivedMessage(Connection connection, Object message) {
+        return message;
+    }
+
+    @Override public Object transformSentMessage(Connection connection, Object message) {
+        return message;
+    }
+
+    @Override public final void receiveMessage(Connection connection,
+                                               Object message,
+                                               ConnectionListener nextFilter,
+                                               LowerLevel previousFilter) {
+        final Object transformedMessage = transformReceivedMessage(connection, message);
+        if (transformedMessage != null) nextFilter.onMessage(connection, transformedMessage);
+    }
+
+    @Override public final void receiveMessages(Connection connection,
+                                                MessageBatch messages,
+                                                ConnectionListener nextFilter,
+                                                LowerLevel previousFilter) {
+        int size = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            final Object transformedMessage = transformReceivedMessage(connection, messages.get(i));
+            if (transformedMessage != null) messages.set(size++, transformedMessage);
+        }
+        messages.truncate(size);
+
+        if (size > 0) messages.deliverTo(connection, nextFilter);
+    }
+
+    @Override public final void sendMessage(Connection connection,
+                                            Object message,
+                                            LowerLevel nextFilter,
+                                            ConnectionListener previousFilter) {
+        final Object transformedMessage = transformSentMessage(connection, message);
+        if (transformedMessage != null) nextFilter.sendMessage(connection, transformedMessage);
+    }
+
+    @Override public void receiveConnect(Connection connection, ConnectionListener nextFilter, LowerLevel previousFilter) {
+        nextFilter.onConnected(connection);
+    }
+
+    @Override public void receiveDisconnect(Connection connection, ConnectionListener nextFilter) {
+        nextFilter.onDisconnected(connection);
+    }
+
+    @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+        nextFilter.sendDisconnect(connection);
+    }
+}
@@ -0,0 +1,34 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+
+/**
+ * A MessageFilter that turns each message into at most one other message, without sending replies
+ * or otherwise needing access to the adjacent levels.
+ *
+ * The FilterChainImpl can fuse consecutive transforming filters into one loop over the filters when it is compiled,
+ * instead of passing each message through a separate chain link for each filter.
+ * The receiveMessage and sendMessage methods must behave the same way as passing the result of the transform
+ * methods on to the next filter, TransformingFilterBase implements them like that.
+ */
+public interface TransformingMessageFilter extends MessageFilter {
+
+    /**
+     * Called when a message is received from the lower level network side.
+     *
+     * @param connection connection that the message is received from.
+     * @param message received message.
+     * @return the message to pass on to the next higher level, or null to discard the message.
+     */
+    Object transformReceivedMessage(Connection connection, Object message);
+
+    /**
+     * Called when a message is received from the higher level application side.
+     *
+     * @param connection connection that the message is to be sent with.
+     * @param message message to send.
+     * @return the message to pass on to the next lower level, or null to discard the message.
+     */
+    Object transformSentMessage(Connection connection, Object message);
+
+}
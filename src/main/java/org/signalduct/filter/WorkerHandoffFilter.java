@@ -0,0 +1,210 @@
+package org.signalduct.filter;
+
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.utils.BufferPool;
+import org.signalduct.utils.SerialExecutor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Hands received messages over from the network thread to a shared worker pool, so that the filters above this one
+ * are run in the worker threads.  That way CPU heavy filters, such as compression or encryption, can use all cores
+ * instead of only the network threads.
+ *
+ * Each connection gets its own SerialExecutor on top of the worker pool, so the messages, connects and disconnects
+ * of a connection are still passed on in the order they were received, while different connections are processed
+ * in parallel.  Reading from a connection is paused while too many of its messages are waiting for a worker.
+ *
+ * Received ByteBuffers are only valid until the receive call returns, so they are copied into buffers from the
+ * buffer pool, which are released when the next filter returns.  Other message types are passed on as they are,
+ * and should not be modified by lower levels after they have been passed on.
+ *
+ * Sent messages pass through in the calling thread, which is usually already an application or worker thread.
+ *
+ * The executor of each connection is stored in the custom data of the connection,
+ * so one filter instance can be used for all connections of a network.
+ */
+public final class WorkerHandoffFilter implements BatchMessageFilter {
+
+    /**
+     * Default number of messages that may wait for a worker before reading from the connection is paused.
+     */
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 1024;
+
+    /**
+     * Handoff state of a connection.
+     */
+    private static final class HandoffState {
+        private final SerialExecutor executor;
+        private final AtomicInteger pendingMessages = new AtomicInteger(0);
+        private final AtomicBoolean pausedReading = new AtomicBoolean(false);
+
+        private HandoffState(SerialExecutor executor) {
+            this.executor = executor;
+        }
+    }
+
+    private final Executor workerPool;
+    private final int maxPendingMessages;
+    private final BufferPool bufferPool;
+    private final String handoffStateKey;
+
+    /**
+     * Creates a handoff filter with the default max pending messages per connection, that copies received buffers
+     * into buffers from the default buffer pool.
+     *
+     * @param workerPool executor to process received messages with.  Not shut down by the filter.
+     */
+    public WorkerHandoffFilter(Executor workerPool) {
+        this(workerPool, DEFAULT_MAX_PENDING_MESSAGES, BufferPool.getDefault());
+    }
+
+    /**
+     * @param workerPool executor to process received messages with.  Not shut down by the filter.
+     * @param maxPendingMessages number of messages of a connection that may wait for a worker before reading from
+     *                           the connection is paused.  Reading is resumed when a quarter of that remains.
+     * @param bufferPool pool to get buffers for copies of received buffers from.
+     */
+    public WorkerHandoffFilter(Executor workerPool, int maxPendingMessages, BufferPool bufferPool) {
+        notNull(workerPool, "workerPool");
+        positive(maxPendingMessages, "maxPendingMessages");
+        notNull(bufferPool, "bufferPool");
+
+        this.workerPool = workerPool;
+        this.maxPendingMessages = maxPendingMessages;
+        this.bufferPool = bufferPool;
+
+        handoffStateKey = WorkerHandoffFilter.class.getName() + "@" + System.identityHashCode(this);
+    }
+
+    /**
+     * @return number of received messages of the connection that are waiting for a worker or being processed.
+     */
+    public int getPendingMessageCount(Connection connection) {
+        final HandoffState state = connection.getCustomData(handoffStateKey);
+        return state == null ? 0 : state.pendingMessages.get();
+    }
+
+    @Override public void receiveMessage(final Connection connection, Object message, final ConnectionListener nextFilter, LowerLevel previousFilter) {
+        final HandoffState state = getState(connection);
+        final Object ownedMessage = copyIfNeeded(message);
+
+        messagesQueued(connection, state, 1);
+        state.executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    nextFilter.onMessage(connection, ownedMessage);
+                } finally {
+                    releaseCopy(ownedMessage);
+                    messagesProcessed(connection, state, 1);
+                }
+            }
+        });
+    }
+
+    @Override public void receiveMessages(final Connection connection, MessageBatch messages, final ConnectionListener nextFilter, LowerLevel previousFilter) {
+        final HandoffState state = getState(connection);
+
+        // The batch is reused by the lower level once this call returns
+        final int count = messages.size();
+        final MessageBatch ownedMessages = new MessageBatch(count);
+        for (int i = 0; i < count; i++) {
+            ownedMessages.add(copyIfNeeded(messages.get(i)));
+        }
+
+        messagesQueued(connection, state, count);
+        state.executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    ownedMessages.deliverTo(connection, nextFilter);
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        releaseCopy(ownedMessages.get(i));
+                    }
+                    messagesProcessed(connection, state, count);
+                }
+            }
+        });
+    }
+
+    @Override public void sendMessage(Connection connection, Object message, LowerLevel nextFilter, ConnectionListener previousFilter) {
+        nextFilter.sendMessage(connection, message);
+    }
+
+    @Override public void receiveConnect(final Connection connection, final ConnectionListener nextFilter, LowerLevel previousFilter) {
+        getState(connection).executor.execute(new Runnable() {
+            @Override public void run() {
+                nextFilter.onConnected(connection);
+            }
+        });
+    }
+
+    @Override public void receiveDisconnect(final Connection connection, final ConnectionListener nextFilter) {
+        final HandoffState state = connection.getCustomData(handoffStateKey);
+        if (state == null) {
+            // Nothing has been handed off for the connection, so there is nothing to keep the disconnect in order with
+            nextFilter.onDisconnected(connection);
+        }
+        else {
+            state.executor.execute(new Runnable() {
+                @Override public void run() {
+                    connection.setCustomData(handoffStateKey, null);
+                    nextFilter.onDisconnected(connection);
+                }
+            });
+        }
+    }
+
+    @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+        nextFilter.sendDisconnect(connection);
+    }
+
+    /**
+     * Only called from the network thread of the connection, so the state is never created twice.
+     */
+    private HandoffState getState(Connection connection) {
+        HandoffState state = connection.getCustomData(handoffStateKey);
+        if (state == null) {
+            state = new HandoffState(new SerialExecutor(workerPool));
+            connection.setCustomData(handoffStateKey, state);
+        }
+        return state;
+    }
+
+    private Object copyIfNeeded(Object message) {
+        if (message instanceof ByteBuffer) {
+            final ByteBuffer buffer = (ByteBuffer) message;
+            final ByteBuffer copy = bufferPool.acquire(buffer.remaining());
+            copy.put(buffer.duplicate());
+            copy.flip();
+            return copy;
+        }
+        else return message;
+    }
+
+    private void releaseCopy(Object message) {
+        if (message instanceof ByteBuffer) bufferPool.release((ByteBuffer) message);
+    }
+
+    private void messagesQueued(Connection connection, HandoffState state, int count) {
+        if (state.pendingMessages.addAndGet(count) >= maxPendingMessages &&
+            state.pausedReading.compareAndSet(false, true)) {
+            connection.pauseReading();
+        }
+    }
+
+    private void messagesProcessed(Connection connection, HandoffState state, int count) {
+        if (state.pendingMessages.addAndGet(-count) <= maxPendingMessages / 4 &&
+            state.pausedReading.compareAndSet(true, false)) {
+            connection.resumeReading();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package org.signalduct.filter.impl;
 
 import org.signalduct.Connection;
+import org.signalduct.BatchConnectionListener;
 import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.filter.BatchMessageFilter;
 import org.signalduct.filter.LowerLevel;
 import org.signalduct.filter.MessageFilter;
+import org.signalduct.metrics.LatencyHistogram;
 
 import static org.flowutils.Check.notNull;
 
@@ -13,19 +17,42 @@ import static org.flowutils.Check.notNull;
  *
  * This class is package protected, as it is not needed outside this package.
  */
-final class FilterChainLink implements LowerLevel, ConnectionListener {
+final class FilterChainLink implements LowerLevel, BatchConnectionListener {
+
+    /**
+     * Time spent in timed links called from within the current timed link of each thread,
+     * so that each link records only the time spent in its own filter.
+     */
+    private static final ThreadLocal<long[]> NESTED_TIME = new ThreadLocal<long[]>() {
+        @Override protected long[] initialValue() {
+            return new long[1];
+        }
+    };
 
     private final MessageFilter messageFilter;
+    private final ConnectionListener higherLevel;
+    private final LatencyHistogram processingTime;
     private LowerLevel lowerLevel;
-    private ConnectionListener higherLevel;
 
-    protected FilterChainLink(MessageFilter messageFilter, LowerLevel lowerLevel, ConnectionListener higherLevel) {
+    /**
+     * Links are created from the highest level downwards, so the lower level is set separately with setLowerLevel,
+     * before the link is published for use by other threads.
+     */
+    protected FilterChainLink(MessageFilter messageFilter, ConnectionListener higherLevel) {
+        this(messageFilter, higherLevel, null);
+    }
+
+    /**
+     * @param processingTime histogram to record the time spent in the filter for each received message, batch,
+     *                       and sent message, or null to not time the filter.
+     */
+    protected FilterChainLink(MessageFilter messageFilter, ConnectionListener higherLevel, LatencyHistogram processingTime) {
         notNull(messageFilter, "messageFilter");
+        notNull(higherLevel, "higherLevel");
 
         this.messageFilter = messageFilter;
-
-        setLowerLevel(lowerLevel);
-        setHigherLevel(higherLevel);
+        this.higherLevel = higherLevel;
+        this.processingTime = processingTime;
     }
 
     protected void setLowerLevel(LowerLevel lowerLevel) {
@@ -34,12 +61,6 @@ final class FilterChainLink implements LowerLevel, ConnectionListener {
         this.lowerLevel = lowerLevel;
     }
 
-    protected void setHigherLevel(ConnectionListener higherLevel) {
-        notNull(higherLevel, "higherLevel");
-
-        this.higherLevel = higherLevel;
-    }
-
     protected MessageFilter getMessageFilter() {
         return messageFilter;
     }
@@ -49,11 +70,72 @@ final class FilterChainLink implements LowerLevel, ConnectionListener {
     }
 
     @Override public void onMessage(Connection connection, Object message) {
-        messageFilter.receiveMessage(connection, message, higherLevel, lowerLevel);
+        if (processingTime == null) {
+            messageFilter.receiveMessage(connection, message, higherLevel, lowerLevel);
+            return;
+        }
+
+        final long[] nestedTime = NESTED_TIME.get();
+        final long nestedTimeBefore = nestedTime[0];
+        final long startTime = System.nanoTime();
+        try {
+            messageFilter.receiveMessage(connection, message, higherLevel, lowerLevel);
+        } finally {
+            recordTime(nestedTime, nestedTimeBefore, startTime);
+        }
+    }
+
+    @Override public void onMessages(Connection connection, MessageBatch messages) {
+        if (processingTime == null) {
+            receiveMessages(connection, messages);
+            return;
+        }
+
+        final long[] nestedTime = NESTED_TIME.get();
+        final long nestedTimeBefore = nestedTime[0];
+        final long startTime = System.nanoTime();
+        try {
+            receiveMessages(connection, messages);
+        } finally {
+            recordTime(nestedTime, nestedTimeBefore, startTime);
+        }
+    }
+
+    private void receiveMessages(Connection connection, MessageBatch messages) {
+        if (messageFilter instanceof BatchMessageFilter) {
+            ((BatchMessageFilter) messageFilter).receiveMessages(connection, messages, higherLevel, lowerLevel);
+        }
+        else {
+            for (int i = 0; i < messages.size(); i++) {
+                messageFilter.receiveMessage(connection, messages.get(i), higherLevel, lowerLevel);
+            }
+        }
     }
 
     @Override public void sendMessage(Connection connection, Object message) {
-        messageFilter.sendMessage(connection, message, lowerLevel, higherLevel);
+        if (processingTime == null) {
+            messageFilter.sendMessage(connection, message, lowerLevel, higherLevel);
+            return;
+        }
+
+        final long[] nestedTime = NESTED_TIME.get();
+        final long nestedTimeBefore = nestedTime[0];
+        final long startTime = System.nanoTime();
+        try {
+            messageFilter.sendMessage(connection, message, lowerLevel, higherLevel);
+        } finally {
+            recordTime(nestedTime, nestedTimeBefore, startTime);
+        }
+    }
+
+    /**
+     * Records the time since the start, minus the time spent in the timed links that the filter passed the message
+     * on to, and adds the whole time to the nested time of any enclosing timed link.
+     */
+    private void recordTime(long[] nestedTime, long nestedTimeBefore, long startTime) {
+        final long elapsedTime = System.nanoTime() - startTime;
+        processingTime.record(elapsedTime - (nestedTime[0] - nestedTimeBefore));
+        nestedTime[0] = nestedTimeBefore + elapsedTime;
     }
 
     @Override public void onDisconnected(Connection connection) {
@@ -64,6 +146,11 @@ final class FilterChainLink implements LowerLevel, ConnectionListener {
         messageFilter.sendDisconnect(connection, lowerLevel);
     }
 
+    @Override public void onWritabilityChanged(Connection connection, boolean writable) {
+        // Forward writability changes up to the application
+        higherLevel.onWritabilityChanged(connection, writable);
+    }
+
     @Override public void onError(Connection connection, String errorType, String errorDescription) {
         // Forward errors up to the application
         higherLevel.onError(connection, errorType, errorDescription);
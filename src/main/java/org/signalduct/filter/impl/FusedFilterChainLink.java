@@ -0,0 +1,111 @@
+package org.signalduct.filter.impl;
+
+import org.signalduct.Connection;
+import org.signalduct.BatchConnectionListener;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.filter.LowerLevel;
+import org.signalduct.filter.TransformingMessageFilter;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Takes the place of a run of consecutive transforming filters in a compiled filter chain.
+ * Passes messages through all the filters of the run in a single loop, instead of through one link per filter.
+ * Batches are transformed in place, and passed on as one batch.  Other events are passed through the ordinary links of the run.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class FusedFilterChainLink implements LowerLevel, BatchConnectionListener {
+
+    private final TransformingMessageFilter[] filters;
+    private final FilterChainLink lowestLink;
+    private final FilterChainLink highestLink;
+    private final ConnectionListener higherLevel;
+    private LowerLevel lowerLevel;
+
+    /**
+     * @param filters the filters of the run, from the lowest level to the highest.
+     * @param lowestLink ordinary link of the lowest filter of the run.
+     * @param highestLink ordinary link of the highest filter of the run.
+     * @param higherLevel the next higher level above the run.
+     */
+    FusedFilterChainLink(TransformingMessageFilter[] filters,
+                         FilterChainLink lowestLink,
+                         FilterChainLink highestLink,
+                         ConnectionListener higherLevel) {
+        notNull(filters, "filters");
+        notNull(lowestLink, "lowestLink");
+        notNull(highestLink, "highestLink");
+        notNull(higherLevel, "higherLevel");
+
+        this.filters = filters;
+        this.lowestLink = lowestLink;
+        this.highestLink = highestLink;
+        this.higherLevel = higherLevel;
+    }
+
+    void setLowerLevel(LowerLevel lowerLevel) {
+        notNull(lowerLevel, "lowerLevel");
+
+        this.lowerLevel = lowerLevel;
+    }
+
+    @Override public void onMessage(Connection connection, Object message) {
+        final TransformingMessageFilter[] filters = this.filters;
+        for (int i = 0; i < filters.length; i++) {
+            message = filters[i].transformReceivedMessage(connection, message);
+            if (message == null) return;
+        }
+
+        higherLevel.onMessage(connection, message);
+    }
+
+    @Override public void onMessages(Connection connection, MessageBatch messages) {
+        final TransformingMessageFilter[] filters = this.filters;
+
+        // Transform the messages in place, compacting the batch over any dropped messages
+        int size = 0;
+        for (int m = 0; m < messages.size(); m++) {
+            Object message = messages.get(m);
+            for (int i = 0; i < filters.length && message != null; i++) {
+                message = filters[i].transformReceivedMessage(connection, message);
+            }
+
+            if (message != null) messages.set(size++, message);
+        }
+        messages.truncate(size);
+
+        if (size > 0) messages.deliverTo(connection, higherLevel);
+    }
+
+    @Override public void sendMessage(Connection connection, Object message) {
+        final TransformingMessageFilter[] filters = this.filters;
+        for (int i = filters.length - 1; i >= 0; i--) {
+            message = filters[i].transformSentMessage(connection, message);
+            if (message == null) return;
+        }
+
+        lowerLevel.sendMessage(connection, message);
+    }
+
+    @Override public void onConnected(Connection connection) {
+        lowestLink.onConnected(connection);
+    }
+
+    @Override public void onDisconnected(Connection connection) {
+        lowestLink.onDisconnected(connection);
+    }
+
+    @Override public void onWritabilityChanged(Connection connection, boolean writable) {
+        lowestLink.onWritabilityChanged(connection, writable);
+    }
+
+    @Override public void onError(Connection connection, String errorType, String errorDescription) {
+        lowestLink.onError(connection, errorType, errorDescription);
+    }
+
+    @Override public void sendDisconnect(Connection connection) {
+        highestLink.sendDisconnect(connection);
+    }
+}
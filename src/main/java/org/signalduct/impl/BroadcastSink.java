@@ -0,0 +1,97 @@
+package org.signalduct.impl;
+
+import org.signalduct.Connection;
+import org.signalduct.utils.BufferPool;
+import org.signalduct.utils.SharedBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the encoded data of a broadcast message at the network end of the filter chain, and queues views of it
+ * to all the target connections, so that the message is filtered and encoded only once.
+ *
+ * The message is passed through the filter chain with one of the targets as the connection, and the
+ * ConnectionDispatcher hands the data sent to that connection by the thread doing the broadcast to this sink
+ * instead of queueing it.  The encoded buffers are shared by all the targets, each of which writes read-only views
+ * of them, and the buffers are returned to the pool when all targets are done.  A new instance is used for each broadcast.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class BroadcastSink {
+
+    private final List<? extends ConnectionBase> targets;
+    private final ConnectionBase encodingConnection;
+    private final BufferPool bufferPool;
+    private final List<ByteBuffer[]> encodedMessages = new ArrayList<ByteBuffer[]>(1);
+
+    /**
+     * @param targets connections to send the broadcast message to.
+     * @param encodingConnection the target that the message is passed through the filter chain with.
+     * @param bufferPool pool that the encoded buffers are returned to.
+     */
+    BroadcastSink(List<? extends ConnectionBase> targets, ConnectionBase encodingConnection, BufferPool bufferPool) {
+        this.targets = targets;
+        this.encodingConnection = encodingConnection;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @return the target that the message is passed through the filter chain with.
+     */
+    ConnectionBase getEncodingConnection() {
+        return encodingConnection;
+    }
+
+    /**
+     * @return true if data sent to the connection is part of the broadcast.
+     */
+    boolean isEncodingFor(Connection connection) {
+        return connection == encodingConnection;
+    }
+
+    /**
+     * Stores the encoded data of the message until it is sent to the targets.  The sink takes ownership of the buffers.
+     */
+    void addEncodedMessage(ByteBuffer[] buffers) {
+        encodedMessages.add(buffers);
+    }
+
+    /**
+     * Queues views of the encoded data to all connected targets, and records a sent message for each of them.
+     */
+    void sendToTargets() {
+        for (ConnectionBase target : targets) {
+            if (target.isConnected()) target.recordMessageSent();
+        }
+
+        for (ByteBuffer[] buffers : encodedMessages) {
+            sendToTargets(buffers);
+        }
+    }
+
+    private void sendToTargets(ByteBuffer[] buffers) {
+        // The sink holds the first reference to each shared buffer until all targets have been given theirs
+        final SharedBuffer[] sharedBuffers = new SharedBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            sharedBuffers[i] = new SharedBuffer(buffers[i], bufferPool);
+        }
+
+        try {
+            for (ConnectionBase target : targets) {
+                if (target.isConnected()) {
+                    final ByteBuffer[] views = new ByteBuffer[sharedBuffers.length];
+                    for (int i = 0; i < sharedBuffers.length; i++) {
+                        views[i] = sharedBuffers[i].retainView();
+                    }
+                    target.queueOutgoingData(views, sharedBuffers);
+                }
+            }
+        } finally {
+            for (SharedBuffer sharedBuffer : sharedBuffers) {
+                sharedBuffer.release();
+            }
+        }
+    }
+}
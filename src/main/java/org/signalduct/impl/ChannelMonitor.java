@@ -2,27 +2,95 @@ package org.signalduct.impl;
 
 import org.flowutils.Check;
 import org.flowutils.StringUtils;
+import org.signalduct.metrics.NetworkMetrics;
+import org.signalduct.utils.ErrorReporter;
 import org.signalduct.utils.ExceptionUtils;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.channels.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Monitors new events on one or more channels, and delegates handling of the events to a derived class.
  */
 public abstract class ChannelMonitor<T extends SelectableChannel> {
 
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * Resolution of the timeouts run by the selector thread.
+     */
+    private static final int TIMER_TICK_MILLISECONDS = 100;
+
+    /**
+     * Number of buckets in the timer wheel, covering about 50 seconds with the tick length above.
+     */
+    private static final int TIMER_BUCKET_COUNT = 512;
+
+    /**
+     * Delay after an error is suppressed before the number of suppressed errors is logged.
+     */
+    private static final int SUPPRESSED_ERROR_SUMMARY_DELAY_MILLISECONDS = 10000;
+
+    /**
+     * Max time that stop() waits for the selector thread to finish handling the current network events.
+     */
+    private static final int STOP_TIMEOUT_MILLISECONDS = 10000;
+
+    /**
+     * A channel waiting to be registered with the selector by the selector thread.
+     */
+    private static final class PendingRegistration<T> {
+        private final T channel;
+        private final int interestOps;
+        private final Object attachment;
+
+        private PendingRegistration(T channel, int interestOps, Object attachment) {
+            this.channel = channel;
+            this.interestOps = interestOps;
+            this.attachment = attachment;
+        }
+    }
+
+    /**
+     * A timeout waiting to be scheduled by the selector thread.
+     */
+    private static final class PendingTimeout {
+        private final TimerWheel.Timeout timeout;
+        private final long expirationTime;
+
+        private PendingTimeout(TimerWheel.Timeout timeout, long expirationTime) {
+            this.timeout = timeout;
+            this.expirationTime = expirationTime;
+        }
+    }
+
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
     private final ConcurrentHashMap<T, SelectionKey> channels = new ConcurrentHashMap<T, SelectionKey>();
+    private final ConcurrentLinkedQueue<PendingRegistration<T>> pendingRegistrations = new ConcurrentLinkedQueue<PendingRegistration<T>>();
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+
+    // Only accessed from the selector thread, timeouts scheduled from other threads are queued
+    private final TimerWheel timerWheel = new TimerWheel(TIMER_TICK_MILLISECONDS, TIMER_BUCKET_COUNT, currentTimeMilliseconds());
+    private final ConcurrentLinkedQueue<PendingTimeout> pendingTimeouts = new ConcurrentLinkedQueue<PendingTimeout>();
 
     private Selector selector;
+    private volatile Thread selectorThread;
+    private volatile boolean closeWhenLoopExits;
+    private volatile NetworkMetrics metrics = new NetworkMetrics();
+
+    private final ErrorReporter errorReporter = new ErrorReporter(LoggerFactory.getLogger(getClass()));
+    private final AtomicBoolean suppressedErrorSummaryScheduled = new AtomicBoolean(false);
 
     protected ChannelMonitor() {
         selector = createSelector();
@@ -47,20 +115,66 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
      * @param channel a channel that should be configured as non-blocking
      */
     public final void listenToChannelEvents(T channel) throws NetworkException {
+        listenToChannelEvents(channel, channel.validOps(), null);
+    }
+
+    /**
+     * Listen to events from the specified channel.
+     *
+     * The channel is registered with the selector by the selector thread, so this method never blocks,
+     * and onChannelRegistered() is called from the selector thread once the registration is done.
+     * Channels queued from other threads while the selector thread is busy are registered together,
+     * with a single wakeup of the selector.
+     *
+     * @param channel a channel that should be configured as non-blocking
+     * @param interestOps the network events to listen to, as a combination of the SelectionKey OP_* constants.
+     * @param attachment object to attach to the selection key of the channel, or null if none.
+     *                   Can be retrieved from the selection key passed to the event handling methods.
+     * @throws NetworkException if this monitor has been stopped.
+     */
+    public final void listenToChannelEvents(T channel, int interestOps, Object attachment) throws NetworkException {
         Check.notNull(channel, "channel");
 
-        try {
-            // Listen to all valid network events:
-            SelectionKey selectionKey = channel.register(selector, channel.validOps());
+        if (stopped.get()) throw createNetworkException("Could not start listening to channel " + channel.getClass().getSimpleName() + ", the monitor has been stopped");
 
-            // Store channel
-            channels.put(channel, selectionKey);
+        pendingRegistrations.offer(new PendingRegistration<T>(channel, interestOps, attachment));
 
-        } catch (IOException e) {
-            throw createNetworkException("Could not start listening to channel " + channel.getClass().getSimpleName(), e);
+        // Make the selector notice the new channel if it is currently blocked in select
+        wakeUpSelector();
+    }
+
+    private void registerPendingChannels() {
+        PendingRegistration<T> registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            final T channel = registration.channel;
+
+            // Channels closed while waiting for registration are skipped
+            if (!channel.isOpen()) continue;
+
+            try {
+                SelectionKey selectionKey = channel.register(selector, registration.interestOps, registration.attachment);
+
+                // Store channel
+                channels.put(channel, selectionKey);
+
+                onChannelRegistered(channel, selectionKey);
+            } catch (Throwable e) {
+                reportNetworkEventException("Could not start listening to channel " + channel, e);
+            }
         }
     }
 
+    /**
+     * Stop listening to events from the specified channel.  Does not close the channel.
+     * @param channel a channel previously passed to listenToChannelEvents.
+     */
+    public final void stopListeningToChannelEvents(T channel) {
+        Check.notNull(channel, "channel");
+
+        final SelectionKey selectionKey = channels.remove(channel);
+        if (selectionKey != null) selectionKey.cancel();
+    }
+
     /**
      * Starts a listener loop in a new thread that listens to events from the channel.
      * @throws NetworkException if there was some problem with setting up the listener.
@@ -68,15 +182,97 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
     public void start() throws NetworkException {
         if (started.getAndSet(true)) throw new IllegalStateException(getClass().getSimpleName() + " already started, can't start twice!");
 
+        startSelectorThread();
+    }
+
+    /**
+     * @return true if the listener loop has been started.
+     */
+    public final boolean isStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return number of channels currently listened to.
+     */
+    public final int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return the metrics that this monitor records its activity in.
+     */
+    public final NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the reporter that exceptions from network event handling are logged with.
+     *         Its rate limit can be adjusted to allow more or fewer errors of each type to be logged.
+     */
+    public final ErrorReporter getErrorReporter() {
+        return errorReporter;
+    }
+
+    /**
+     * @param metrics metrics to record the activity of this monitor in, so that several monitors can share them.
+     *                Can only be changed before the monitor is started.
+     */
+    final void setMetrics(NetworkMetrics metrics) {
+        Check.notNull(metrics, "metrics");
+        checkNotStarted("metrics");
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * @throws IllegalStateException if the listener loop has already been started.
+     * @param setting name of the setting that can not be changed after start, used in the error message.
+     */
+    protected final void checkNotStarted(String setting) {
+        if (started.get()) throw new IllegalStateException("The " + setting + " of " + getClass().getSimpleName() + " can not be changed after it has been started");
+    }
+
+    /**
+     * Starts the listener loop thread if it has not already been started.
+     */
+    protected final void startIfNotStarted() {
+        if (!started.getAndSet(true)) startSelectorThread();
+    }
+
+    private void startSelectorThread() {
         Thread connectionListenerThread = new Thread(new Runnable() {
             @Override public void run() {
                 runNetworkEventHandlingLoop();
             }
-        });
+        }, getClass().getSimpleName() + "-" + THREAD_COUNTER.incrementAndGet());
         connectionListenerThread.setDaemon(true);
+        selectorThread = connectionListenerThread;
         connectionListenerThread.start();
     }
 
+    /**
+     * Wakes up the selector thread if it is blocked waiting for network events,
+     * so that it calls handlePendingWork() without delay.
+     *
+     * Only the first call after the selector thread last woke up calls selector.wakeup(),
+     * so a burst of calls from other threads results in a single wakeup.
+     * Calls from the selector thread itself do nothing, as it handles pending work before selecting again.
+     */
+    protected final void wakeUpSelector() {
+        if (!isInSelectorThread() && wakeupRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+            metrics.recordSelectorWakeup();
+        }
+    }
+
+    /**
+     * @return true if the calling thread is the thread that handles the network events of this monitor.
+     */
+    protected final boolean isInSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
+
 
     private void runNetworkEventHandlingLoop() {
         while(!stopped.get()) {
@@ -86,10 +282,29 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
                 reportNetworkEventException("Problem when trying to handle network events for selector " + selector, e);
             }
         }
+
+        // Stop was called from this thread, so the channels could not be closed while it was handling events
+        if (closeWhenLoopExits) {
+            try {
+                closeChannelsAndSelector();
+            } catch (Throwable e) {
+                reportNetworkEventException("Problem when stopping " + getClass().getSimpleName(), e);
+            }
+        }
     }
 
     private void handleNetworkEvents() throws IOException {
-        int numberOfNetworkEvents = selector.select();
+        // Wake up in time for the next tick of the timer if there are timeouts waiting
+        final long selectTimeout = timerWheel.getMillisecondsUntilNextTick(currentTimeMilliseconds());
+        int numberOfNetworkEvents = selectTimeout > 0 ? selector.select(selectTimeout) : selector.select();
+        final long handlingStartTime = System.nanoTime();
+
+        // Work queued after this point needs a new wakeup, work queued before it is handled below
+        wakeupRequested.set(false);
+
+        registerPendingChannels();
+        schedulePendingTimeouts();
+
         if (numberOfNetworkEvents > 0) {
             final Set<SelectionKey> networkEvents = selector.selectedKeys();
             for (SelectionKey networkEventType : networkEvents) {
@@ -104,6 +319,73 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
             // The set returned by selectedKeys() need to be emptied by the calling code after processing:
             networkEvents.clear();
         }
+
+        timerWheel.advance(currentTimeMilliseconds());
+
+        handlePendingWork();
+
+        metrics.recordSelectorLoop(System.nanoTime() - handlingStartTime);
+    }
+
+    /**
+     * @return current time in milliseconds from an arbitrary origin, that is not affected by changes to the system
+     *         clock.  Used for timeouts and for keeping track of the activity of connections.
+     */
+    static long currentTimeMilliseconds() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Runs the task in the selector thread after the delay, with a resolution of about a tenth of a second.
+     * Scheduling and cancelling take constant time, so every connection can have timeouts of its own.
+     * Exceptions thrown by the task are reported with reportNetworkEventException.  May be called from any thread.
+     *
+     * @return the timeout, that can be cancelled with cancelTimeout.
+     */
+    final TimerWheel.Timeout scheduleTimeout(final Runnable task, long delayMilliseconds) {
+        Check.notNull(task, "task");
+        Check.positiveOrZero(delayMilliseconds, "delayMilliseconds");
+
+        final TimerWheel.Timeout timeout = TimerWheel.createTimeout(new Runnable() {
+            @Override public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    reportNetworkEventException("Problem when running a timeout task " + task, e);
+                }
+            }
+        });
+
+        if (isInSelectorThread()) {
+            timerWheel.schedule(timeout, delayMilliseconds, currentTimeMilliseconds());
+        }
+        else {
+            pendingTimeouts.offer(new PendingTimeout(timeout, currentTimeMilliseconds() + delayMilliseconds));
+            wakeUpSelector();
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Cancels a timeout returned by scheduleTimeout, so that its task is not run if it has not been run yet.
+     * Cancelled timeouts are removed at once when called from the selector thread.  Timeouts cancelled from other
+     * threads stay in the timer until they expire, as the timer is only accessed from the selector thread.
+     */
+    final void cancelTimeout(TimerWheel.Timeout timeout) {
+        Check.notNull(timeout, "timeout");
+
+        if (isInSelectorThread()) timerWheel.cancel(timeout);
+        else timeout.markCancelled();
+    }
+
+    private void schedulePendingTimeouts() {
+        final long currentTime = currentTimeMilliseconds();
+
+        PendingTimeout pendingTimeout;
+        while ((pendingTimeout = pendingTimeouts.poll()) != null) {
+            timerWheel.schedule(pendingTimeout.timeout, Math.max(0, pendingTimeout.expirationTime - currentTime), currentTime);
+        }
     }
 
     private void tryToHandleNetworkEvent(SelectionKey networkEventType, T channel) {
@@ -113,12 +395,16 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
             String description = "Problem when trying to handle a " + describeNetworkEventType(networkEventType) + " " +
                                  "for channel " + channel.toString();
             reportNetworkEventException(description, e);
+            onNetworkEventFailed(networkEventType, e);
         }
     }
 
     private String describeNetworkEventType(SelectionKey networkEventType) {
         String description = "network event";
 
+        // The ready operations of a closed channel can not be queried
+        if (!networkEventType.isValid()) return description + " for a closed channel";
+
         if (networkEventType.isAcceptable()) description += " with a new incoming connection";
         if (networkEventType.isConnectable()) description += " with a completed connection";
         if (networkEventType.isReadable()) description += " with incoming data to read";
@@ -130,35 +416,48 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
     /**
      * Handles an exception that happened in network event handling code.
      * It can not be thrown upwards, because network events are handled in a separate thread.
-     * By default logs the exception.
+     * By default logs the exception with the error reporter, which limits the number of errors of each exception type
+     * that are logged, so that a flood of errors does not fill up the logs or keep the network thread busy logging.
+     * The number of suppressed errors is logged a while later.
      */
     protected void reportNetworkEventException(String description, Throwable e) {
-        String message = description + ": " + ExceptionUtils.getCauseDescription(e);
-
-        // TODO: Log & report error to listeners
-        System.out.println(message);
+        final boolean logged = errorReporter.report(e.getClass().getName(), description + ExceptionUtils.getCauseDescription(e), e);
+
+        if (!logged && !stopped.get() && !suppressedErrorSummaryScheduled.getAndSet(true)) {
+            scheduleTimeout(new Runnable() {
+                @Override public void run() {
+                    suppressedErrorSummaryScheduled.set(false);
+                    errorReporter.logSuppressedSummaries();
+                }
+            }, SUPPRESSED_ERROR_SUMMARY_DELAY_MILLISECONDS);
+        }
+    }
 
-        e.printStackTrace();
-        // TODO: In case of DDoS type attack that generates a lot of errors, or other permanent error condition,
-        // avoid filling up logs with errors if we constantly get exceptions
+    /**
+     * Called after an exception from handling a network event has been reported.
+     * Override if the implementing class can let the listeners of the channel know about the error.
+     * Should not throw exceptions.
+     */
+    protected void onNetworkEventFailed(SelectionKey selectionKey, Throwable e) {
     }
 
 
     private void handleNetworkEvent(SelectionKey networkEventType, T channel) throws Exception {
-        if (networkEventType.isAcceptable()) {
-            acceptNewConnection(channel);
+        // An earlier handler may have closed the channel, which cancels the key
+        if (networkEventType.isValid() && networkEventType.isAcceptable()) {
+            acceptNewConnection(channel, networkEventType);
         }
 
-        if (networkEventType.isConnectable()) {
-            handleConnectionCreated(channel);
+        if (networkEventType.isValid() && networkEventType.isConnectable()) {
+            handleConnectionCreated(channel, networkEventType);
         }
 
-        if (networkEventType.isReadable()) {
-            readIncomingData(channel);
+        if (networkEventType.isValid() && networkEventType.isReadable()) {
+            readIncomingData(channel, networkEventType);
         }
 
-        if (networkEventType.isWritable()) {
-            writeOutgoingData(channel);
+        if (networkEventType.isValid() && networkEventType.isWritable()) {
+            writeOutgoingData(channel, networkEventType);
         }
     }
 
@@ -166,7 +465,7 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
      * Called when a remote client connected to us.
      * Override if the implementing class can handle this type of events.
      */
-    protected void acceptNewConnection(T channel) throws Exception {
+    protected void acceptNewConnection(T channel, SelectionKey selectionKey) throws Exception {
         throw createUnsupportedEventException("accept new connection");
     }
 
@@ -174,7 +473,7 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
      * Called when a connection to a remote server is established.
      * Override if the implementing class can handle this type of events.
      */
-    protected void handleConnectionCreated(T channel) throws Exception {
+    protected void handleConnectionCreated(T channel, SelectionKey selectionKey) throws Exception {
         throw createUnsupportedEventException("new connection");
     }
 
@@ -182,7 +481,7 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
      * Called when the specified channel has incoming data to read.
      * Override if the implementing class can handle this type of events.
      */
-    protected void readIncomingData(T channel) throws Exception {
+    protected void readIncomingData(T channel, SelectionKey selectionKey) throws Exception {
         throw createUnsupportedEventException("incoming data");
     }
 
@@ -190,10 +489,25 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
      * Called when the specified channel is ready to receive outgoing data.
      * Override if the implementing class can handle this type of events.
      */
-    protected void writeOutgoingData(T channel) throws Exception {
+    protected void writeOutgoingData(T channel, SelectionKey selectionKey) throws Exception {
         throw createUnsupportedEventException("outgoing data");
     }
 
+    /**
+     * Called when a channel has been registered with the selector.
+     * Override if the implementing class needs to keep track of the selection keys of channels.
+     */
+    protected void onChannelRegistered(T channel, SelectionKey selectionKey) {
+    }
+
+    /**
+     * Called in the selector thread after each round of network event handling,
+     * and whenever the selector is woken up with wakeUpSelector().
+     * Override if the implementing class has work that needs to be done in the selector thread.
+     */
+    protected void handlePendingWork() {
+    }
+
     private IllegalStateException createUnsupportedEventException(String eventType) {
         return new IllegalStateException(getClass().getSimpleName() + " does not expect "+ eventType +" network events");
     }
@@ -201,12 +515,22 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
     /**
      * Stops the thread listening to network events, and closes the selector.
      * Also closes all the channels.
+     *
+     * Waits for the thread to finish handling the current network events first, so that the channels are not closed
+     * while they are in use.  When called from the thread itself, for example by a listener, the channels are
+     * closed by the thread after it has finished handling the current events, and this method returns at once.
      * @throws NetworkException
      */
     public void stop() throws NetworkException {
+        if (isInSelectorThread()) {
+            closeWhenLoopExits = true;
+            stopped.set(true);
+            return;
+        }
+
         stopConnectionListenerThread();
-        closeSelector();
-        closeChannels();
+        errorReporter.logSuppressedSummaries();
+        closeChannelsAndSelector();
     }
 
     private void stopConnectionListenerThread() {
@@ -214,6 +538,28 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
 
         // Wake up the selector so that the main loop can retest the stop condition
         if (selector != null) selector.wakeup();
+
+        final Thread thread = selectorThread;
+        if (thread != null) {
+            try {
+                thread.join(STOP_TIMEOUT_MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (thread.isAlive()) {
+                LoggerFactory.getLogger(getClass()).warn("The thread of " + getClass().getSimpleName() + " did not stop within " +
+                                                         STOP_TIMEOUT_MILLISECONDS + " ms, closing its channels anyway");
+            }
+        }
+    }
+
+    private void closeChannelsAndSelector() throws NetworkException {
+        try {
+            closeChannels();
+        } finally {
+            closeSelector();
+        }
     }
 
     private void closeSelector() throws NetworkException {
@@ -225,11 +571,21 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
     }
 
     private void closeChannels() throws NetworkException {
+        // Channels that were never registered are closed too
+        final List<PendingRegistration<T>> channelsToClose = new ArrayList<PendingRegistration<T>>();
+        for (Map.Entry<T, SelectionKey> entry : channels.entrySet()) {
+            channelsToClose.add(new PendingRegistration<T>(entry.getKey(), 0, entry.getValue().attachment()));
+        }
+        PendingRegistration<T> registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            channelsToClose.add(registration);
+        }
+
         List<String> problems = null;
-        for (T channel : channels.keySet()) {
+        for (PendingRegistration<T> channelToClose : channelsToClose) {
             try {
                 // Try to close a connection
-                channel.close();
+                closeChannelOnStop(channelToClose.channel, channelToClose.attachment);
 
             } catch (IOException e) {
                 final String problem = e.getClass().getSimpleName() + ": " + e.getMessage();
@@ -248,6 +604,16 @@ public abstract class ChannelMonitor<T extends SelectableChannel> {
         channels.clear();
     }
 
+    /**
+     * Called when the monitor is stopped, for each channel that it listens to or that was waiting for registration.
+     * Closes the channel.  Override if the implementing class needs to clean up after the channel as well.
+     *
+     * @param attachment the object attached to the channel when it was passed to listenToChannelEvents, or null if none.
+     */
+    protected void closeChannelOnStop(T channel, Object attachment) throws IOException {
+        channel.close();
+    }
+
     /**
      * @return a new NetworkException with the specified message and prefixed by the error prefix for this class.
      */
@@ -2,49 +2,189 @@ package org.signalduct.impl;
 
 import org.signalduct.Connection;
 import org.signalduct.ConnectionListener;
+import org.signalduct.SocketOptions;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.filter.impl.FilterChainImpl;
+import org.signalduct.utils.BufferPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 
 import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positiveOrZero;
 
 /**
  *
  */
 // TODO: Solve logging, create utility methods in flowutils
 // TODO: Also create utility method for throwing an error with some exception and message
-public class ClientNetwork extends ChannelMonitor<SocketChannel> {
+public class ClientNetwork extends ConnectionMonitor {
+
+    private final FilterChainImpl filterChain = new FilterChainImpl();
+    private final BufferPool bufferPool;
+
+    /**
+     * Default time allowed for establishing a connection.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = 10000;
 
     private ConnectionToServer connectionToServer;
+    private volatile Executor listenerExecutor;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLISECONDS;
+    private volatile SocketOptions socketOptions = new SocketOptions();
+
+    public ClientNetwork() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool pool to get buffers for network data from.
+     */
+    public ClientNetwork(BufferPool bufferPool) {
+        notNull(bufferPool, "bufferPool");
+
+        this.bufferPool = bufferPool;
+
+        final ConnectionDispatcher dispatcher = new ConnectionDispatcher();
+        filterChain.initialize(dispatcher, dispatcher);
+    }
+
+    /**
+     * @return the filter chain that messages sent and received by this network are passed through.
+     */
+    public final FilterChain getFilterChain() {
+        return filterChain;
+    }
+
+    /**
+     * Records the processing time of each filter in the metrics of this network, with some overhead per filter call.
+     * Disabled by default.
+     */
+    public final void setFilterTiming(boolean enabled) {
+        filterChain.setFilterTiming(enabled ? getMetrics() : null);
+    }
+
+    /**
+     * Sets the executor that the listeners of connections are notified with.
+     * Each connection uses a SerialExecutor on top of it, so the events of a connection are delivered in order,
+     * while different connections can be handled in parallel.  Listeners may then block, for example on database
+     * calls, without stalling network input and output.  Reading from a connection is paused if its listeners
+     * fall far behind.  VirtualThreads.newVirtualThreadPerTaskExecutor() gives each connection a virtual thread.
+     *
+     * Received ByteBuffers are copied for the listeners, as the buffers they were read into are reused.
+     *
+     * Applies to connections created after the call.  The network does not shut down the executor.
+     *
+     * @param listenerExecutor executor to notify listeners with, or null to notify them directly in the network
+     *                         threads, which is the default.
+     */
+    public final void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * @return the executor that the listeners of connections are notified with, or null if they are notified directly.
+     */
+    public final Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * @param connectTimeoutMilliseconds time allowed for establishing a connection, or 0 to wait as long as the
+     *                                   operating system does.  Connections that are not established in time are
+     *                                   closed, and their listeners get an onError call of the type "connect_timeout".
+     *                                   Defaults to DEFAULT_CONNECT_TIMEOUT_MILLISECONDS.
+     *                                   Applies to connections created after the call.
+     */
+    public final void setConnectTimeout(int connectTimeoutMilliseconds) {
+        positiveOrZero(connectTimeoutMilliseconds, "connectTimeoutMilliseconds");
+
+        connectTimeout = connectTimeoutMilliseconds;
+    }
+
+    /**
+     * @return time allowed for establishing a connection, or 0 if there is no timeout.
+     */
+    public final int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the socket options applied to every connection created by this network.
+     * Individual connections can override them with Connection.setSocketOptions.
+     *
+     * @param socketOptions options to apply.  A copy is taken, so later changes to the object have no effect.
+     *                      Defaults to options with nothing set, leaving all options at the platform defaults.
+     *                      Applies to connections created after the call.
+     */
+    public final void setSocketOptions(SocketOptions socketOptions) {
+        notNull(socketOptions, "socketOptions");
+
+        this.socketOptions = new SocketOptions(socketOptions);
+    }
+
+    /**
+     * @return a copy of the socket options applied to connections created by this network.
+     */
+    public final SocketOptions getSocketOptions() {
+        return new SocketOptions(socketOptions);
+    }
 
     public Connection connectTo(InetSocketAddress address, ConnectionListener listener) throws NetworkException {
-        notNull(address, "address");
+        return connectTo(address, listener, socketOptions);
+    }
 
-        SocketChannel channel = createNonBlockingSocketChannel();
-        listenToChannelEvents(channel);
-        connectChannelTo(channel, address);
+    /**
+     * Connects with socket options that override the socket options of this network for the new connection.
+     * Unlike Connection.setSocketOptions, the options are applied before connecting,
+     * so that receive buffers larger than 64 kB take full effect.
+     *
+     * @param socketOptionOverrides options to set for the connection in addition to, or instead of,
+     *                              the socket options of the network.
+     */
+    public Connection connectTo(InetSocketAddress address, ConnectionListener listener, SocketOptions socketOptionOverrides) throws NetworkException {
+        notNull(address, "address");
+        notNull(socketOptionOverrides, "socketOptionOverrides");
 
-        connectionToServer = new ConnectionToServer(channel);
+        SocketChannel channel = createNonBlockingSocketChannel(socketOptions.overriddenWith(socketOptionOverrides));
+        connectionToServer = new ConnectionToServer(channel, filterChain, bufferPool);
+        connectionToServer.setListenerExecutor(listenerExecutor);
+        connectionToServer.setMetrics(getMetrics());
         connectionToServer.addListener(listener);
 
+        // Listen for the completion of the connection, unless it completed immediately
+        final boolean connected = connectChannelTo(channel, address);
+        listenToConnection(connectionToServer, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+
+        final int timeout = connectTimeout;
+        if (!connected && timeout > 0) connectionToServer.startConnectTimeout(timeout);
+
+        // The connect event is delivered from the thread listening to the channel
+        startIfNotStarted();
+
         return connectionToServer;
     }
 
-    private void connectChannelTo(SocketChannel socketChannel, InetSocketAddress address) throws NetworkException {
+    private boolean connectChannelTo(SocketChannel socketChannel, InetSocketAddress address) throws NetworkException {
         try {
-            socketChannel.connect(address);
+            return socketChannel.connect(address);
         } catch (IOException e) {
             tryToCloseChannel(socketChannel);
             throw new NetworkException("Could not connect to " + address, e);
         }
     }
 
-    private SocketChannel createNonBlockingSocketChannel() throws NetworkException {
+    private SocketChannel createNonBlockingSocketChannel(SocketOptions socketOptions) throws NetworkException {
         SocketChannel socketChannel = null;
         try {
             socketChannel = SocketChannel.open();
             socketChannel.configureBlocking(false);
+
+            // Set before connecting, so that receive buffers larger than 64 kB take full effect
+            socketOptions.applyTo(socketChannel);
         } catch (IOException e) {
             tryToCloseChannel(socketChannel);
             throw new NetworkException("Could not create socket channel", e);
@@ -61,18 +201,4 @@ public class ClientNetwork extends ChannelMonitor<SocketChannel> {
             }
         }
     }
-
-    @Override protected void handleConnectionCreated(SocketChannel channel) throws Exception {
-
-
-        System.out.println("ClientNetwork.handleConnectionCreated");
-    }
-
-    @Override protected void readIncomingData(SocketChannel channel) throws Exception {
-        System.out.println("ClientNetwork.readIncomingData");
-    }
-
-    @Override protected void writeOutgoingData(SocketChannel channel) throws Exception {
-        System.out.println("ClientNetwork.writeOutgoingData");
-    }
 }
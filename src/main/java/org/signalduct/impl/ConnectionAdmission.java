@@ -0,0 +1,135 @@
+package org.signalduct.impl;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.positiveOrZero;
+
+/**
+ * Keeps count of the open connections of a server network, in total and for each remote address,
+ * and decides whether new connections can be accepted within the limits.
+ *
+ * Connections are admitted by the accepting thread, and released from the network threads that close them,
+ * so the counts are updated lock free.  The counter of an address is removed when its count drops to zero,
+ * so the addresses of past clients do not take up memory.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class ConnectionAdmission {
+
+    /**
+     * Count of a counter that has been removed from the map, and should not be used any more.
+     */
+    private static final int RETIRED = -1;
+
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> addressCounts = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    private volatile int maxConnections;
+    private volatile int maxConnectionsPerAddress;
+
+    /**
+     * @param maxConnections max number of open connections, or 0 for no limit.
+     */
+    void setMaxConnections(int maxConnections) {
+        positiveOrZero(maxConnections, "maxConnections");
+        this.maxConnections = maxConnections;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnectionsPerAddress max number of open connections from one remote address, or 0 for no limit.
+     */
+    void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        positiveOrZero(maxConnectionsPerAddress, "maxConnectionsPerAddress");
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * Counts a new connection from the address, if it is within the limits.
+     * Each admitted connection should be released with release() when it is closed.
+     *
+     * @param address remote address of the connection, or null if not known, in which case only the total is limited.
+     * @return true if the connection was admitted, false if it should be rejected.
+     */
+    boolean admit(InetAddress address) {
+        if (!increment(connectionCount, maxConnections)) return false;
+
+        if (address != null && !admitAddress(address)) {
+            connectionCount.decrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Uncounts a connection admitted with admit().
+     */
+    void release(InetAddress address) {
+        if (address != null) {
+            final AtomicInteger counter = addressCounts.get(address);
+            if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED)) {
+                addressCounts.remove(address, counter);
+            }
+        }
+
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * @return number of admitted connections that have not been released.
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return number of admitted connections from the address that have not been released.
+     */
+    int getConnectionCount(InetAddress address) {
+        final AtomicInteger counter = addressCounts.get(address);
+        return counter == null ? 0 : Math.max(0, counter.get());
+    }
+
+    private boolean admitAddress(InetAddress address) {
+        while (true) {
+            AtomicInteger counter = addressCounts.get(address);
+            if (counter == null) {
+                final AtomicInteger newCounter = new AtomicInteger(0);
+                counter = addressCounts.putIfAbsent(address, newCounter);
+                if (counter == null) counter = newCounter;
+            }
+
+            // Retry with a new counter if the counter was retired by a concurrent release
+            final int count = counter.get();
+            if (count == RETIRED) {
+                addressCounts.remove(address, counter);
+                continue;
+            }
+
+            if (increment(counter, maxConnectionsPerAddress)) return true;
+            if (counter.get() != RETIRED) return false;
+        }
+    }
+
+    /**
+     * Increments the counter if it is below the limit.
+     * @return false if the counter was at or above the limit, or retired.
+     */
+    private boolean increment(AtomicInteger counter, int limit) {
+        while (true) {
+            final int count = counter.get();
+            if (count == RETIRED || (limit > 0 && count >= limit)) return false;
+            if (counter.compareAndSet(count, count + 1)) return true;
+        }
+    }
+}
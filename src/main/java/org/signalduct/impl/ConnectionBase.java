@@ -1,18 +1,34 @@
 package org.signalduct.impl;
 
 import org.flowutils.Check;
+import org.signalduct.BatchConnectionListener;
 import org.signalduct.Connection;
 import org.signalduct.ConnectionListener;
+import org.signalduct.FlushMode;
+import org.signalduct.SlowConsumerPolicy;
+import org.signalduct.SocketOptions;
+import org.signalduct.MessageBatch;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.metrics.NetworkMetrics;
+import org.signalduct.utils.BufferPool;
+import org.signalduct.utils.SerialExecutor;
+import org.signalduct.utils.SharedBuffer;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.flowutils.Check.*;
 import static org.flowutils.Check.notNull;
@@ -22,125 +38,1269 @@ import static org.flowutils.Check.notNull;
  */
 public abstract class ConnectionBase implements Connection {
 
-    private static final Comparator<ConnectionListener> HASH_CODE_COMPARATOR = new Comparator<ConnectionListener>() {
-        @Override public int compare(ConnectionListener o1, ConnectionListener o2) {
-            return Integer.compare(o1.hashCode(), o2.hashCode());
+    /**
+     * Size of the buffers that incoming data is read into.
+     */
+    public static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Default number of queued outgoing bytes at or below which an unwritable connection becomes writable again.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+
+    /**
+     * Default number of queued outgoing bytes above which a connection becomes unwritable.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    /**
+     * Error type passed to onError when a connection is disconnected by the DISCONNECT slow consumer policy.
+     */
+    public static final String SLOW_CONSUMER_ERROR = "slow_consumer";
+
+    /**
+     * Error type passed to onError when nothing has been received for the read idle timeout.
+     */
+    public static final String READ_IDLE_ERROR = "read_idle";
+
+    /**
+     * Error type passed to onError when nothing has been written for the write idle timeout.
+     */
+    public static final String WRITE_IDLE_ERROR = "write_idle";
+
+    /**
+     * Error type passed to onError when a connection could not be established within the connect timeout.
+     * The connection is closed when that happens.
+     */
+    public static final String CONNECT_TIMEOUT_ERROR = "connect_timeout";
+
+    /**
+     * Error type passed to onError when handling a network event of a connection failed with an exception.
+     * The exception itself is logged, subject to the rate limit of the error reporter of the network thread.
+     */
+    public static final String NETWORK_ERROR = "network_error";
+
+    /**
+     * Error type passed to onError when closing the socket channel of a connection fails.
+     * The connection is treated as closed regardless.
+     */
+    public static final String CLOSE_FAILED_ERROR = "close_failed";
+
+    /**
+     * Error type passed to onError when data sent with immediate flushing could not be written.
+     * The connection is closed when that happens.
+     */
+    public static final String WRITE_FAILED_ERROR = "write_failed";
+
+    /**
+     * Max number of reads done for one readable event, if the read buffer keeps getting filled completely.
+     * Limits the time spent on one connection, so that other connections handled by the same thread are not starved.
+     */
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    /**
+     * Max number of buffers written with one gathering write.
+     */
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
+
+    /**
+     * Max number of gathering writes done for one flush, if more data keeps getting queued.
+     */
+    private static final int MAX_WRITES_PER_FLUSH = 16;
+
+    /**
+     * Time allowed for writing the queued outgoing data of a disconnected connection, before it is closed regardless.
+     */
+    private static final int CLOSE_TIMEOUT_MILLISECONDS = 10000;
+
+    /**
+     * Number of listener notifications waiting for the listener executor at which reading from the connection is
+     * paused, and the number at which it is resumed.
+     */
+    private static final int MAX_PENDING_NOTIFICATIONS = 1024;
+    private static final int RESUME_READING_PENDING_NOTIFICATIONS = 256;
+
+    private static final ConnectionListener[] NO_LISTENERS = new ConnectionListener[0];
+
+    // Replaced with an updated copy when listeners are added or removed, so that notifying them needs no locking
+    private volatile ConnectionListener[] listeners = NO_LISTENERS;
+    private final Object listenerLock = new Object();
+    private final ConcurrentHashMap<String, Object> customData = new ConcurrentHashMap<String, Object>();
+    private final FilterChain filterChain;
+    private final BufferPool bufferPool;
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private final CountDownLatch connectedOrClosed = new CountDownLatch(1);
+
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    private volatile boolean discardOnClose = false;
+    private final AtomicInteger corkCount = new AtomicInteger(0);
+    private final AtomicInteger readPauseCount = new AtomicInteger(0);
+    private final AtomicBoolean timedReadPause = new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout timedReadPauseTimeout;
+
+    private volatile SerialExecutor listenerExecutor;
+    private final AtomicInteger pendingNotifications = new AtomicInteger(0);
+    private final AtomicBoolean notificationsPausedReading = new AtomicBoolean(false);
+    private volatile FlushMode flushMode = FlushMode.END_OF_TICK;
+
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.QUEUE;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private final Object writableLock = new Object();
+    private final OutboundQueue.BufferReleaser droppedBufferReleaser = new OutboundQueue.BufferReleaser() {
+        @Override public void release(ByteBuffer buffer, SharedBuffer owner) {
+            releaseBuffer(buffer, owner);
+        }
+    };
+    private volatile ConnectionMonitor connectionMonitor;
+    private final AtomicBoolean channelClosed = new AtomicBoolean(false);
+    private volatile SelectionKey selectionKey;
+    private NetworkMetrics metrics;
+
+    private volatile int readIdleTimeout = 0;
+    private volatile int writeIdleTimeout = 0;
+    private volatile int heartbeatInterval = 0;
+    private volatile Object heartbeatMessage;
+    private volatile long lastReadTime = ChannelMonitor.currentTimeMilliseconds();
+    private volatile long lastWriteTime = lastReadTime;
+
+    // Only accessed from the thread of the connection monitor
+    private TimerWheel.Timeout idleTimeout;
+    private long lastReadIdleReportTime;
+    private long lastWriteIdleReportTime;
+    private long lastHeartbeatTime;
+    private final Runnable idleCheck = new Runnable() {
+        @Override public void run() {
+            checkIdleness();
         }
     };
 
-    private final Set<ConnectionListener> listeners = new ConcurrentSkipListSet<ConnectionListener>(HASH_CODE_COMPARATOR);
-    private boolean connected = false;
+    // Buffers taken from the outbound queue that have not yet been completely written.
+    // Only accessed from the thread of the connection monitor.
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+    private final SharedBuffer[] writeBatchOwners = new SharedBuffer[MAX_BUFFERS_PER_WRITE];
+    private int writeBatchSize = 0;
+    private boolean writeInterest = false;
+    private boolean writing = false;
 
-    protected ConnectionBase() {
-        startUpdateThread(10);
+    /**
+     * @param filterChain filter chain that incoming and outgoing messages are passed through.
+     * @param bufferPool pool to get buffers for reading incoming data from.
+     */
+    protected ConnectionBase(FilterChain filterChain, BufferPool bufferPool) {
+        notNull(filterChain, "filterChain");
+        notNull(bufferPool, "bufferPool");
+
+        this.filterChain = filterChain;
+        this.bufferPool = bufferPool;
     }
 
     @Override public final void waitUntilConnected(int timeoutMilliseconds) throws NetworkException {
         positive(timeoutMilliseconds, "timeoutMilliseconds");
 
-        // TODO: Extract timeout waiter class or function
-        boolean interrupted = false;
-        final long timeoutTime = System.currentTimeMillis() + timeoutMilliseconds;
         try {
-            while((getSocketChannel() == null || !getSocketChannel().finishConnect()) &&
-                  System.currentTimeMillis() < timeoutTime
-                  && !interrupted) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    interrupted = true;
+            connectedOrClosed.await(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("Interrupted while waiting to connect", e);
+        }
+
+        if (connected.get()) return;
+        else if (connectedOrClosed.getCount() == 0) throw new NetworkException("The connection was closed before it was established");
+        else throw new NetworkException("Timeout while waiting to connect");
+    }
+
+    @Override public final void sendMessage(Object message) {
+        recordMessageSent();
+        filterChain.filterSentMessage(this, message);
+    }
+
+    /**
+     * Records a message sent to this connection in the metrics.  Also called for broadcasts that include this connection.
+     */
+    final void recordMessageSent() {
+        if (metrics != null) metrics.recordMessageSent();
+    }
+
+    @Override public final void flush() {
+        requestFlush(true);
+    }
+
+    @Override public final void cork() {
+        corkCount.incrementAndGet();
+    }
+
+    @Override public final void uncork() {
+        final int remainingCorks = corkCount.decrementAndGet();
+        if (remainingCorks < 0) {
+            corkCount.incrementAndGet();
+            throw new IllegalStateException("uncork called more times than cork");
+        }
+
+        if (remainingCorks == 0 && outboundQueue.getQueuedBytes() > 0) requestAutomaticFlush();
+    }
+
+    @Override public final void setFlushMode(FlushMode flushMode) {
+        notNull(flushMode, "flushMode");
+
+        this.flushMode = flushMode;
+    }
+
+    @Override public final FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    @Override public final void pauseReading() {
+        if (readPauseCount.getAndIncrement() == 0) scheduleReadInterestUpdate();
+    }
+
+    @Override public final void resumeReading() {
+        final int remainingPauses = readPauseCount.decrementAndGet();
+        if (remainingPauses < 0) {
+            readPauseCount.incrementAndGet();
+            throw new IllegalStateException("resumeReading called more times than pauseReading");
+        }
+
+        if (remainingPauses == 0) scheduleReadInterestUpdate();
+    }
+
+    @Override public final void pauseReading(int delayMilliseconds) {
+        positive(delayMilliseconds, "delayMilliseconds");
+
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null || !timedReadPause.compareAndSet(false, true)) return;
+
+        pauseReading();
+        timedReadPauseTimeout = monitor.scheduleTimeout(new Runnable() {
+            @Override public void run() {
+                timedReadPauseTimeout = null;
+                timedReadPause.set(false);
+                resumeReading();
+            }
+        }, delayMilliseconds);
+    }
+
+    @Override public final boolean isReadingPaused() {
+        return readPauseCount.get() > 0;
+    }
+
+    private void scheduleReadInterestUpdate() {
+        // Connections that are not yet registered are updated when they are
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor != null && selectionKey != null) monitor.scheduleReadInterestUpdate(this);
+    }
+
+    /**
+     * Listens to incoming data from the channel if reading is not paused, and stops listening to it if it is.
+     * Called from the thread of the ConnectionMonitor.
+     */
+    final void updateReadInterest() {
+        final SelectionKey key = selectionKey;
+        if (key == null || !key.isValid()) return;
+
+        if (isReadingPaused() || closing.get()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        else key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    @Override public final void setWriteWatermarks(int lowWatermark, int highWatermark) {
+        positiveOrZero(lowWatermark, "lowWatermark");
+        if (highWatermark < lowWatermark) throw new IllegalArgumentException("highWatermark (" + highWatermark + ") should not be smaller than lowWatermark (" + lowWatermark + ")");
+
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    @Override public final boolean isWritable() {
+        return writable.get();
+    }
+
+    @Override public final long getQueuedBytes() {
+        return outboundQueue.getQueuedBytes();
+    }
+
+    @Override public final void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        notNull(slowConsumerPolicy, "slowConsumerPolicy");
+
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    @Override public final SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    @Override public final void setIdleTimeouts(int readIdleTimeoutMilliseconds, int writeIdleTimeoutMilliseconds) {
+        positiveOrZero(readIdleTimeoutMilliseconds, "readIdleTimeoutMilliseconds");
+        positiveOrZero(writeIdleTimeoutMilliseconds, "writeIdleTimeoutMilliseconds");
+
+        readIdleTimeout = readIdleTimeoutMilliseconds;
+        writeIdleTimeout = writeIdleTimeoutMilliseconds;
+        scheduleIdleTimerUpdate();
+    }
+
+    @Override public final void setHeartbeat(Object heartbeatMessage, int intervalMilliseconds) {
+        positiveOrZero(intervalMilliseconds, "intervalMilliseconds");
+        if (heartbeatMessage == null && intervalMilliseconds > 0) throw new IllegalArgumentException("A heartbeat message is needed when the heartbeat interval is set");
+
+        this.heartbeatMessage = heartbeatMessage;
+        heartbeatInterval = intervalMilliseconds;
+        scheduleIdleTimerUpdate();
+    }
+
+    private void scheduleIdleTimerUpdate() {
+        // Connections that are not yet registered are updated when they are
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor != null && selectionKey != null) monitor.scheduleIdleTimerUpdate(this);
+    }
+
+    /**
+     * Starts, restarts or stops the timer that checks for idleness and sends heartbeats, according to the settings.
+     * Called from the thread of the ConnectionMonitor.
+     */
+    final void updateIdleTimer() {
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null) return;
+
+        if (idleTimeout != null) {
+            monitor.cancelTimeout(idleTimeout);
+            idleTimeout = null;
+        }
+
+        final long delay = getMillisecondsUntilIdleCheck(ChannelMonitor.currentTimeMilliseconds());
+        if (delay >= 0 && getSocketChannel().isOpen()) idleTimeout = monitor.scheduleTimeout(idleCheck, delay);
+    }
+
+    /**
+     * Reports idleness and sends a heartbeat when due, and schedules the next check.
+     * Only one check is scheduled at a time, and it is rescheduled rather than reset on every read and write,
+     * so activity on the connection costs no more than updating a timestamp.
+     */
+    private void checkIdleness() {
+        idleTimeout = null;
+        if (!getSocketChannel().isOpen()) return;
+
+        final long currentTime = ChannelMonitor.currentTimeMilliseconds();
+
+        final int readIdle = readIdleTimeout;
+        if (readIdle > 0 && currentTime - Math.max(lastReadTime, lastReadIdleReportTime) >= readIdle) {
+            lastReadIdleReportTime = currentTime;
+            notifyError(READ_IDLE_ERROR, "Nothing received for " + (currentTime - lastReadTime) + " ms");
+        }
+
+        final int writeIdle = writeIdleTimeout;
+        if (writeIdle > 0 && currentTime - Math.max(lastWriteTime, lastWriteIdleReportTime) >= writeIdle) {
+            lastWriteIdleReportTime = currentTime;
+            notifyError(WRITE_IDLE_ERROR, "Nothing written for " + (currentTime - lastWriteTime) + " ms");
+        }
+
+        final int heartbeat = heartbeatInterval;
+        final Object message = heartbeatMessage;
+        if (heartbeat > 0 && message != null && connected.get() &&
+            currentTime - Math.max(lastWriteTime, lastHeartbeatTime) >= heartbeat) {
+            lastHeartbeatTime = currentTime;
+            sendMessage(message);
+        }
+
+        // The listeners may have closed the connection or changed the settings
+        if (idleTimeout == null) updateIdleTimer();
+    }
+
+    /**
+     * @return milliseconds until the next idle timeout or heartbeat is due, or -1 if none are enabled.
+     */
+    private long getMillisecondsUntilIdleCheck(long currentTime) {
+        long delay = -1;
+        delay = earliest(delay, readIdleTimeout, Math.max(lastReadTime, lastReadIdleReportTime), currentTime);
+        delay = earliest(delay, writeIdleTimeout, Math.max(lastWriteTime, lastWriteIdleReportTime), currentTime);
+        delay = earliest(delay, heartbeatInterval, Math.max(lastWriteTime, lastHeartbeatTime), currentTime);
+        return delay;
+    }
+
+    private static long earliest(long delay, int interval, long since, long currentTime) {
+        if (interval <= 0) return delay;
+
+        final long remaining = Math.max(0, since + interval - currentTime);
+        return delay < 0 ? remaining : Math.min(delay, remaining);
+    }
+
+    /**
+     * Closes the connection and reports a connect timeout if it has not been established after the timeout.
+     */
+    final void startConnectTimeout(final int timeoutMilliseconds) {
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null) throw new IllegalStateException("The connection should be monitored before starting the connect timeout");
+
+        monitor.scheduleTimeout(new Runnable() {
+            @Override public void run() {
+                if (!connected.get() && getSocketChannel().isOpen()) {
+                    notifyError(CONNECT_TIMEOUT_ERROR, "Could not connect within " + timeoutMilliseconds + " ms");
+                    closeChannel();
                 }
             }
+        }, timeoutMilliseconds);
+    }
+
+    @Override public final void setTcpNoDelay(boolean tcpNoDelay) throws NetworkException {
+        try {
+            getSocketChannel().socket().setTcpNoDelay(tcpNoDelay);
+        } catch (IOException e) {
+            throw new NetworkException("Could not set TCP_NODELAY for connection " + this + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override public final void setSocketOptions(SocketOptions socketOptions) throws NetworkException {
+        notNull(socketOptions, "socketOptions");
 
-            if (interrupted) throw new NetworkException("Interrupted while waiting to connect");
-            else if (getSocketChannel() == null || !getSocketChannel().finishConnect()) throw new NetworkException("Timeout while waiting to connect");
+        try {
+            socketOptions.applyTo(getSocketChannel());
         } catch (IOException e) {
-            throw new NetworkException("Problem when waiting for connection to complete", e);
+            throw new NetworkException("Could not set the socket options " + socketOptions + " for connection " + this + ": " + e.getMessage(), e);
         }
     }
 
-    @Override public void update() {
+    @Override public final void disconnect() {
+        filterChain.filterSentDisconnect(this);
+    }
+
+    @Override public final void setCustomData(String name, Object data) {
+        notNull(name, "name");
+
+        if (data == null) customData.remove(name);
+        else customData.put(name, data);
+    }
+
+    @Override public final <T> T getCustomData(String name) {
+        return getCustomData(name, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public final <T> T getCustomData(String name, T defaultValue) {
+        notNull(name, "name");
+
+        final Object data = customData.get(name);
+        if (data == null) return defaultValue;
+        else return (T) data;
+    }
+
+    /**
+     * Reads the data available in the socket channel and passes it to the filter chain.
+     * The read buffer is drawn from the buffer pool, and returned to it when the filter chain is done with it,
+     * so filters that need to keep the received data after returning must copy it.
+     *
+     * Called from the thread of the ConnectionMonitor that listens to the channel, when it has data to read.
+     *
+     * @throws IOException if there was a problem reading from the channel.  The channel is closed in that case.
+     */
+    final void readIncomingData() throws IOException {
         final SocketChannel socketChannel = getSocketChannel();
-        if (socketChannel != null && socketChannel.isConnected())  {
-            // Check if we got connected
-            if (!connected) {
-                connected = true;
-                notifyConnected();
+
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            // Filters may have closed or disconnected the connection, and listeners paused reading,
+            // while handling the previous read
+            if (!socketChannel.isOpen() || closing.get() || isReadingPaused()) return;
+
+            final ByteBuffer readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+            try {
+                final int bytesRead;
+                try {
+                    bytesRead = socketChannel.read(readBuffer);
+                } catch (IOException e) {
+                    closeChannel();
+                    throw e;
+                }
+
+                if (bytesRead < 0) {
+                    // Remote end closed the connection
+                    closeChannel();
+                    return;
+                }
+
+                if (bytesRead > 0) {
+                    lastReadTime = ChannelMonitor.currentTimeMilliseconds();
+                    if (metrics != null) metrics.recordBytesRead(bytesRead);
+                    readBuffer.flip();
+                    filterChain.filterReceivedMessage(this, readBuffer);
+                }
+
+                // Stop when the channel had no more data than what fit in the buffer
+                if (bytesRead < readBuffer.capacity()) return;
+
+            } finally {
+                bufferPool.release(readBuffer);
             }
+        }
+    }
 
-            // Read data
-            // TODO
-            // socketChannel.read(..)
+    /**
+     * Queues the buffer for writing to the socket channel.  May be called from any thread.
+     * The connection takes ownership of the buffer, and returns it to the buffer pool once it has been written,
+     * if it was acquired from the pool.  Other buffers are left to their owners.
+     */
+    final void queueOutgoingData(ByteBuffer buffer) {
+        if (!admitOutgoingData(buffer.remaining())) {
+            releaseBuffer(buffer, null);
+            return;
+        }
 
-            // Write data
-            // TODO
-            // socketChannel.write(..)
+        outboundQueue.add(buffer);
+        handleOutgoingDataQueued();
+    }
 
+    /**
+     * Queues the buffers for writing to the socket channel after each other.  May be called from any thread.
+     * The connection takes ownership of the buffers, and returns those acquired from the buffer pool to it once
+     * they have been written.
+     */
+    final void queueOutgoingData(ByteBuffer[] buffers) {
+        if (!admitOutgoingData(countBytes(buffers))) {
+            for (ByteBuffer buffer : buffers) {
+                releaseBuffer(buffer, null);
+            }
+            return;
         }
-        else {
-            // Check if we got disconnected
-            if (connected) {
-                connected = false;
-                notifyDisconnected();
+
+        outboundQueue.add(buffers);
+        handleOutgoingDataQueued();
+    }
+
+    /**
+     * Queues views of shared buffers for writing to the socket channel after each other.  May be called from any thread.
+     * The connection takes ownership of one reference to each owner, and releases it once the view has been written.
+     *
+     * @param views read-only views of the shared buffers, as returned by SharedBuffer.retainView.
+     * @param owners the shared buffers that the views with the same index belong to.
+     */
+    final void queueOutgoingData(ByteBuffer[] views, SharedBuffer[] owners) {
+        if (!admitOutgoingData(countBytes(views))) {
+            for (int i = 0; i < views.length; i++) {
+                releaseBuffer(views[i], owners[i]);
             }
+            return;
         }
+
+        outboundQueue.add(views, owners);
+        handleOutgoingDataQueued();
     }
 
-    @Override public void startUpdateThread(final long updateIntervalMilliseconds) {
-        final Thread updateThread = new Thread(new Runnable() {
-            @Override public void run() {
-                while (true) {
-                    update();
+    private static long countBytes(ByteBuffer[] buffers) {
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        return bytes;
+    }
 
-                    try {
-                        Thread.sleep(updateIntervalMilliseconds);
-                    } catch (InterruptedException e) {
-                        // Ignore
-                    }
+    /**
+     * Applies the slow consumer policy to a message that is about to be queued.
+     * @return true if the message should be queued, false if it should be dropped.
+     */
+    private boolean admitOutgoingData(long messageBytes) {
+        // Messages sent after disconnecting are dropped
+        if (closing.get()) return false;
+
+        final SlowConsumerPolicy policy = slowConsumerPolicy;
+        switch (policy) {
+            case BLOCK:
+                waitUntilWritable();
+                return true;
+
+            case DROP_NEWEST:
+            case DISCONNECT:
+                // A message is always accepted into an empty queue, however large it is
+                final long queuedBytes = outboundQueue.getQueuedBytes();
+                if (queuedBytes == 0 || queuedBytes + messageBytes <= highWatermark) return true;
+
+                // The queue stays below the high watermark, so the rejection is what makes the connection unwritable
+                markUnwritable();
+
+                if (policy == SlowConsumerPolicy.DISCONNECT && isConnected()) {
+                    notifyError(SLOW_CONSUMER_ERROR, "The connection was disconnected, as " + queuedBytes + " bytes of " +
+                                                     "outgoing data were waiting to be written, and the high watermark is " + highWatermark + " bytes");
+
+                    // The remote end is not reading, so waiting for the queued data to be written is pointless
+                    discardOnClose = true;
+                    disconnect();
+                }
+                return false;
+
+            case QUEUE:
+            case DROP_OLDEST:
+            default:
+                return true;
+        }
+    }
+
+    private void waitUntilWritable() {
+        // Blocking the network thread would stop the queued data from ever being written
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null || monitor.isInSelectorThread()) return;
+
+        synchronized (writableLock) {
+            while (!writable.get() && getSocketChannel().isOpen()) {
+                try {
+                    writableLock.wait();
+                } catch (InterruptedException e) {
+                    // Queue the message anyway, and let the caller handle the interruption
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
-        });
-        updateThread.setDaemon(true);
-        updateThread.start();
+        }
+    }
+
+    private void handleOutgoingDataQueued() {
+        if (outboundQueue.getQueuedBytes() > highWatermark) markUnwritable();
+
+        requestAutomaticFlush();
+    }
+
+    private void markUnwritable() {
+        if (writable.compareAndSet(true, false)) notifyWritabilityChanged(false);
+    }
+
+    /**
+     * Marks the connection writable if the queued data has fallen to the low watermark.
+     * Called from the thread of the ConnectionMonitor after queued data has been written or discarded.
+     */
+    private void updateWritability() {
+        if (!writable.get() && outboundQueue.getQueuedBytes() <= lowWatermark && writable.compareAndSet(false, true)) {
+            wakeUpBlockedSenders();
+            if (isConnected()) notifyWritabilityChanged(true);
+        }
+    }
+
+    private void wakeUpBlockedSenders() {
+        synchronized (writableLock) {
+            writableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests queued data to be written as specified by the flush mode, unless the connection is corked.
+     */
+    private void requestAutomaticFlush() {
+        if (corkCount.get() > 0) return;
+
+        switch (flushMode) {
+            case MANUAL:
+                break;
+            case IMMEDIATE:
+                requestFlush(true);
+                break;
+            case END_OF_TICK:
+            default:
+                requestFlush(false);
+                break;
+        }
+    }
+
+    /**
+     * @param immediate if true and called from the thread of the connection monitor, the data is written right away,
+     *                  otherwise it is written at the end of the current or next round of network event handling.
+     */
+    private void requestFlush(boolean immediate) {
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null) return;
+
+        // Data sent from listeners called while writing, or before the channel is registered, is written later
+        if (immediate && !writing && selectionKey != null && monitor.isInSelectorThread()) {
+            try {
+                writeOutgoingData();
+            } catch (IOException e) {
+                notifyError(WRITE_FAILED_ERROR, "Could not write to connection: " + e.getMessage());
+            }
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            monitor.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Writes as much of the queued outgoing data as the socket channel accepts, using gathering writes.
+     * If the socket send buffer fills up, starts listening to the channel becoming writable again,
+     * and once all data is written, stops listening to it, so that the selector does not spin on writable events.
+     *
+     * Called from the thread of the ConnectionMonitor that listens to the channel.
+     *
+     * @throws IOException if there was a problem writing to the channel.  The channel is closed in that case.
+     */
+    final void writeOutgoingData() throws IOException {
+        // Clear the flag first, so that data queued while we are writing schedules a new flush
+        flushScheduled.set(false);
+
+        writing = true;
+        try {
+            if (slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST && outboundQueue.getQueuedBytes() > highWatermark) {
+                outboundQueue.dropOldestMessages(highWatermark, droppedBufferReleaser);
+            }
+
+            writeQueuedData();
+        } finally {
+            writing = false;
+            updateWritability();
+        }
+    }
+
+    private void writeQueuedData() throws IOException {
+        final SocketChannel socketChannel = getSocketChannel();
+        if (!socketChannel.isOpen()) {
+            discardOutgoingData();
+            return;
+        }
+
+        // Outgoing data is written when the connection completes
+        if (!socketChannel.isConnected()) return;
+
+        for (int i = 0; i < MAX_WRITES_PER_FLUSH; i++) {
+            fillWriteBatch();
+            if (writeBatchSize == 0) {
+                setWriteInterest(false);
+
+                // A disconnected connection is closed once everything sent before the disconnect has been written
+                if (closing.get()) closeChannel();
+                return;
+            }
+
+            final long bytesWritten;
+            try {
+                bytesWritten = socketChannel.write(writeBatch, 0, writeBatchSize);
+            } catch (IOException e) {
+                closeChannel();
+                discardOutgoingData();
+                throw e;
+            }
+            outboundQueue.bytesRemoved(bytesWritten);
+            removeWrittenBuffers();
+            if (bytesWritten > 0) {
+                lastWriteTime = ChannelMonitor.currentTimeMilliseconds();
+                if (metrics != null) metrics.recordBytesWritten(bytesWritten);
+            }
+
+            if (writeBatchSize > 0) {
+                // The socket send buffer is full, continue when the channel is writable again
+                setWriteInterest(true);
+                return;
+            }
+        }
+
+        // More data keeps coming, let other connections have their turn before continuing
+        setWriteInterest(true);
+    }
+
+    private void fillWriteBatch() {
+        while (writeBatchSize < writeBatch.length) {
+            final ByteBuffer buffer = outboundQueue.poll();
+            if (buffer == null) return;
+
+            writeBatch[writeBatchSize] = buffer;
+            writeBatchOwners[writeBatchSize] = outboundQueue.getPolledOwner();
+            writeBatchSize++;
+        }
+    }
+
+    private void removeWrittenBuffers() {
+        // Buffers are written in order, so the completely written ones are at the start of the batch
+        int writtenCount = 0;
+        while (writtenCount < writeBatchSize && !writeBatch[writtenCount].hasRemaining()) {
+            releaseBuffer(writeBatch[writtenCount], writeBatchOwners[writtenCount]);
+            writtenCount++;
+        }
+
+        if (writtenCount > 0) {
+            System.arraycopy(writeBatch, writtenCount, writeBatch, 0, writeBatchSize - writtenCount);
+            System.arraycopy(writeBatchOwners, writtenCount, writeBatchOwners, 0, writeBatchSize - writtenCount);
+            for (int i = writeBatchSize - writtenCount; i < writeBatchSize; i++) {
+                writeBatch[i] = null;
+                writeBatchOwners[i] = null;
+            }
+            writeBatchSize -= writtenCount;
+        }
+    }
+
+    /**
+     * Releases the data queued for writing, after the channel has been closed.
+     * Called from the thread of the connection monitor, or after it has stopped.
+     */
+    final void discardOutgoingData() {
+        for (int i = 0; i < writeBatchSize; i++) {
+            outboundQueue.bytesRemoved(writeBatch[i].remaining());
+            releaseBuffer(writeBatch[i], writeBatchOwners[i]);
+            writeBatch[i] = null;
+            writeBatchOwners[i] = null;
+        }
+        writeBatchSize = 0;
+
+        ByteBuffer buffer;
+        while ((buffer = outboundQueue.poll()) != null) {
+            outboundQueue.bytesRemoved(buffer.remaining());
+            releaseBuffer(buffer, outboundQueue.getPolledOwner());
+        }
+    }
+
+    private void releaseBuffer(ByteBuffer buffer, SharedBuffer owner) {
+        if (owner != null) owner.release();
+        else bufferPool.release(buffer);
+    }
+
+    private void setWriteInterest(boolean interested) {
+        final SelectionKey key = selectionKey;
+        if (writeInterest != interested && key != null && key.isValid()) {
+            if (interested) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            else key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            writeInterest = interested;
+        }
+    }
+
+    /**
+     * Completes a pending connection to a remote server, and writes any data queued before the connection completed.
+     * Called from the thread of the ConnectionMonitor when the channel is ready to complete its connection.
+     *
+     * @throws IOException if the connection could not be established.  The channel is closed in that case.
+     */
+    final void finishConnect() throws IOException {
+        final boolean connectionCompleted;
+        try {
+            connectionCompleted = getSocketChannel().finishConnect();
+        } catch (IOException e) {
+            closeChannel();
+            throw e;
+        }
+
+        if (connectionCompleted) {
+            final SelectionKey key = selectionKey;
+            if (key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT);
+
+            // Data sent before the connection completed is written before anyone is told about the connection,
+            // so that messages sent after that follow the flush mode
+            writeOutgoingData();
+            handleConnected();
+        }
+    }
+
+    /**
+     * Passes a connect event through the filter chain to the listeners, the first time it is called.
+     * Called from the thread of the ConnectionMonitor when the channel of the connection has been connected.
+     */
+    final void handleConnected() {
+        if (connected.compareAndSet(false, true)) {
+            // Idleness is measured from when the connection was established
+            lastReadTime = lastWriteTime = ChannelMonitor.currentTimeMilliseconds();
+            connectedOrClosed.countDown();
+
+            filterChain.filterReceivedConnect(this);
+        }
+    }
+
+    /**
+     * @return the filter chain that the messages of this connection are passed through.
+     */
+    final FilterChain getFilterChain() {
+        return filterChain;
+    }
+
+    /**
+     * @param metrics metrics to record the traffic of this connection in, or null to not record it.
+     *                Should be set before the connection is used.
+     */
+    final void setMetrics(NetworkMetrics metrics) {
+        this.metrics = metrics;
+        outboundQueue.setMetrics(metrics);
+    }
+
+    final void setConnectionMonitor(ConnectionMonitor connectionMonitor) {
+        this.connectionMonitor = connectionMonitor;
+    }
+
+    final void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Starts closing the connection, when it is disconnected.  No more data is read or sent, but the data already
+     * queued for writing is written before the channel is closed, by the thread of the connection monitor.
+     * May be called from any thread.
+     */
+    final void requestClose() {
+        if (!closing.compareAndSet(false, true)) return;
+
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor == null) closeChannel();
+        else monitor.scheduleClose(this);
+    }
+
+    /**
+     * Stops reading, and writes the remaining queued outgoing data before closing the channel.
+     * The channel is closed at once if it is not connected, or if the data should be discarded, and after
+     * CLOSE_TIMEOUT_MILLISECONDS if the remote end does not read the data by then.
+     * Called from the thread of the connection monitor after requestClose().
+     */
+    final void closeGracefully() {
+        updateReadInterest();
+
+        if (discardOnClose || !getSocketChannel().isConnected()) {
+            closeChannel();
+            discardOutgoingData();
+            return;
+        }
+
+        // Closes the channel once the queued data has been written, or right away if there is none
+        try {
+            writeOutgoingData();
+        } catch (IOException e) {
+            // The channel was closed by the failed write
+            return;
+        }
+
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (getSocketChannel().isOpen() && monitor != null) {
+            monitor.scheduleTimeout(new Runnable() {
+                @Override public void run() {
+                    if (getSocketChannel().isOpen()) closeChannel();
+                }
+            }, CLOSE_TIMEOUT_MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes the socket channel of this connection, if it is open,
+     * and passes a disconnect event through the filter chain to the listeners if the connection was connected.
+     */
+    final void closeChannel() {
+        final SocketChannel socketChannel = getSocketChannel();
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            notifyError(CLOSE_FAILED_ERROR, "Could not close connection: " + e.getMessage());
+        }
+
+        final ConnectionMonitor monitor = connectionMonitor;
+        if (monitor != null) {
+            monitor.stopListeningToChannelEvents(socketChannel);
+            if (channelClosed.compareAndSet(false, true)) monitor.connectionClosed(this);
+
+            final TimerWheel.Timeout readPauseTimeout = timedReadPauseTimeout;
+            if (readPauseTimeout != null) monitor.cancelTimeout(readPauseTimeout);
+        }
+
+        // Senders blocked by the BLOCK policy would otherwise wait for a write that never happens
+        wakeUpBlockedSenders();
+
+        onChannelClosed();
+
+        // Wakes up threads waiting for the connection to be established
+        connectedOrClosed.countDown();
+
+        if (connected.compareAndSet(true, false)) {
+            filterChain.filterReceivedDisconnect(this);
+        }
     }
 
     public final void addListener(ConnectionListener listener) {
         notNull(listener, "listener");
 
-        listeners.add(listener);
+        synchronized (listenerLock) {
+            final ConnectionListener[] oldListeners = listeners;
+            if (indexOf(oldListeners, listener) >= 0) return;
+
+            final ConnectionListener[] newListeners = new ConnectionListener[oldListeners.length + 1];
+            System.arraycopy(oldListeners, 0, newListeners, 0, oldListeners.length);
+            newListeners[oldListeners.length] = listener;
+            listeners = newListeners;
+        }
     }
 
     public final void removeListener(ConnectionListener listener) {
         notNull(listener, "listener");
 
-        listeners.remove(listener);
+        synchronized (listenerLock) {
+            final ConnectionListener[] oldListeners = listeners;
+            final int index = indexOf(oldListeners, listener);
+            if (index < 0) return;
+
+            final ConnectionListener[] newListeners = new ConnectionListener[oldListeners.length - 1];
+            System.arraycopy(oldListeners, 0, newListeners, 0, index);
+            System.arraycopy(oldListeners, index + 1, newListeners, index, newListeners.length - index);
+            listeners = newListeners;
+        }
+    }
+
+    private static int indexOf(ConnectionListener[] listeners, ConnectionListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the executor that listeners are notified with, through a serial executor of this connection,
+     * so that the listeners receive the events of this connection in order.
+     * If null, listeners are notified directly in the thread where the event happened.
+     * Should be set before the connection starts listening to network events.
+     */
+    final void setListenerExecutor(Executor executor) {
+        listenerExecutor = executor == null ? null : new SerialExecutor(executor);
     }
 
     protected final void notifyConnected() {
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callConnected();
+        else dispatch(executor, new ListenerNotification() {
+            @Override protected void notifyListeners() {
+                callConnected();
+            }
+        });
+    }
+
+    protected final void notifyDisconnected() {
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callDisconnected();
+        else dispatch(executor, new ListenerNotification() {
+            @Override protected void notifyListeners() {
+                callDisconnected();
+            }
+        });
+    }
+
+    protected final void notifyMessage(final Object message) {
+        if (metrics != null) metrics.recordMessagesReceived(1);
+
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callMessage(message);
+        else {
+            final Object copy = copyReceivedBuffers(message);
+            final boolean dispatched = dispatch(executor, new ListenerNotification() {
+                @Override protected void notifyListeners() {
+                    try {
+                        callMessage(copy);
+                    } finally {
+                        releaseReceivedBufferCopies(copy);
+                    }
+                }
+            });
+            if (!dispatched) releaseReceivedBufferCopies(copy);
+        }
+    }
+
+    /**
+     * Passes the batch with one call to listeners that handle batches, and one message at a time to other listeners.
+     * Each listener that handles batches gets the messages unmodified by the other listeners.
+     */
+    protected final void notifyMessages(MessageBatch messages) {
+        if (metrics != null) metrics.recordMessagesReceived(messages.size());
+
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callMessages(messages);
+        else {
+            // The batch is reused by its creator once this call returns
+            final MessageBatch copy = new MessageBatch(Math.max(messages.size(), 1));
+            for (int i = 0; i < messages.size(); i++) {
+                copy.add(copyReceivedBuffers(messages.get(i)));
+            }
+
+            final boolean dispatched = dispatch(executor, new ListenerNotification() {
+                @Override protected void notifyListeners() {
+                    try {
+                        callMessages(copy);
+                    } finally {
+                        releaseReceivedBufferCopies(copy);
+                    }
+                }
+            });
+            if (!dispatched) releaseReceivedBufferCopies(copy);
+        }
+    }
+
+    protected final void notifyWritabilityChanged(final boolean writable) {
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callWritabilityChanged(writable);
+        else dispatch(executor, new ListenerNotification() {
+            @Override protected void notifyListeners() {
+                callWritabilityChanged(writable);
+            }
+        });
+    }
+
+    protected final void notifyError(final String errorType, final String errorDescription) {
+        final SerialExecutor executor = listenerExecutor;
+        if (executor == null) callError(errorType, errorDescription);
+        else dispatch(executor, new ListenerNotification() {
+            @Override protected void notifyListeners() {
+                callError(errorType, errorDescription);
+            }
+        });
+    }
+
+    private void callConnected() {
         for (ConnectionListener listener : listeners) {
             listener.onConnected(this);
         }
     }
 
-    protected final void notifyDisconnected() {
+    private void callDisconnected() {
         for (ConnectionListener listener : listeners) {
             listener.onDisconnected(this);
         }
     }
 
-    protected final void notifyMessage(Object message) {
+    private void callMessage(Object message) {
         for (ConnectionListener listener : listeners) {
             listener.onMessage(this, message);
         }
     }
 
-    protected final void notifyError(String errorType, String errorDescription) {
+    private void callMessages(MessageBatch messages) {
+        final ConnectionListener[] currentListeners = listeners;
+        final int lastIndex = currentListeners.length - 1;
+
+        // Batch listeners may modify the batch, so all but the last listener get a copy of the original batch
+        MessageBatch copy = null;
+        for (int i = 0; i < lastIndex; i++) {
+            final ConnectionListener listener = currentListeners[i];
+            if (listener instanceof BatchConnectionListener) {
+                if (copy == null) copy = new MessageBatch(Math.max(messages.size(), 1));
+                else copy.clear();
+                copy.addAll(messages);
+                copy.deliverTo(this, listener);
+            }
+            else {
+                messages.deliverTo(this, listener);
+            }
+        }
+
+        if (lastIndex >= 0) messages.deliverTo(this, currentListeners[lastIndex]);
+    }
+
+    private void callWritabilityChanged(boolean writable) {
+        for (ConnectionListener listener : listeners) {
+            listener.onWritabilityChanged(this, writable);
+        }
+    }
+
+    private void callError(String errorType, String errorDescription) {
         for (ConnectionListener listener : listeners) {
             listener.onError(this, errorType, errorDescription);
         }
     }
 
+    /**
+     * Received buffers may be slices of a read buffer that is reused once the read has been handled,
+     * so they are copied into buffers from the pool before the listeners are notified in another thread.
+     *
+     * @return the message with its ByteBuffers replaced by copies, or the message itself if it has no buffers.
+     */
+    private Object copyReceivedBuffers(Object message) {
+        if (message instanceof ByteBuffer) {
+            return copyReceivedBuffer((ByteBuffer) message);
+        }
+        else if (message instanceof ByteBuffer[]) {
+            final ByteBuffer[] buffers = (ByteBuffer[]) message;
+            final ByteBuffer[] copies = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                copies[i] = copyReceivedBuffer(buffers[i]);
+            }
+            return copies;
+        }
+        else return message;
+    }
+
+    private ByteBuffer copyReceivedBuffer(ByteBuffer buffer) {
+        final ByteBuffer copy = bufferPool.acquire(Math.max(buffer.remaining(), 1));
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Returns the copies of the batched messages to the pool.
+     */
+    private void releaseReceivedBufferCopies(MessageBatch messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            releaseReceivedBufferCopies(messages.get(i));
+        }
+    }
+
+    /**
+     * Returns the copies made by copyReceivedBuffers to the pool, after the listeners have been notified.
+     */
+    private void releaseReceivedBufferCopies(Object message) {
+        if (message instanceof ByteBuffer) {
+            bufferPool.release((ByteBuffer) message);
+        }
+        else if (message instanceof ByteBuffer[]) {
+            for (ByteBuffer buffer : (ByteBuffer[]) message) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Passes the notification to the listener executor.  If the listeners fall too far behind,
+     * reading from the connection is paused until they have caught up.
+     *
+     * If the listener executor rejects the notification, for example because it has been shut down,
+     * the problem is reported and the connection is closed, as its listeners can no longer be notified.
+     *
+     * @return true if the notification was queued, false if it was rejected.
+     */
+    private boolean dispatch(SerialExecutor executor, ListenerNotification notification) {
+        if (pendingNotifications.incrementAndGet() >= MAX_PENDING_NOTIFICATIONS &&
+            notificationsPausedReading.compareAndSet(false, true)) {
+            pauseReading();
+        }
+
+        try {
+            executor.execute(notification);
+            return true;
+        } catch (RejectedExecutionException e) {
+            notificationCompleted();
+
+            // The disconnect notification of the close below is rejected as well, and needs no further handling
+            final SocketChannel socketChannel = getSocketChannel();
+            if (socketChannel.isOpen()) {
+                final ConnectionMonitor monitor = connectionMonitor;
+                if (monitor != null) {
+                    monitor.getErrorReporter().report(e.getClass().getName(),
+                                                      "The listener executor rejected a notification, closing " + socketChannel, e);
+                }
+                closeChannel();
+            }
+            return false;
+        }
+    }
+
+    private void notificationCompleted() {
+        if (pendingNotifications.decrementAndGet() <= RESUME_READING_PENDING_NOTIFICATIONS &&
+            notificationsPausedReading.compareAndSet(true, false)) {
+            resumeReading();
+        }
+    }
+
+    /**
+     * Notifies the listeners about an event in a thread of the listener executor.
+     */
+    private abstract class ListenerNotification implements Runnable {
+        @Override public final void run() {
+            try {
+                notifyListeners();
+            } finally {
+                notificationCompleted();
+            }
+        }
+
+        protected abstract void notifyListeners();
+    }
+
     protected abstract SocketChannel getSocketChannel();
 
+    /**
+     * Called when the channel of this connection has been closed, before the disconnect event is passed on.
+     * May be called more than once.
+     */
+    protected void onChannelClosed() {
+    }
+
 
 }
@@ -0,0 +1,136 @@
+package org.signalduct.impl;
+
+import org.signalduct.BatchConnectionListener;
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.filter.LowerLevel;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sits at both ends of the filter chain of a network.
+ * Forwards filtered incoming events to the listeners of the connection they happened on,
+ * and filtered outgoing events to the socket channel of the connection.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class ConnectionDispatcher implements LowerLevel, BatchConnectionListener {
+
+    /**
+     * The broadcast that each thread is currently passing through the filter chain, if any.
+     */
+    private static final ThreadLocal<BroadcastSink> CURRENT_BROADCAST = new ThreadLocal<BroadcastSink>();
+
+    /**
+     * Passes the message through the send side of the filter chain once, with the first connected target as the
+     * connection, and queues the resulting data to all the connected targets.
+     *
+     * @param filterChain filter chain that this dispatcher is at the network end of.
+     * @param targets connections to send the message to.
+     * @param bufferPool pool that the encoded buffers are returned to once all targets have written them.
+     */
+    void broadcast(FilterChain filterChain, Object message, List<? extends ConnectionBase> targets, BufferPool bufferPool) {
+        ConnectionBase encodingConnection = null;
+        for (ConnectionBase target : targets) {
+            if (target.isConnected()) {
+                encodingConnection = target;
+                break;
+            }
+        }
+        if (encodingConnection == null) return;
+
+        final BroadcastSink broadcast = new BroadcastSink(targets, encodingConnection, bufferPool);
+        final BroadcastSink outerBroadcast = CURRENT_BROADCAST.get();
+        CURRENT_BROADCAST.set(broadcast);
+        try {
+            filterChain.filterSentMessage(broadcast.getEncodingConnection(), message);
+        } finally {
+            CURRENT_BROADCAST.set(outerBroadcast);
+        }
+
+        broadcast.sendToTargets();
+    }
+
+    @Override public void onConnected(Connection connection) {
+        asConnectionBase(connection).notifyConnected();
+    }
+
+    @Override public void onMessage(Connection connection, Object message) {
+        asConnectionBase(connection).notifyMessage(message);
+    }
+
+    @Override public void onMessages(Connection connection, MessageBatch messages) {
+        asConnectionBase(connection).notifyMessages(messages);
+    }
+
+    @Override public void onDisconnected(Connection connection) {
+        asConnectionBase(connection).notifyDisconnected();
+    }
+
+    @Override public void onWritabilityChanged(Connection connection, boolean writable) {
+        asConnectionBase(connection).notifyWritabilityChanged(writable);
+    }
+
+    @Override public void onError(Connection connection, String errorType, String errorDescription) {
+        asConnectionBase(connection).notifyError(errorType, errorDescription);
+    }
+
+    /**
+     * Queues the message for writing to the channel of the connection.
+     * The message should be a ByteBuffer, an array of ByteBuffers that are written after each other, or a byte array.
+     * Sent buffers that were acquired from the buffer pool of the network are returned to it once they have been written,
+     * other buffers are not touched by the network after they have been written.
+     */
+    @Override public void sendMessage(Connection connection, Object message) {
+        // Data of a broadcast is collected, and queued to all the targets once the filter chain returns
+        final BroadcastSink broadcast = CURRENT_BROADCAST.get();
+        if (broadcast != null && broadcast.isEncodingFor(connection)) {
+            broadcast.addEncodedMessage(toBufferArray(message));
+            return;
+        }
+
+        final ConnectionBase connectionBase = asConnectionBase(connection);
+
+        if (message instanceof ByteBuffer) {
+            connectionBase.queueOutgoingData((ByteBuffer) message);
+        }
+        else if (message instanceof ByteBuffer[]) {
+            connectionBase.queueOutgoingData((ByteBuffer[]) message);
+        }
+        else if (message instanceof byte[]) {
+            connectionBase.queueOutgoingData(ByteBuffer.wrap((byte[]) message));
+        }
+        else {
+            throw createUnsupportedMessageException(message);
+        }
+    }
+
+    private ByteBuffer[] toBufferArray(Object message) {
+        if (message instanceof ByteBuffer) return new ByteBuffer[]{(ByteBuffer) message};
+        else if (message instanceof ByteBuffer[]) return (ByteBuffer[]) message;
+        else if (message instanceof byte[]) return new ByteBuffer[]{ByteBuffer.wrap((byte[]) message)};
+        else throw createUnsupportedMessageException(message);
+    }
+
+    private IllegalArgumentException createUnsupportedMessageException(Object message) {
+        return new IllegalArgumentException("Only ByteBuffers or byte arrays can be sent over the network, " +
+                                            "but got a " + (message == null ? "null message" : message.getClass().getName()) + ".  " +
+                                            "Add a filter that serializes messages to the filter chain.");
+    }
+
+    @Override public void sendDisconnect(Connection connection) {
+        asConnectionBase(connection).requestClose();
+    }
+
+    private ConnectionBase asConnectionBase(Connection connection) {
+        if (!(connection instanceof ConnectionBase)) {
+            throw new IllegalArgumentException("Expected a connection created by the network, but got " + connection);
+        }
+
+        return (ConnectionBase) connection;
+    }
+}
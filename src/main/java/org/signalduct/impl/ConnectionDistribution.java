@@ -0,0 +1,20 @@
+package org.signalduct.impl;
+
+/**
+ * Determines how a ServerNetwork distributes accepted connections among its connection monitor threads.
+ */
+public enum ConnectionDistribution {
+
+    /**
+     * Hand accepted connections to each connection monitor in turn.
+     * Cheapest option, works well when connections are similar in lifetime and load.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Hand each accepted connection to the connection monitor that currently handles the fewest connections.
+     * Keeps the monitors balanced when connections have very different lifetimes.
+     */
+    LEAST_LOADED
+
+}
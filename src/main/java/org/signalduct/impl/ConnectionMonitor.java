@@ -0,0 +1,183 @@
+package org.signalduct.impl;
+
+import org.signalduct.utils.ExceptionUtils;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Monitors the socket channels of connections, and lets the connection attached to a channel handle its network events.
+ */
+public class ConnectionMonitor extends ChannelMonitor<SocketChannel> {
+
+    private final ConcurrentLinkedQueue<ConnectionBase> connectionsToFlush = new ConcurrentLinkedQueue<ConnectionBase>();
+    private final ConcurrentLinkedQueue<ConnectionBase> connectionsToUpdateReadInterest = new ConcurrentLinkedQueue<ConnectionBase>();
+    private final ConcurrentLinkedQueue<ConnectionBase> connectionsToUpdateIdleTimer = new ConcurrentLinkedQueue<ConnectionBase>();
+    private final ConcurrentLinkedQueue<ConnectionBase> connectionsToClose = new ConcurrentLinkedQueue<ConnectionBase>();
+    private final AtomicInteger assignedConnectionCount = new AtomicInteger(0);
+
+    /**
+     * Start listening to network events for the specified connection.
+     *
+     * @param connection connection whose socket channel should be monitored.
+     * @param interestOps the network events to listen to, as a combination of the SelectionKey OP_* constants.
+     */
+    public final void listenToConnection(ConnectionBase connection, int interestOps) throws NetworkException {
+        notNull(connection, "connection");
+
+        // Counted before the channel is registered, and uncounted when the connection closes its channel
+        connection.setConnectionMonitor(this);
+        assignedConnectionCount.incrementAndGet();
+        listenToChannelEvents(connection.getSocketChannel(), interestOps, connection);
+    }
+
+    /**
+     * @return number of open connections assigned to this monitor, including connections whose channels
+     *         are still waiting to be registered with the selector.
+     */
+    public final int getAssignedConnectionCount() {
+        return assignedConnectionCount.get();
+    }
+
+    /**
+     * Called by a connection assigned to this monitor once, when its channel is closed.
+     */
+    final void connectionClosed(ConnectionBase connection) {
+        assignedConnectionCount.decrementAndGet();
+    }
+
+    /**
+     * Schedules the outgoing data of the connection to be written by the selector thread.
+     * Called by the connection when it has new outgoing data and no flush is already scheduled.
+     */
+    final void scheduleFlush(ConnectionBase connection) {
+        connectionsToFlush.offer(connection);
+
+        // Data queued from the selector thread is written at the end of the current round of event handling
+        if (!isInSelectorThread()) wakeUpSelector();
+    }
+
+    /**
+     * Schedules the connection to be closed by the selector thread, after its queued outgoing data has been written.
+     * Called by the connection when it is disconnected.  Connections disconnected from the selector thread, for
+     * example by a filter while handling received data, are closed at the end of the current round of event handling.
+     */
+    final void scheduleClose(ConnectionBase connection) {
+        connectionsToClose.offer(connection);
+
+        if (!isInSelectorThread()) wakeUpSelector();
+    }
+
+    /**
+     * Schedules the selector thread to start or stop listening to incoming data for the connection,
+     * depending on whether its reading is paused.  Called by the connection when reading is paused or resumed.
+     */
+    final void scheduleReadInterestUpdate(ConnectionBase connection) {
+        if (isInSelectorThread()) {
+            connection.updateReadInterest();
+        }
+        else {
+            connectionsToUpdateReadInterest.offer(connection);
+            wakeUpSelector();
+        }
+    }
+
+    /**
+     * Schedules the selector thread to restart the idle timer of the connection.
+     * Called by the connection when its idle timeouts or heartbeat are changed.
+     */
+    final void scheduleIdleTimerUpdate(ConnectionBase connection) {
+        if (isInSelectorThread()) {
+            connection.updateIdleTimer();
+        }
+        else {
+            connectionsToUpdateIdleTimer.offer(connection);
+            wakeUpSelector();
+        }
+    }
+
+    @Override protected void onChannelRegistered(SocketChannel channel, SelectionKey selectionKey) {
+        final ConnectionBase connection = getConnection(selectionKey);
+        connection.setSelectionKey(selectionKey);
+        connection.updateReadInterest();
+        connection.updateIdleTimer();
+
+        // Accepted channels, and client channels that connected immediately, are already connected when registered
+        if (channel.isConnected()) connection.handleConnected();
+    }
+
+    @Override protected void handleConnectionCreated(SocketChannel channel, SelectionKey selectionKey) throws Exception {
+        getConnection(selectionKey).finishConnect();
+    }
+
+    @Override protected void readIncomingData(SocketChannel channel, SelectionKey selectionKey) throws Exception {
+        getConnection(selectionKey).readIncomingData();
+    }
+
+    @Override protected void writeOutgoingData(SocketChannel channel, SelectionKey selectionKey) throws Exception {
+        getConnection(selectionKey).writeOutgoingData();
+    }
+
+    @Override protected void handlePendingWork() {
+        ConnectionBase connection;
+        while ((connection = connectionsToUpdateReadInterest.poll()) != null) {
+            connection.updateReadInterest();
+        }
+
+        while ((connection = connectionsToUpdateIdleTimer.poll()) != null) {
+            connection.updateIdleTimer();
+        }
+
+        while ((connection = connectionsToFlush.poll()) != null) {
+            try {
+                connection.writeOutgoingData();
+            } catch (Throwable e) {
+                reportNetworkEventException("Problem when writing outgoing data for connection " + connection, e);
+                notifyNetworkError(connection, "Could not write outgoing data", e);
+            }
+        }
+
+        while ((connection = connectionsToClose.poll()) != null) {
+            try {
+                connection.closeGracefully();
+            } catch (Throwable e) {
+                reportNetworkEventException("Problem when closing connection " + connection, e);
+            }
+        }
+    }
+
+    @Override protected void closeChannelOnStop(SocketChannel channel, Object attachment) throws IOException {
+        // Closed through the connection, so that its listeners are notified and its queued buffers are released
+        final ConnectionBase connection = (ConnectionBase) attachment;
+        connection.closeChannel();
+        connection.discardOutgoingData();
+    }
+
+    @Override protected void onNetworkEventFailed(SelectionKey selectionKey, Throwable e) {
+        // Failures of events that arrive after the connection was closed are only logged
+        final ConnectionBase connection = getConnection(selectionKey);
+        if (connection != null && connection.getSocketChannel().isOpen()) {
+            notifyNetworkError(connection, "Could not handle a network event", e);
+        }
+    }
+
+    private void notifyNetworkError(ConnectionBase connection, String description, Throwable e) {
+        try {
+            connection.notifyError(ConnectionBase.NETWORK_ERROR, description + ExceptionUtils.getCauseDescription(e));
+        } catch (Throwable listenerException) {
+            reportNetworkEventException("Problem when notifying the listeners of connection " + connection + " about an error", listenerException);
+        }
+    }
+
+    /**
+     * @return the connection attached to the specified selection key.
+     */
+    protected final ConnectionBase getConnection(SelectionKey selectionKey) {
+        return (ConnectionBase) selectionKey.attachment();
+    }
+}
@@ -0,0 +1,185 @@
+package org.signalduct.impl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Table of connections indexed by primitive long ids, used to find connections by id without boxing.
+ *
+ * An id consists of a slot index in the low 32 bits and a generation count of the slot in the high 32 bits.
+ * Slots of removed connections are reused, and the generation is increased each time, so an old id does not
+ * find a new connection that happens to get the same slot.
+ *
+ * Lookups and iteration need no locking, adding and removing connections synchronize on the registry.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class ConnectionRegistry<T> implements Iterable<T> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+    /**
+     * Registered connection together with its id, so that lookups can check the generation.
+     */
+    private static final class Entry<T> {
+        private final long id;
+        private final T connection;
+
+        private Entry(long id, T connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+    }
+
+    // Replaced with a larger copy when full
+    private volatile AtomicReferenceArray<Entry<T>> entries;
+    private volatile int size = 0;
+
+    // Only accessed while synchronized on the registry
+    private int[] generations;
+    private int[] freeSlots;
+    private int freeSlotCount = 0;
+    private int usedSlotCount = 0;
+
+    ConnectionRegistry() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of connections to reserve space for.  Grows as needed.
+     */
+    ConnectionRegistry(int initialCapacity) {
+        positive(initialCapacity, "initialCapacity");
+
+        entries = new AtomicReferenceArray<Entry<T>>(initialCapacity);
+        generations = new int[initialCapacity];
+        freeSlots = new int[initialCapacity];
+    }
+
+    /**
+     * @return id of the added connection.
+     */
+    synchronized long add(T connection) {
+        notNull(connection, "connection");
+
+        final int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        }
+        else {
+            if (usedSlotCount == entries.length()) grow();
+            slot = usedSlotCount++;
+        }
+
+        final long id = toId(slot, generations[slot]);
+        entries.set(slot, new Entry<T>(id, connection));
+        size++;
+        return id;
+    }
+
+    /**
+     * Removes the connection with the specified id, if it is still registered.
+     * @return true if the connection was removed, false if there was no connection with the id.
+     */
+    synchronized boolean remove(long id) {
+        final int slot = slotOf(id);
+        if (slot < 0 || slot >= usedSlotCount) return false;
+
+        final Entry<T> entry = entries.get(slot);
+        if (entry == null || entry.id != id) return false;
+
+        entries.set(slot, null);
+        generations[slot]++;
+        freeSlots[freeSlotCount++] = slot;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the connection with the specified id, or null if it is not registered.  May be called from any thread.
+     */
+    T get(long id) {
+        final AtomicReferenceArray<Entry<T>> currentEntries = entries;
+        final int slot = slotOf(id);
+        if (slot < 0 || slot >= currentEntries.length()) return null;
+
+        final Entry<T> entry = currentEntries.get(slot);
+        return entry != null && entry.id == id ? entry.connection : null;
+    }
+
+    /**
+     * @return number of registered connections.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Iterates the connections that are registered while iterating.  Connections added or removed during the
+     * iteration may or may not be included.  May be used from any thread.
+     */
+    @Override public Iterator<T> iterator() {
+        final AtomicReferenceArray<Entry<T>> currentEntries = entries;
+
+        return new Iterator<T>() {
+            private int nextSlot = 0;
+            private T next = findNext();
+
+            @Override public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override public T next() {
+                if (next == null) throw new NoSuchElementException();
+
+                final T current = next;
+                next = findNext();
+                return current;
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException("Connections are removed from the registry when they are closed");
+            }
+
+            private T findNext() {
+                while (nextSlot < currentEntries.length()) {
+                    final Entry<T> entry = currentEntries.get(nextSlot++);
+                    if (entry != null) return entry.connection;
+                }
+                return null;
+            }
+        };
+    }
+
+    private void grow() {
+        final int oldCapacity = entries.length();
+        final int newCapacity = oldCapacity * 2;
+
+        final AtomicReferenceArray<Entry<T>> newEntries = new AtomicReferenceArray<Entry<T>>(newCapacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            newEntries.set(i, entries.get(i));
+        }
+
+        final int[] newGenerations = new int[newCapacity];
+        System.arraycopy(generations, 0, newGenerations, 0, oldCapacity);
+
+        final int[] newFreeSlots = new int[newCapacity];
+        System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeSlotCount);
+
+        generations = newGenerations;
+        freeSlots = newFreeSlots;
+        entries = newEntries;
+    }
+
+    private static long toId(int slot, int generation) {
+        return ((long) generation << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    private static int slotOf(long id) {
+        return (int) id;
+    }
+}
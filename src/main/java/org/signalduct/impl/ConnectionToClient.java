@@ -1,10 +1,14 @@
 package org.signalduct.impl;
 
+import org.signalduct.filter.FilterChain;
 import org.signalduct.impl.ConnectionBase;
+import org.signalduct.utils.BufferPool;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.flowutils.Check.notNull;
 
@@ -14,13 +18,27 @@ import static org.flowutils.Check.notNull;
 public class ConnectionToClient extends ConnectionBase {
 
     private final SocketChannel socketChannel;
+    private volatile ConnectionRegistry<ConnectionToClient> registry;
+    private volatile long id = -1;
+    private final AtomicReference<ConnectionAdmission> admission = new AtomicReference<ConnectionAdmission>();
+    private volatile InetAddress admittedAddress;
 
-    public ConnectionToClient(SocketChannel socketChannel) {
+    public ConnectionToClient(SocketChannel socketChannel, FilterChain filterChain, BufferPool bufferPool) {
+        super(filterChain, bufferPool);
         notNull(socketChannel, "socketChannel");
 
         this.socketChannel = socketChannel;
     }
 
+    /**
+     * @return id of this connection, unique among the current connections of the server network,
+     *         or -1 if the connection has not been registered yet.
+     *         Ids of closed connections may be reused, but an old id never finds a newer connection.
+     */
+    public final long getId() {
+        return id;
+    }
+
     @Override public boolean isConnected() {
         return socketChannel.isConnected();
     }
@@ -29,4 +47,30 @@ public class ConnectionToClient extends ConnectionBase {
         return socketChannel;
     }
 
+    /**
+     * Adds this connection to the registry, and removes it from there when the channel is closed.
+     */
+    final void register(ConnectionRegistry<ConnectionToClient> registry) {
+        this.registry = registry;
+        id = registry.add(this);
+    }
+
+    /**
+     * Releases the connection from the admission counts when the channel is closed.
+     * @param address remote address that the connection was admitted for.
+     */
+    final void setAdmission(ConnectionAdmission admission, InetAddress address) {
+        admittedAddress = address;
+        this.admission.set(admission);
+    }
+
+    @Override protected void onChannelClosed() {
+        final ConnectionRegistry<ConnectionToClient> currentRegistry = registry;
+        if (currentRegistry != null) currentRegistry.remove(id);
+
+        // The channel may be closed more than once, but the connection is released only once
+        final ConnectionAdmission currentAdmission = admission.getAndSet(null);
+        if (currentAdmission != null) currentAdmission.release(admittedAddress);
+    }
+
 }
@@ -2,6 +2,9 @@ package org.signalduct.impl;
 
 import org.flowutils.Check;
 
+import org.signalduct.filter.FilterChain;
+import org.signalduct.utils.BufferPool;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
@@ -15,7 +18,8 @@ public class ConnectionToServer extends ConnectionBase {
 
     private final SocketChannel socketChannel;
 
-    public ConnectionToServer(SocketChannel socketChannel) {
+    public ConnectionToServer(SocketChannel socketChannel, FilterChain filterChain, BufferPool bufferPool) {
+        super(filterChain, bufferPool);
         Check.notNull(socketChannel, "socketChannel");
 
         this.socketChannel = socketChannel;
@@ -0,0 +1,221 @@
+package org.signalduct.impl;
+
+import org.signalduct.metrics.NetworkMetrics;
+import org.signalduct.utils.SharedBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock free queue of buffers waiting to be written to a connection.
+ *
+ * Any number of threads may add buffers, but only one thread at a time (the thread of the ConnectionMonitor that
+ * handles the connection) may remove them.  All buffers of one message are added atomically, so messages sent
+ * concurrently from different threads are never interleaved.
+ *
+ * A buffer may be a view of a SharedBuffer, in which case the shared buffer is queued along with it as its owner,
+ * so that the reference to it can be released once the view has been written.
+ *
+ * The consuming thread can drop the oldest queued messages, at message boundaries, when the receiver is too slow.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class OutboundQueue {
+
+    /**
+     * Releases buffers of dropped messages.
+     */
+    interface BufferReleaser {
+        void release(ByteBuffer buffer, SharedBuffer owner);
+    }
+
+    private static final class Node {
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        // Set to null when the buffer is polled or dropped
+        private ByteBuffer buffer;
+        private SharedBuffer owner;
+        private final boolean messageStart;
+        private volatile Node next;
+
+        private Node(ByteBuffer buffer, SharedBuffer owner, boolean messageStart) {
+            this.buffer = buffer;
+            this.owner = owner;
+            this.messageStart = messageStart;
+        }
+    }
+
+    private final AtomicReference<Node> tail;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private NetworkMetrics metrics;
+
+    // Only accessed by the consuming thread
+    private Node head;
+    private SharedBuffer polledOwner;
+
+    OutboundQueue() {
+        head = new Node(null, null, false);
+        tail = new AtomicReference<Node>(head);
+    }
+
+    /**
+     * Adds a buffer to the end of the queue.  May be called from any thread.
+     */
+    void add(ByteBuffer buffer) {
+        final Node node = new Node(buffer, null, true);
+        changeQueuedBytes(buffer.remaining());
+        link(node, node);
+    }
+
+    /**
+     * Adds the buffers after each other to the end of the queue, without buffers added by other threads in between.
+     * May be called from any thread.
+     */
+    void add(ByteBuffer[] buffers) {
+        add(buffers, null);
+    }
+
+    /**
+     * Adds the buffers after each other to the end of the queue, without buffers added by other threads in between.
+     * May be called from any thread.
+     *
+     * @param owners shared buffers that the buffers with the same index are views of, or null if none of them are.
+     */
+    void add(ByteBuffer[] buffers, SharedBuffer[] owners) {
+        if (buffers.length == 0) return;
+
+        // Link the nodes privately first, then publish them all at once
+        long bytes = 0;
+        final Node first = new Node(buffers[0], owners == null ? null : owners[0], true);
+        bytes += buffers[0].remaining();
+        Node last = first;
+        for (int i = 1; i < buffers.length; i++) {
+            final Node node = new Node(buffers[i], owners == null ? null : owners[i], false);
+            bytes += buffers[i].remaining();
+            Node.NEXT_UPDATER.lazySet(last, node);
+            last = node;
+        }
+
+        changeQueuedBytes(bytes);
+        link(first, last);
+    }
+
+    /**
+     * @param metrics metrics to record changes in the number of queued bytes in, or null to not record them.
+     *                Should be set before anything is added to the queue.
+     */
+    void setMetrics(NetworkMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void changeQueuedBytes(long bytes) {
+        queuedBytes.addAndGet(bytes);
+        if (metrics != null) metrics.recordQueuedOutboundBytes(bytes);
+    }
+
+    private void link(Node first, Node last) {
+        final Node previous = tail.getAndSet(last);
+        previous.next = first;
+    }
+
+    /**
+     * Removes the buffer at the start of the queue.  Only called by the consuming thread.
+     *
+     * @return the removed buffer, or null if the queue is empty,
+     *         or if a buffer is being added concurrently but is not yet visible.
+     */
+    ByteBuffer poll() {
+        skipDroppedNodes();
+
+        final Node next = head.next;
+        if (next == null) return null;
+
+        final ByteBuffer buffer = next.buffer;
+        polledOwner = next.owner;
+        next.buffer = null;
+        next.owner = null;
+        head = next;
+
+        return buffer;
+    }
+
+    /**
+     * Drops the oldest queued messages until at most maxQueuedBytes remain queued, or no more messages can be dropped.
+     * Only whole messages that have not been polled at all are dropped, so the remaining data stays well formed.
+     * Only called by the consuming thread.
+     *
+     * @param releaser called for each buffer of the dropped messages.
+     * @return number of dropped messages.
+     */
+    int dropOldestMessages(long maxQueuedBytes, BufferReleaser releaser) {
+        int droppedMessages = 0;
+
+        // Buffers before the first message start belong to a message that has already been partly polled
+        Node node = head.next;
+        while (node != null && !node.messageStart) node = node.next;
+
+        while (node != null && queuedBytes.get() > maxQueuedBytes) {
+            final boolean alreadyDropped = node.buffer == null;
+
+            long droppedBytes = 0;
+            do {
+                if (node.buffer != null) {
+                    droppedBytes += node.buffer.remaining();
+                    releaser.release(node.buffer, node.owner);
+                    node.buffer = null;
+                    node.owner = null;
+                }
+                node = node.next;
+            } while (node != null && !node.messageStart);
+
+            if (!alreadyDropped) {
+                changeQueuedBytes(-droppedBytes);
+                droppedMessages++;
+            }
+        }
+
+        return droppedMessages;
+    }
+
+    private void skipDroppedNodes() {
+        Node next = head.next;
+        while (next != null && next.buffer == null) {
+            head = next;
+            next = next.next;
+        }
+    }
+
+    /**
+     * @return the shared buffer that the buffer returned by the last poll is a view of, or null if it is not a view.
+     *         Only called by the consuming thread.
+     */
+    SharedBuffer getPolledOwner() {
+        return polledOwner;
+    }
+
+    /**
+     * Should be called by the consuming thread when bytes from polled buffers have been written or discarded,
+     * to keep the queued byte count up to date.
+     */
+    void bytesRemoved(long bytes) {
+        changeQueuedBytes(-bytes);
+    }
+
+    /**
+     * @return number of bytes that have been added but not yet written.  May be called from any thread.
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return true if there are no buffers in the queue.  Only called by the consuming thread.
+     */
+    boolean isEmpty() {
+        skipDroppedNodes();
+        return head.next == null;
+    }
+}
@@ -1,50 +1,418 @@
 package org.signalduct.impl;
 
+import org.signalduct.Connection;
 import org.signalduct.ConnectionListener;
+import org.signalduct.SocketOptions;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.filter.impl.FilterChainImpl;
+import org.signalduct.utils.BufferPool;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+import static org.flowutils.Check.positiveOrZero;
 
 /**
+ * Accepts incoming connections in its own thread, and distributes them among a number of connection monitors,
+ * each of which handles the network events of its connections in a thread of its own.
  *
+ * Several acceptor threads, each with a server socket of its own bound to the same port with SO_REUSEPORT,
+ * can be used where the platform supports it, so that the kernel spreads incoming connections among them.
  */
 public class ServerNetwork extends ChannelMonitor<ServerSocketChannel> {
 
+    /**
+     * Max number of connections accepted for one acceptable event.  Connections still waiting after that are accepted
+     * in the next round of event handling, so that a connection storm does not keep the accepting thread from
+     * handling its other work.
+     */
+    private static final int MAX_ACCEPTS_PER_EVENT = 64;
+
+    /**
+     * SO_REUSEPORT socket option, or null if it is not available in this Java version.
+     * Looked up reflectively, as it was only added in Java 9.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
     private final ConnectionListener connectionListener;
-    private final AtomicLong nextConnectionId = new AtomicLong(1);
 
-    private final ConcurrentHashMap<Long, ConnectionToClient> connections = new ConcurrentHashMap<Long, ConnectionToClient>();
+    private final ConnectionRegistry<ConnectionToClient> connections = new ConnectionRegistry<ConnectionToClient>();
+    private final ConnectionAdmission admission = new ConnectionAdmission();
     private final InetSocketAddress address;
 
+    private final FilterChainImpl filterChain = new FilterChainImpl();
+    private final ConnectionDispatcher dispatcher = new ConnectionDispatcher();
+    private final BufferPool bufferPool;
+
+    private int connectionMonitorCount = Runtime.getRuntime().availableProcessors();
+    private ConnectionDistribution connectionDistribution = ConnectionDistribution.ROUND_ROBIN;
+    private ConnectionMonitor[] connectionMonitors;
+    private final AtomicInteger nextConnectionMonitorIndex = new AtomicInteger(0);
+    private volatile Executor listenerExecutor;
+
+    private int acceptBacklog = 0;
+    private int acceptorCount = 1;
+    private final List<Acceptor> acceptors = new ArrayList<Acceptor>();
+    private volatile SocketOptions socketOptions = new SocketOptions();
+
     public ServerNetwork(int port, ConnectionListener connectionListener) {
+        this(port, connectionListener, BufferPool.getDefault());
+    }
+
+    /**
+     * @param port port to listen for incoming connections on.
+     * @param connectionListener listener that is notified about new connections.
+     * @param bufferPool pool to get buffers for network data from.
+     */
+    public ServerNetwork(int port, ConnectionListener connectionListener, BufferPool bufferPool) {
         notNull(connectionListener, "connectionListener");
+        notNull(bufferPool, "bufferPool");
 
         this.connectionListener = connectionListener;
+        this.bufferPool = bufferPool;
 
         address = new InetSocketAddress(port);
+
+        filterChain.initialize(dispatcher, dispatcher);
+    }
+
+    /**
+     * @return the filter chain that messages sent and received by this network are passed through.
+     */
+    public final FilterChain getFilterChain() {
+        return filterChain;
+    }
+
+    /**
+     * Records the processing time of each filter in the metrics of this network, with some overhead per filter call.
+     * Disabled by default.
+     */
+    public final void setFilterTiming(boolean enabled) {
+        filterChain.setFilterTiming(enabled ? getMetrics() : null);
+    }
+
+    /**
+     * @param connectionMonitorCount number of threads that handle the network events of accepted connections.
+     *                               Defaults to the number of available processors.
+     *                               Can only be changed before the network is started.
+     */
+    public final void setConnectionMonitorCount(int connectionMonitorCount) {
+        positive(connectionMonitorCount, "connectionMonitorCount");
+        checkNotStarted("connection monitor count");
+
+        this.connectionMonitorCount = connectionMonitorCount;
+    }
+
+    /**
+     * @return number of threads that handle the network events of accepted connections.
+     */
+    public final int getConnectionMonitorCount() {
+        return connectionMonitorCount;
+    }
+
+    /**
+     * @param connectionDistribution how accepted connections are distributed among the connection monitor threads.
+     *                               Defaults to round robin.
+     */
+    public final void setConnectionDistribution(ConnectionDistribution connectionDistribution) {
+        notNull(connectionDistribution, "connectionDistribution");
+
+        this.connectionDistribution = connectionDistribution;
+    }
+
+    /**
+     * @return how accepted connections are distributed among the connection monitor threads.
+     */
+    public final ConnectionDistribution getConnectionDistribution() {
+        return connectionDistribution;
+    }
+
+    /**
+     * Sets the socket options applied to the server sockets and every accepted connection.
+     * Individual connections can override them with Connection.setSocketOptions.
+     *
+     * @param socketOptions options to apply.  A copy is taken, so later changes to the object have no effect.
+     *                      Defaults to options with nothing set, leaving all options at the platform defaults.
+     *                      Can only be changed before the network is started.
+     */
+    public final void setSocketOptions(SocketOptions socketOptions) {
+        notNull(socketOptions, "socketOptions");
+        checkNotStarted("socket options");
+
+        this.socketOptions = new SocketOptions(socketOptions);
+    }
+
+    /**
+     * @return a copy of the socket options applied to the server sockets and accepted connections.
+     */
+    public final SocketOptions getSocketOptions() {
+        return new SocketOptions(socketOptions);
+    }
+
+    /**
+     * @param acceptBacklog max number of incoming connections that the operating system queues while waiting for
+     *                      them to be accepted, or 0 to use the default of the platform, which is the default.
+     *                      Raising it helps to avoid refused connections when many clients reconnect at once.
+     *                      The operating system may limit the value, for example with net.core.somaxconn on Linux.
+     *                      Can only be changed before the network is started.
+     */
+    public final void setAcceptBacklog(int acceptBacklog) {
+        positiveOrZero(acceptBacklog, "acceptBacklog");
+        checkNotStarted("accept backlog");
+
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    /**
+     * @return max number of incoming connections queued by the operating system, or 0 if the default is used.
+     */
+    public final int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @param acceptorCount number of threads that accept incoming connections, each with a server socket of its own
+     *                      bound with SO_REUSEPORT.  Defaults to one.  If SO_REUSEPORT is not supported by the
+     *                      platform, a single acceptor is used regardless.
+     *                      Can only be changed before the network is started.
+     */
+    public final void setAcceptorCount(int acceptorCount) {
+        positive(acceptorCount, "acceptorCount");
+        checkNotStarted("acceptor count");
+
+        this.acceptorCount = acceptorCount;
+    }
+
+    /**
+     * @return number of threads that accept incoming connections, if the platform supports SO_REUSEPORT.
+     */
+    public final int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * Incoming connections that would exceed the limit are closed as soon as they are accepted,
+     * before any connection state is created or listeners are notified.
+     *
+     * @param maxConnections max number of open connections to clients, or 0 for no limit, which is the default.
+     */
+    public final void setMaxConnections(int maxConnections) {
+        admission.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * @return max number of open connections to clients, or 0 if not limited.
+     */
+    public final int getMaxConnections() {
+        return admission.getMaxConnections();
+    }
+
+    /**
+     * Limits the number of connections a single host can open, so that one client can not use up all the connections.
+     * Incoming connections that would exceed the limit are closed as soon as they are accepted.
+     *
+     * @param maxConnectionsPerAddress max number of open connections from one remote IP address,
+     *                                 or 0 for no limit, which is the default.
+     */
+    public final void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        admission.setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+    }
+
+    /**
+     * @return max number of open connections from one remote IP address, or 0 if not limited.
+     */
+    public final int getMaxConnectionsPerAddress() {
+        return admission.getMaxConnectionsPerAddress();
+    }
+
+    /**
+     * Sets the executor that the listeners of connections are notified with.
+     * Each connection uses a SerialExecutor on top of it, so the events of a connection are delivered in order,
+     * while different connections can be handled in parallel.  Listeners may then block, for example on database
+     * calls, without stalling network input and output.  Reading from a connection is paused if its listeners
+     * fall far behind.  VirtualThreads.newVirtualThreadPerTaskExecutor() gives each connection a virtual thread.
+     *
+     * Received ByteBuffers are copied for the listeners, as the buffers they were read into are reused.
+     *
+     * Applies to connections created after the call.  The network does not shut down the executor.
+     *
+     * @param listenerExecutor executor to notify listeners with, or null to notify them directly in the network
+     *                         threads, which is the default.
+     */
+    public final void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * @return the executor that the listeners of connections are notified with, or null if they are notified directly.
+     */
+    public final Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * @param connectionId id of a connection accepted by this network, as returned by ConnectionToClient.getId().
+     * @return the connection with the id, or null if there is no open connection with the id.
+     *         May be called from any thread.
+     */
+    public final ConnectionToClient getConnection(long connectionId) {
+        return connections.get(connectionId);
+    }
+
+    /**
+     * @return number of open connections accepted by this network.
+     */
+    public final int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Sends the message to all connected clients.
+     * The message is passed through the filter chain and encoded only once, with one of the clients as the connection,
+     * and the encoded data is shared by all the connections, so filters that keep per connection state for sent
+     * messages should not be used.  Filters should pass the message on in the calling thread.
+     * May be called from any thread.
+     */
+    public final void broadcast(Object message) {
+        broadcast(message, connections);
+    }
+
+    /**
+     * Sends the message to the specified connections of this network that are connected.
+     * The message is passed through the filter chain and encoded only once, with one of the targets as the connection,
+     * and the encoded data is shared by all the connections, so filters that keep per connection state for sent
+     * messages should not be used.  Filters should pass the message on in the calling thread.
+     * May be called from any thread.
+     *
+     * @param targets connections accepted by this network to send the message to.
+     */
+    public final void broadcast(Object message, Iterable<? extends Connection> targets) {
+        notNull(targets, "targets");
+
+        final List<ConnectionToClient> connectionsToClients = new ArrayList<ConnectionToClient>();
+        for (Connection target : targets) {
+            if (!(target instanceof ConnectionToClient) || ((ConnectionToClient) target).getFilterChain() != filterChain) {
+                throw new IllegalArgumentException("Can only broadcast to connections accepted by this network, but got " + target);
+            }
+            connectionsToClients.add((ConnectionToClient) target);
+        }
+
+        dispatcher.broadcast(filterChain, message, connectionsToClients, bufferPool);
     }
 
     @Override public void start() throws NetworkException {
-        initializeServerChannel();
-        super.start();
+        // Checked before anything is set up, so that the cleanup below never stops a running network
+        if (isStarted()) throw new IllegalStateException(getClass().getSimpleName() + " already started, can't start twice!");
+
+        boolean started = false;
+        try {
+            startConnectionMonitors();
+            initializeServerChannels();
+            super.start();
+            started = true;
+        } finally {
+            // Don't leave the connection monitors and acceptors running if the network could not be set up
+            if (!started) stopAfterFailedStart();
+        }
     }
 
-    private void initializeServerChannel() throws NetworkException {
-        ServerSocketChannel serverChannel = createNonBlockingServerSocketChannel(address);
+    @Override public void stop() throws NetworkException {
+        NetworkException firstProblem = null;
+        for (Acceptor acceptor : acceptors) {
+            try {
+                acceptor.stop();
+            } catch (NetworkException e) {
+                if (firstProblem == null) firstProblem = e;
+            }
+        }
+
+        super.stop();
+        stopConnectionMonitors();
+
+        if (firstProblem != null) throw firstProblem;
+    }
+
+    private void stopAfterFailedStart() {
+        try {
+            stop();
+        } catch (NetworkException e) {
+            LoggerFactory.getLogger(getClass()).warn("Problem when stopping the network after it failed to start: " + e.getMessage(), e);
+        }
+    }
+
+    private void startConnectionMonitors() throws NetworkException {
+        connectionMonitors = new ConnectionMonitor[connectionMonitorCount];
+        for (int i = 0; i < connectionMonitorCount; i++) {
+            connectionMonitors[i] = new ConnectionMonitor();
+            connectionMonitors[i].setMetrics(getMetrics());
+            connectionMonitors[i].start();
+        }
+    }
+
+    private void stopConnectionMonitors() throws NetworkException {
+        if (connectionMonitors == null) return;
+
+        // Stop all monitors even if some of them fail to stop cleanly
+        NetworkException firstProblem = null;
+        for (ConnectionMonitor connectionMonitor : connectionMonitors) {
+            // Monitors after one that failed to start were never created
+            if (connectionMonitor == null) continue;
+
+            try {
+                connectionMonitor.stop();
+            } catch (NetworkException e) {
+                if (firstProblem == null) firstProblem = e;
+            }
+        }
+
+        if (firstProblem != null) throw firstProblem;
+    }
+
+    private void initializeServerChannels() throws NetworkException {
+        final boolean reusePort = acceptorCount > 1 && isReusePortSupported();
+        if (acceptorCount > 1 && !reusePort) {
+            LoggerFactory.getLogger(getClass()).warn("SO_REUSEPORT is not supported on this platform, using a single acceptor instead of " + acceptorCount);
+        }
+
+        ServerSocketChannel serverChannel = createNonBlockingServerSocketChannel(address, reusePort);
         listenToChannelEvents(serverChannel);
+
+        if (reusePort) {
+            for (int i = 1; i < acceptorCount; i++) {
+                final Acceptor acceptor = new Acceptor();
+                acceptor.setMetrics(getMetrics());
+                acceptors.add(acceptor);
+                acceptor.listenToChannelEvents(createNonBlockingServerSocketChannel(address, true));
+                acceptor.start();
+            }
+        }
     }
 
-    private ServerSocketChannel createNonBlockingServerSocketChannel(final InetSocketAddress address) throws NetworkException {
+    private ServerSocketChannel createNonBlockingServerSocketChannel(final InetSocketAddress address, boolean reusePort) throws NetworkException {
         ServerSocketChannel channel = null;
         try {
             channel = ServerSocketChannel.open();
-            channel.socket().bind(address);
+
+            // Lets several server sockets bind to the same port, with the kernel spreading new connections among them
+            if (reusePort) channel.setOption(SO_REUSEPORT, true);
+
+            // Set before binding, so that the receive buffer size is inherited by accepted connections
+            socketOptions.applyTo(channel);
+
+            channel.socket().bind(address, acceptBacklog);
 
             // Switch to non-blocking mode, allowing us to use selectors to listen to channel events.
             channel.configureBlocking(false);
@@ -63,23 +431,128 @@ public class ServerNetwork extends ChannelMonitor<ServerSocketChannel> {
         }
     }
 
-    @Override protected void acceptNewConnection(ServerSocketChannel channel) throws Exception {
-        SocketChannel channelToNewClient = channel.accept();
-        createConnectionToClient(channelToNewClient);
+    /**
+     * @return true if server sockets can be bound to the same port with SO_REUSEPORT on this platform.
+     */
+    private static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) return false;
+
+        try {
+            final ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                return channel.supportedOptions().contains(SO_REUSEPORT);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override protected void acceptNewConnection(ServerSocketChannel channel, SelectionKey selectionKey) throws Exception {
+        acceptConnections(channel);
+    }
+
+    /**
+     * Accepts the connections waiting on the channel, up to MAX_ACCEPTS_PER_EVENT.
+     * Called from the thread of each acceptor.
+     */
+    private void acceptConnections(ServerSocketChannel channel) throws IOException, NetworkException {
+        for (int i = 0; i < MAX_ACCEPTS_PER_EVENT; i++) {
+            final SocketChannel channelToNewClient = channel.accept();
+            if (channelToNewClient == null) return;
+
+            admitConnectionToClient(channelToNewClient);
+        }
+    }
+
+    private void admitConnectionToClient(SocketChannel channelToNewClient) throws IOException, NetworkException {
+        final InetAddress remoteAddress = channelToNewClient.socket().getInetAddress();
+
+        // Rejected before any connection state is created, to keep the cost of a connection flood low
+        if (!admission.admit(remoteAddress)) {
+            getMetrics().recordConnectionRejected();
+            channelToNewClient.close();
+            return;
+        }
+
+        try {
+            channelToNewClient.configureBlocking(false);
+            socketOptions.applyTo(channelToNewClient);
+        } catch (IOException e) {
+            channelToNewClient.close();
+            admission.release(remoteAddress);
+            throw e;
+        }
+
+        createConnectionToClient(channelToNewClient, remoteAddress);
     }
 
-    private void createConnectionToClient(SocketChannel channelToNewClient) {
-        ConnectionToClient connectionToClient = new ConnectionToClient(channelToNewClient);
+    private void createConnectionToClient(SocketChannel channelToNewClient, InetAddress remoteAddress) throws NetworkException {
+        ConnectionToClient connectionToClient = new ConnectionToClient(channelToNewClient, filterChain, bufferPool);
+
+        // Released from the admission counts when the channel of the connection is closed
+        connectionToClient.setAdmission(admission, remoteAddress);
+        connectionToClient.setListenerExecutor(listenerExecutor);
+        connectionToClient.setMetrics(getMetrics());
+        getMetrics().recordConnectionAccepted();
         addConnection(connectionToClient);
-        notifyListenersAboutNewConnection(connectionToClient);
+
+        // The listener is notified about the connect event when the connection monitor starts listening to the channel
+        connectionToClient.addListener(connectionListener);
+
+        boolean listening = false;
+        try {
+            selectConnectionMonitor().listenToConnection(connectionToClient, SelectionKey.OP_READ);
+            listening = true;
+        } finally {
+            // Closes the channel, and removes the connection from the registry and the admission counts
+            if (!listening) connectionToClient.closeChannel();
+        }
     }
 
-    private void addConnection(ConnectionToClient connectionToClient) {
-        connections.put(nextConnectionId.getAndIncrement(), connectionToClient);
+    /**
+     * @return the connection monitor that should handle the next accepted connection.
+     *         Called from the threads of all the acceptors.
+     */
+    private ConnectionMonitor selectConnectionMonitor() {
+        switch (connectionDistribution) {
+            case LEAST_LOADED:
+                ConnectionMonitor leastLoaded = connectionMonitors[0];
+                for (int i = 1; i < connectionMonitors.length; i++) {
+                    if (connectionMonitors[i].getAssignedConnectionCount() < leastLoaded.getAssignedConnectionCount()) {
+                        leastLoaded = connectionMonitors[i];
+                    }
+                }
+                return leastLoaded;
+
+            case ROUND_ROBIN:
+            default:
+                final int index = nextConnectionMonitorIndex.getAndIncrement() & Integer.MAX_VALUE;
+                return connectionMonitors[index % connectionMonitors.length];
+        }
     }
 
-    private void notifyListenersAboutNewConnection(ConnectionToClient connectionToClient) {
-        connectionListener.onConnected(connectionToClient);
+    private void addConnection(ConnectionToClient connectionToClient) {
+        // Removed again when the channel of the connection is closed
+        connectionToClient.register(connections);
     }
 
+    /**
+     * Accepts connections from an additional server socket bound to the same port, in a thread of its own.
+     */
+    private final class Acceptor extends ChannelMonitor<ServerSocketChannel> {
+        @Override protected void acceptNewConnection(ServerSocketChannel channel, SelectionKey selectionKey) throws Exception {
+            acceptConnections(channel);
+        }
+    }
 }
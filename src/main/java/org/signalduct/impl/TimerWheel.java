@@ -0,0 +1,199 @@
+package org.signalduct.impl;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+import static org.flowutils.Check.positiveOrZero;
+
+/**
+ * Hashed timing wheel for running tasks after a delay, with constant time scheduling and cancelling.
+ *
+ * Time is divided into ticks, and each timeout is placed in the bucket of the tick it expires on, modulo the number
+ * of buckets.  Advancing the wheel only looks at the buckets of the passed ticks, so large numbers of timeouts,
+ * such as the idle timeouts of every connection, cost next to nothing until they expire.
+ * Timeouts expire at most one tick late.
+ *
+ * Not thread safe, used only from the selector thread of a ChannelMonitor.
+ *
+ * This class is package protected, as it is not needed outside this package.
+ */
+final class TimerWheel {
+
+    /**
+     * Task scheduled to run after a delay.  Can be cancelled until it has been run.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private long remainingRounds;
+        private int bucket = NOT_SCHEDULED;
+        private Timeout previous;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return true if the timeout has been cancelled.
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Marks the timeout as cancelled without removing it from the wheel, so that its task is not run when it
+         * expires.  May be called from any thread.
+         */
+        void markCancelled() {
+            cancelled = true;
+        }
+    }
+
+    // Bucket values of timeouts that are not in any bucket
+    private static final int NOT_SCHEDULED = -1;
+    private static final int EXPIRING = -2;
+
+    private final long tickMilliseconds;
+    private final Timeout[] buckets;
+    private final int bucketMask;
+
+    private long currentTick;
+    private int timeoutCount = 0;
+
+    /**
+     * @param tickMilliseconds length of a tick, which is the resolution of the timeouts.
+     * @param bucketCount number of buckets, rounded up to a power of two.
+     *                    Timeouts further away than this number of ticks pass the wheel several times before expiring.
+     * @param currentTimeMilliseconds current time.
+     */
+    TimerWheel(long tickMilliseconds, int bucketCount, long currentTimeMilliseconds) {
+        positive(tickMilliseconds, "tickMilliseconds");
+        positive(bucketCount, "bucketCount");
+
+        int size = 1;
+        while (size < bucketCount) size <<= 1;
+
+        this.tickMilliseconds = tickMilliseconds;
+        buckets = new Timeout[size];
+        bucketMask = size - 1;
+        currentTick = currentTimeMilliseconds / tickMilliseconds;
+    }
+
+    /**
+     * @param task task to run when the timeout expires.
+     * @return a timeout that has not yet been scheduled, to be passed to schedule().
+     */
+    static Timeout createTimeout(Runnable task) {
+        notNull(task, "task");
+        return new Timeout(task);
+    }
+
+    /**
+     * Schedules the timeout to expire after the delay.  Does nothing if the timeout has been cancelled.
+     *
+     * @param timeout timeout that is not currently scheduled.
+     * @param delayMilliseconds delay after the current time, rounded up to whole ticks.
+     * @param currentTimeMilliseconds current time.
+     */
+    void schedule(Timeout timeout, long delayMilliseconds, long currentTimeMilliseconds) {
+        positiveOrZero(delayMilliseconds, "delayMilliseconds");
+        if (timeout.cancelled) return;
+        if (timeout.bucket != NOT_SCHEDULED) throw new IllegalStateException("The timeout is already scheduled");
+
+        // Skip the ticks passed while the wheel was empty, instead of stepping through them on the next advance
+        if (timeoutCount == 0) currentTick = Math.max(currentTick, currentTimeMilliseconds / tickMilliseconds);
+
+        // Expire at the earliest on the next tick, as the current one may already have been handled
+        final long deadlineTick = Math.max((currentTimeMilliseconds + delayMilliseconds + tickMilliseconds - 1) / tickMilliseconds,
+                                           currentTick + 1);
+        timeout.remainingRounds = (deadlineTick - currentTick - 1) / buckets.length;
+
+        final int bucket = (int) (deadlineTick & bucketMask);
+        timeout.bucket = bucket;
+        timeout.previous = null;
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) buckets[bucket].previous = timeout;
+        buckets[bucket] = timeout;
+
+        timeoutCount++;
+    }
+
+    /**
+     * Cancels the timeout, so that it is not run.
+     */
+    void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+        unlink(timeout);
+    }
+
+    /**
+     * @return number of scheduled timeouts.
+     */
+    int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return milliseconds until the next tick, or 0 if no timeouts are scheduled.
+     */
+    long getMillisecondsUntilNextTick(long currentTimeMilliseconds) {
+        if (timeoutCount == 0) return 0;
+
+        return Math.max(1, (currentTick + 1) * tickMilliseconds - currentTimeMilliseconds);
+    }
+
+    /**
+     * Runs the tasks of the timeouts that have expired by the current time.
+     * Tasks may schedule and cancel timeouts, but should not throw exceptions.
+     */
+    void advance(long currentTimeMilliseconds) {
+        final long targetTick = currentTimeMilliseconds / tickMilliseconds;
+
+        while (currentTick < targetTick) {
+            if (timeoutCount == 0) {
+                currentTick = targetTick;
+                return;
+            }
+
+            currentTick++;
+
+            // Collect the expired timeouts first, so that tasks can freely schedule and cancel timeouts
+            Timeout expired = null;
+            Timeout timeout = buckets[(int) (currentTick & bucketMask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    unlink(timeout);
+                    timeout.bucket = EXPIRING;
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+
+            while (expired != null) {
+                final Timeout next = expired.next;
+                expired.next = null;
+                expired.bucket = NOT_SCHEDULED;
+                if (!expired.cancelled) expired.task.run();
+                expired = next;
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) return;
+
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = NOT_SCHEDULED;
+        timeoutCount--;
+    }
+}
@@ -0,0 +1,72 @@
+package org.signalduct.metrics;
+
+/**
+ * Immutable copy of the state of a LatencyHistogram.
+ */
+public final class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        this.sum = sum;
+        this.max = max;
+
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        count = total;
+    }
+
+    /**
+     * @return number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return average of the recorded values, or 0 if there are none.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return largest recorded value, or 0 if there are none.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile percentage of the recorded values, from 0 to 100.
+     * @return the value that the specified percentage of the recorded values are at or below,
+     *         within the precision of the histogram, or 0 if there are no values.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("The percentile should be in the range 0..100, but was " + percentile);
+        if (count == 0) return 0;
+
+        final long targetCount = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long countSoFar = 0;
+        for (int i = 0; i < counts.length; i++) {
+            countSoFar += counts[i];
+            if (countSoFar >= targetCount) return Math.min(LatencyHistogram.highestValueInBucket(i), max);
+        }
+        return max;
+    }
+
+    @Override public String toString() {
+        return "count=" + count +
+               ", mean=" + Math.round(getMean()) +
+               ", p50=" + getValueAtPercentile(50) +
+               ", p99=" + getValueAtPercentile(99) +
+               ", p99.9=" + getValueAtPercentile(99.9) +
+               ", max=" + max;
+    }
+}
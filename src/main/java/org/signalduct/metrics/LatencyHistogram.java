@@ -0,0 +1,75 @@
+package org.signalduct.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations or other non-negative values, with logarithmic buckets in the style of HdrHistogram.
+ *
+ * Each power of two range is split into SUB_BUCKET_COUNT linear buckets, so recorded values are kept with a
+ * relative precision of about 6%, over the whole range of long values, in a fixed size array.
+ * Recording is lock free, does not allocate, and may be done from any number of threads.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of buckets each power of two range is split into.
+     */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.  Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return a copy of the current state of the histogram.  Values recorded while copying may or may not be included.
+     */
+    public HistogramSnapshot snapshot() {
+        final long[] countsCopy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            countsCopy[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(countsCopy, sum.sum(), max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the largest value that is recorded in the bucket with the specified index.
+     */
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        final int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKET_COUNT;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final long lowest = ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+}
@@ -0,0 +1,169 @@
+package org.signalduct.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable copy of the values of NetworkMetrics at some moment.
+ * Rates can be calculated from the difference between two snapshots.
+ */
+public final class MetricsSnapshot {
+
+    private final long timeNanoseconds;
+    private final long selectorLoops;
+    private final long selectorWakeups;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long messagesReceived;
+    private final long messagesSent;
+    private final long connectionsAccepted;
+    private final long connectionsRejected;
+    private final long queuedOutboundBytes;
+    private final HistogramSnapshot eventHandlingTime;
+    private final Map<String, HistogramSnapshot> filterTimes;
+
+    MetricsSnapshot(long timeNanoseconds,
+                    long selectorLoops,
+                    long selectorWakeups,
+                    long bytesRead,
+                    long bytesWritten,
+                    long messagesReceived,
+                    long messagesSent,
+                    long connectionsAccepted,
+                    long connectionsRejected,
+                    long queuedOutboundBytes,
+                    HistogramSnapshot eventHandlingTime,
+                    Map<String, HistogramSnapshot> filterTimes) {
+        this.timeNanoseconds = timeNanoseconds;
+        this.selectorLoops = selectorLoops;
+        this.selectorWakeups = selectorWakeups;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.messagesReceived = messagesReceived;
+        this.messagesSent = messagesSent;
+        this.connectionsAccepted = connectionsAccepted;
+        this.connectionsRejected = connectionsRejected;
+        this.queuedOutboundBytes = queuedOutboundBytes;
+        this.eventHandlingTime = eventHandlingTime;
+        this.filterTimes = Collections.unmodifiableMap(filterTimes);
+    }
+
+    /**
+     * @return System.nanoTime() when the snapshot was taken.
+     */
+    public long getTimeNanoseconds() {
+        return timeNanoseconds;
+    }
+
+    /**
+     * @return number of iterations of the event handling loops of all network threads.
+     */
+    public long getSelectorLoops() {
+        return selectorLoops;
+    }
+
+    /**
+     * @return number of times other threads woke up a network thread waiting for network events.
+     */
+    public long getSelectorWakeups() {
+        return selectorWakeups;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of messages delivered to the listeners of connections.
+     */
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    /**
+     * @return number of messages sent by the application with the connections.
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted;
+    }
+
+    /**
+     * @return number of incoming connections closed at once, as they exceeded the connection limits.
+     */
+    public long getConnectionsRejected() {
+        return connectionsRejected;
+    }
+
+    /**
+     * @return number of bytes queued for writing in all the connections.
+     */
+    public long getQueuedOutboundBytes() {
+        return queuedOutboundBytes;
+    }
+
+    /**
+     * @return time spent handling the events of each iteration of the event handling loops, in nanoseconds.
+     */
+    public HistogramSnapshot getEventHandlingTime() {
+        return eventHandlingTime;
+    }
+
+    /**
+     * @return processing times of each filter by filter name, in nanoseconds, if filter timing is enabled.
+     */
+    public Map<String, HistogramSnapshot> getFilterTimes() {
+        return filterTimes;
+    }
+
+    /**
+     * @return accepted connections per second between the earlier snapshot and this one.
+     */
+    public double getAcceptRate(MetricsSnapshot earlier) {
+        return ratePerSecond(connectionsAccepted - earlier.connectionsAccepted, earlier);
+    }
+
+    /**
+     * @return received messages per second between the earlier snapshot and this one.
+     */
+    public double getReceiveRate(MetricsSnapshot earlier) {
+        return ratePerSecond(messagesReceived - earlier.messagesReceived, earlier);
+    }
+
+    /**
+     * @return sent messages per second between the earlier snapshot and this one.
+     */
+    public double getSendRate(MetricsSnapshot earlier) {
+        return ratePerSecond(messagesSent - earlier.messagesSent, earlier);
+    }
+
+    private double ratePerSecond(long change, MetricsSnapshot earlier) {
+        final long elapsed = timeNanoseconds - earlier.timeNanoseconds;
+        return elapsed <= 0 ? 0 : change * 1000000000.0 / elapsed;
+    }
+
+    @Override public String toString() {
+        final StringBuilder s = new StringBuilder();
+        s.append("selectorLoops=").append(selectorLoops);
+        s.append(", selectorWakeups=").append(selectorWakeups);
+        s.append(", bytesRead=").append(bytesRead);
+        s.append(", bytesWritten=").append(bytesWritten);
+        s.append(", messagesReceived=").append(messagesReceived);
+        s.append(", messagesSent=").append(messagesSent);
+        s.append(", connectionsAccepted=").append(connectionsAccepted);
+        s.append(", connectionsRejected=").append(connectionsRejected);
+        s.append(", queuedOutboundBytes=").append(queuedOutboundBytes);
+        s.append(", eventHandlingTime=[").append(eventHandlingTime).append("]");
+        for (Map.Entry<String, HistogramSnapshot> entry : filterTimes.entrySet()) {
+            s.append(", ").append(entry.getKey()).append("=[").append(entry.getValue()).append("]");
+        }
+        return s.toString();
+    }
+}
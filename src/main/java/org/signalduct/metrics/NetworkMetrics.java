@@ -0,0 +1,200 @@
+package org.signalduct.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Counters and latency histograms for the network threads, connections and filters of a network.
+ *
+ * Counters are striped LongAdders, so that the network threads can update them concurrently without contention,
+ * and recording does not allocate.  The current values are read with snapshot(), or over JMX after registerMBean().
+ */
+public final class NetworkMetrics implements NetworkMetricsMXBean {
+
+    private final LongAdder selectorLoops = new LongAdder();
+    private final LongAdder selectorWakeups = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder queuedOutboundBytes = new LongAdder();
+    private final LatencyHistogram eventHandlingTime = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LatencyHistogram> filterTimes = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private ObjectName registeredName;
+
+    /**
+     * Records an iteration of the event handling loop of a network thread.
+     * @param eventHandlingNanoseconds time spent handling events and pending work, excluding waiting in select.
+     */
+    public void recordSelectorLoop(long eventHandlingNanoseconds) {
+        selectorLoops.increment();
+        eventHandlingTime.record(eventHandlingNanoseconds);
+    }
+
+    /**
+     * Records a wakeup of a selector by another thread.
+     */
+    public void recordSelectorWakeup() {
+        selectorWakeups.increment();
+    }
+
+    public void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void recordMessagesReceived(int messages) {
+        messagesReceived.add(messages);
+    }
+
+    public void recordMessageSent() {
+        messagesSent.increment();
+    }
+
+    public void recordConnectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    /**
+     * Records an incoming connection that was closed at once, as it exceeded the connection limits.
+     */
+    public void recordConnectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * @param bytes change in the number of bytes queued for writing, negative when queued data is written or dropped.
+     */
+    public void recordQueuedOutboundBytes(long bytes) {
+        queuedOutboundBytes.add(bytes);
+    }
+
+    /**
+     * @param filterName name that identifies the filter.
+     * @return histogram for the processing times of the filter, in nanoseconds.  Created if needed.
+     *         Should be looked up when the filter is set up, rather than for each message.
+     */
+    public LatencyHistogram getFilterTimeHistogram(String filterName) {
+        notNull(filterName, "filterName");
+
+        LatencyHistogram histogram = filterTimes.get(filterName);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = filterTimes.putIfAbsent(filterName, newHistogram);
+            if (histogram == null) histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return a copy of the current values of the metrics.
+     */
+    public MetricsSnapshot snapshot() {
+        final Map<String, HistogramSnapshot> filterTimeSnapshots = new LinkedHashMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : filterTimes.entrySet()) {
+            filterTimeSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        return new MetricsSnapshot(System.nanoTime(),
+                                   selectorLoops.sum(),
+                                   selectorWakeups.sum(),
+                                   bytesRead.sum(),
+                                   bytesWritten.sum(),
+                                   messagesReceived.sum(),
+                                   messagesSent.sum(),
+                                   connectionsAccepted.sum(),
+                                   connectionsRejected.sum(),
+                                   queuedOutboundBytes.sum(),
+                                   eventHandlingTime.snapshot(),
+                                   filterTimeSnapshots);
+    }
+
+    /**
+     * Exposes the metrics over JMX with the platform MBean server.
+     *
+     * @param objectName JMX object name to register with, for example "org.signalduct:type=NetworkMetrics,name=server".
+     * @throws IllegalStateException if the metrics could not be registered.
+     */
+    public synchronized void registerMBean(String objectName) {
+        notNull(objectName, "objectName");
+        if (registeredName != null) throw new IllegalStateException("The metrics are already registered as " + registeredName);
+
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the network metrics as " + objectName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the metrics from JMX, if they have been registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) return;
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredName)) server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister the network metrics " + registeredName + ": " + e.getMessage(), e);
+        } finally {
+            registeredName = null;
+        }
+    }
+
+    @Override public long getSelectorLoops() {
+        return selectorLoops.sum();
+    }
+
+    @Override public long getSelectorWakeups() {
+        return selectorWakeups.sum();
+    }
+
+    @Override public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override public long getQueuedOutboundBytes() {
+        return queuedOutboundBytes.sum();
+    }
+
+    @Override public long getEventHandlingTime99thPercentile() {
+        return eventHandlingTime.snapshot().getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,30 @@
+package org.signalduct.metrics;
+
+/**
+ * Management interface that NetworkMetrics are exposed with over JMX, when registered with NetworkMetrics.registerMBean.
+ */
+public interface NetworkMetricsMXBean {
+
+    long getSelectorLoops();
+
+    long getSelectorWakeups();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getQueuedOutboundBytes();
+
+    /**
+     * @return 99th percentile of the time spent handling the events of one selector loop iteration, in nanoseconds.
+     */
+    long getEventHandlingTime99thPercentile();
+}
@@ -0,0 +1,213 @@
+package org.signalduct.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.positive;
+
+/**
+ * Pool of direct ByteBuffers, sorted into size classes that are powers of two.
+ *
+ * Acquiring a buffer returns a cleared buffer from the smallest size class that fits the requested capacity,
+ * or allocates a new one if the pool for that class is empty.  Released buffers are kept for reuse, up to a
+ * maximum number of pooled buffers per size class, so that the network layer does not need to allocate
+ * new buffers for each read or write.
+ *
+ * The pool remembers the buffers it has allocated, and only takes back those, so buffers that were created
+ * elsewhere, or slices and views of pooled buffers, are never handed out by acquire() while still in use.
+ *
+ * Acquiring and releasing is thread safe and lock free.
+ */
+public final class BufferPool {
+
+    /**
+     * Smallest size class, smaller requests are served with buffers of this size.
+     */
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 256;
+
+    /**
+     * Largest size class, larger requests are served with unpooled buffers.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default maximum number of buffers to retain for each size class.
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS_PER_SIZE = 1024;
+
+    private static final BufferPool DEFAULT_POOL = new BufferPool();
+
+    /**
+     * Key that compares buffers by identity, as the equals and hashCode of ByteBuffer depend on its content.
+     * Weak, so that acquired buffers that are never released can still be garbage collected.
+     */
+    private static final class BufferIdentity extends WeakReference<ByteBuffer> {
+        private final int hashCode;
+
+        private BufferIdentity(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            hashCode = System.identityHashCode(buffer);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof BufferIdentity)) return false;
+
+            final ByteBuffer buffer = get();
+            return buffer != null && buffer == ((BufferIdentity) o).get();
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final int minBufferSizeShift;
+    private final int maxBufferSize;
+    private final int maxPooledBuffersPerSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] pooledBuffers;
+    private final AtomicInteger[] pooledBufferCounts;
+
+    // Buffers allocated by this pool that are either in the pool or acquired from it
+    private final ConcurrentHashMap<BufferIdentity, Boolean> ownBuffers = new ConcurrentHashMap<BufferIdentity, Boolean>();
+    private final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * @return a pool with default settings, shared by all networks that are not given a pool of their own.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * Creates a new buffer pool with default size classes.
+     */
+    public BufferPool() {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * @param minBufferSize size of the smallest size class.  Rounded up to the closest power of two.
+     * @param maxBufferSize size of the largest size class.  Rounded up to the closest power of two.
+     * @param maxPooledBuffersPerSize max number of released buffers to keep for reuse in each size class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minBufferSize, int maxBufferSize, int maxPooledBuffersPerSize) {
+        positive(minBufferSize, "minBufferSize");
+        positive(maxPooledBuffersPerSize, "maxPooledBuffersPerSize");
+        if (maxBufferSize < minBufferSize) throw new IllegalArgumentException("maxBufferSize (" + maxBufferSize + ") should not be smaller than minBufferSize (" + minBufferSize + ")");
+
+        this.minBufferSizeShift = ceilLog2(minBufferSize);
+        this.maxBufferSize = 1 << ceilLog2(maxBufferSize);
+        this.maxPooledBuffersPerSize = maxPooledBuffersPerSize;
+
+        final int sizeClassCount = ceilLog2(maxBufferSize) - minBufferSizeShift + 1;
+        pooledBuffers = new ConcurrentLinkedQueue[sizeClassCount];
+        pooledBufferCounts = new AtomicInteger[sizeClassCount];
+        for (int i = 0; i < sizeClassCount; i++) {
+            pooledBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooledBufferCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param minimumCapacity number of bytes the returned buffer should at least be able to hold.
+     * @return a cleared direct buffer with at least the specified capacity.
+     *         Should be released with release() when no longer needed.
+     */
+    public ByteBuffer acquire(int minimumCapacity) {
+        positive(minimumCapacity, "minimumCapacity");
+
+        // Requests larger than the largest size class are not pooled
+        if (minimumCapacity > maxBufferSize) return ByteBuffer.allocateDirect(minimumCapacity);
+
+        final int sizeClass = sizeClassFor(minimumCapacity);
+        final ByteBuffer buffer = pooledBuffers[sizeClass].poll();
+        if (buffer == null) {
+            removeCollectedBuffers();
+
+            final ByteBuffer newBuffer = ByteBuffer.allocateDirect(1 << (sizeClass + minBufferSizeShift));
+            ownBuffers.put(new BufferIdentity(newBuffer, collectedBuffers), Boolean.TRUE);
+            return newBuffer;
+        }
+        else {
+            pooledBufferCounts[sizeClass].decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * The caller must not use the buffer after releasing it, as it may be handed out by acquire() again.
+     *
+     * Buffers that were not acquired from this pool, including slices and views of pooled buffers, are ignored,
+     * so it is safe to release any buffer that was passed to the network, and the network leaves such buffers
+     * to their owners.
+     *
+     * @param buffer buffer to release, or null to do nothing.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) return;
+
+        final int capacity = buffer.capacity();
+        if (capacity > maxBufferSize || Integer.bitCount(capacity) != 1) return;
+
+        final int sizeClass = ceilLog2(capacity) - minBufferSizeShift;
+        if (sizeClass < 0) return;
+
+        final BufferIdentity identity = new BufferIdentity(buffer, null);
+        if (!ownBuffers.containsKey(identity)) return;
+
+        // Keep the buffer only if there is room for it in its size class
+        if (pooledBufferCounts[sizeClass].incrementAndGet() <= maxPooledBuffersPerSize) {
+            pooledBuffers[sizeClass].offer(buffer);
+        }
+        else {
+            pooledBufferCounts[sizeClass].decrementAndGet();
+            ownBuffers.remove(identity);
+        }
+    }
+
+    /**
+     * @return size of the largest size class, larger buffers are not pooled.
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * @return number of buffers currently available for reuse in the pool.
+     */
+    public int getPooledBufferCount() {
+        int count = 0;
+        for (AtomicInteger pooledBufferCount : pooledBufferCounts) {
+            count += pooledBufferCount.get();
+        }
+        return count;
+    }
+
+    /**
+     * Forgets acquired buffers that were garbage collected without being released.
+     */
+    private void removeCollectedBuffers() {
+        Reference<? extends ByteBuffer> collected;
+        while ((collected = collectedBuffers.poll()) != null) {
+            ownBuffers.remove(collected);
+        }
+    }
+
+    private int sizeClassFor(int capacity) {
+        return Math.max(0, ceilLog2(capacity) - minBufferSizeShift);
+    }
+
+    private static int ceilLog2(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
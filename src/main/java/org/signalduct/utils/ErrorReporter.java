@@ -0,0 +1,162 @@
+package org.signalduct.utils;
+
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Logs errors with a rate limit for each type of error, so that a storm of errors, for example from a flood of
+ * misbehaving clients, can not fill up the logs or keep the reporting thread busy writing them.
+ *
+ * Each error type has a token bucket that allows a burst of errors, refilled at a steady rate.  Errors reported
+ * while the bucket is empty are counted instead of logged, and the count is included in the next logged error
+ * of the type, or logged as a summary by logSuppressedSummaries().
+ *
+ * Thread safe.
+ */
+public final class ErrorReporter {
+
+    /**
+     * Default number of errors of each type that are logged per second after a burst.
+     */
+    public static final double DEFAULT_ERRORS_PER_SECOND = 1;
+
+    /**
+     * Default number of errors of each type that can be logged in a burst.
+     */
+    public static final int DEFAULT_BURST = 10;
+
+    /**
+     * Token bucket and suppressed error count of an error type.
+     */
+    private static final class ErrorTypeState {
+        private double tokens;
+        private long lastRefillTime;
+        private long suppressedCount;
+
+        private ErrorTypeState(double tokens, long currentTime) {
+            this.tokens = tokens;
+            this.lastRefillTime = currentTime;
+        }
+    }
+
+    private final Logger logger;
+    private final ConcurrentHashMap<String, ErrorTypeState> errorTypeStates = new ConcurrentHashMap<String, ErrorTypeState>();
+    private volatile double errorsPerSecond;
+    private volatile int burst;
+
+    /**
+     * Creates an error reporter with the default rate limit.
+     * @param logger logger to log the errors with.
+     */
+    public ErrorReporter(Logger logger) {
+        this(logger, DEFAULT_ERRORS_PER_SECOND, DEFAULT_BURST);
+    }
+
+    /**
+     * @param logger logger to log the errors with.
+     * @param errorsPerSecond number of errors of each type that are logged per second after a burst.
+     * @param burst number of errors of each type that can be logged in a burst.
+     */
+    public ErrorReporter(Logger logger, double errorsPerSecond, int burst) {
+        notNull(logger, "logger");
+
+        this.logger = logger;
+        setRateLimit(errorsPerSecond, burst);
+    }
+
+    /**
+     * @param errorsPerSecond number of errors of each type that are logged per second after a burst.
+     * @param burst number of errors of each type that can be logged in a burst.
+     */
+    public void setRateLimit(double errorsPerSecond, int burst) {
+        if (!(errorsPerSecond > 0)) throw new IllegalArgumentException("errorsPerSecond should be positive, but was " + errorsPerSecond);
+        positive(burst, "burst");
+
+        this.errorsPerSecond = errorsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Logs the error, unless too many errors of the same type have been logged recently.
+     *
+     * @param errorType type of the error that the rate limit is applied to, for example the exception class name.
+     * @param message description of the error.
+     * @param cause exception that caused the error, logged with its stack trace, or null if none.
+     * @return true if the error was logged, false if it was suppressed.
+     */
+    public boolean report(String errorType, String message, Throwable cause) {
+        notNull(errorType, "errorType");
+        notNull(message, "message");
+
+        final ErrorTypeState state = getState(errorType);
+        final long suppressedBefore;
+        synchronized (state) {
+            refill(state, System.nanoTime());
+            if (state.tokens < 1) {
+                state.suppressedCount++;
+                return false;
+            }
+
+            state.tokens--;
+            suppressedBefore = state.suppressedCount;
+            state.suppressedCount = 0;
+        }
+
+        final String fullMessage = suppressedBefore > 0
+                                   ? message + " (" + suppressedBefore + " similar errors suppressed before this one)"
+                                   : message;
+        if (cause != null) logger.warn(fullMessage, cause);
+        else logger.warn(fullMessage);
+
+        return true;
+    }
+
+    /**
+     * Logs a summary line for each error type that has had errors suppressed since it was last logged.
+     */
+    public void logSuppressedSummaries() {
+        for (Map.Entry<String, ErrorTypeState> entry : errorTypeStates.entrySet()) {
+            final ErrorTypeState state = entry.getValue();
+            final long suppressed;
+            synchronized (state) {
+                suppressed = state.suppressedCount;
+                state.suppressedCount = 0;
+            }
+
+            if (suppressed > 0) logger.warn(suppressed + " similar errors of type " + entry.getKey() + " suppressed");
+        }
+    }
+
+    /**
+     * @return number of errors of the type suppressed since one was last logged or summarized.
+     */
+    public long getSuppressedCount(String errorType) {
+        final ErrorTypeState state = errorTypeStates.get(errorType);
+        if (state == null) return 0;
+
+        synchronized (state) {
+            return state.suppressedCount;
+        }
+    }
+
+    private ErrorTypeState getState(String errorType) {
+        ErrorTypeState state = errorTypeStates.get(errorType);
+        if (state == null) {
+            final ErrorTypeState newState = new ErrorTypeState(burst, System.nanoTime());
+            state = errorTypeStates.putIfAbsent(errorType, newState);
+            if (state == null) state = newState;
+        }
+        return state;
+    }
+
+    private void refill(ErrorTypeState state, long currentTime) {
+        final double elapsedSeconds = (currentTime - state.lastRefillTime) / 1000000000.0;
+        state.tokens = Math.min(burst, state.tokens + elapsedSeconds * errorsPerSecond);
+        state.lastRefillTime = currentTime;
+    }
+}
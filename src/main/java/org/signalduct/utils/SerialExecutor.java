@@ -0,0 +1,117 @@
+package org.signalduct.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.notNull;
+import static org.flowutils.Check.positive;
+
+/**
+ * Runs tasks one at a time in the order they were submitted, using threads of another executor.
+ *
+ * Many serial executors can share one underlying thread pool, for example one serial executor per connection,
+ * so that the tasks of each connection are run in order while different connections are handled in parallel.
+ * At most a limited number of tasks are run in one go, before the rest are resubmitted to the underlying executor,
+ * so that a busy serial executor does not hog a thread of a shared pool.
+ *
+ * Exceptions thrown by tasks propagate to the underlying executor, after the remaining tasks have been rescheduled.
+ */
+public final class SerialExecutor implements Executor {
+
+    /**
+     * Default max number of tasks run in one go.
+     */
+    public static final int DEFAULT_MAX_TASKS_PER_RUN = 64;
+
+    private final Executor executor;
+    private final int maxTasksPerRun;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pendingTaskCount = new AtomicInteger(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final Runnable taskRunner = new Runnable() {
+        @Override public void run() {
+            runTasks();
+        }
+    };
+
+    /**
+     * @param executor executor to run the tasks with.
+     */
+    public SerialExecutor(Executor executor) {
+        this(executor, DEFAULT_MAX_TASKS_PER_RUN);
+    }
+
+    /**
+     * @param executor executor to run the tasks with.
+     * @param maxTasksPerRun max number of tasks to run before giving the thread back to the executor.
+     */
+    public SerialExecutor(Executor executor, int maxTasksPerRun) {
+        notNull(executor, "executor");
+        positive(maxTasksPerRun, "maxTasksPerRun");
+
+        this.executor = executor;
+        this.maxTasksPerRun = maxTasksPerRun;
+    }
+
+    /**
+     * Queues the task to be run after all previously submitted tasks have completed.  May be called from any thread.
+     *
+     * @throws RejectedExecutionException if the underlying executor rejects running the tasks.
+     *                                    The task is not run in that case.
+     */
+    @Override public void execute(Runnable task) {
+        notNull(task, "task");
+
+        pendingTaskCount.incrementAndGet();
+        tasks.offer(task);
+        try {
+            scheduleIfNeeded();
+        } catch (RejectedExecutionException e) {
+            // Another thread may already have taken the task for running
+            if (tasks.remove(task)) pendingTaskCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of submitted tasks that have not yet completed.
+     */
+    public int getPendingTaskCount() {
+        return pendingTaskCount.get();
+    }
+
+    private void scheduleIfNeeded() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(taskRunner);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void runTasks() {
+        try {
+            Runnable task;
+            int runCount = 0;
+            while (runCount < maxTasksPerRun && (task = tasks.poll()) != null) {
+                runCount++;
+                try {
+                    task.run();
+                } finally {
+                    pendingTaskCount.decrementAndGet();
+                }
+            }
+        } finally {
+            // Tasks submitted while running, or left over, are run in a new turn
+            scheduled.set(false);
+            scheduleIfNeeded();
+        }
+    }
+}
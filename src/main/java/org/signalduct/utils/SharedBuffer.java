@@ -0,0 +1,83 @@
+package org.signalduct.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * A buffer that is shared by several users, for example the same encoded message written to many connections.
+ *
+ * Each user gets a read-only view of the buffer with a position of its own, and releases its reference when done
+ * with it.  When the last reference is released, the buffer is returned to its buffer pool.
+ * The creator of a shared buffer holds the first reference.
+ */
+public final class SharedBuffer {
+
+    private final ByteBuffer buffer;
+    private final BufferPool bufferPool;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    /**
+     * @param buffer buffer to share.  Its content between its position and limit is shared.
+     *               The buffer should not be modified after it has been shared.
+     * @param bufferPool pool to return the buffer to when the last reference is released.
+     */
+    public SharedBuffer(ByteBuffer buffer, BufferPool bufferPool) {
+        notNull(buffer, "buffer");
+        notNull(bufferPool, "bufferPool");
+
+        this.buffer = buffer;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Adds a reference to the buffer, and returns a read-only view of it for the new reference holder.
+     * The view has a position and limit of its own.
+     */
+    public ByteBuffer retainView() {
+        retain();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     * @throws IllegalStateException if all references were already released.
+     */
+    public void retain() {
+        int count;
+        do {
+            count = referenceCount.get();
+            if (count <= 0) throw new IllegalStateException("Can not retain a shared buffer that has already been released");
+        } while (!referenceCount.compareAndSet(count, count + 1));
+    }
+
+    /**
+     * Releases a reference to the buffer, and returns the buffer to the pool if it was the last one.
+     * @throws IllegalStateException if all references were already released.
+     */
+    public void release() {
+        final int count = referenceCount.decrementAndGet();
+        if (count == 0) {
+            bufferPool.release(buffer);
+        }
+        else if (count < 0) {
+            referenceCount.incrementAndGet();
+            throw new IllegalStateException("The shared buffer has already been released");
+        }
+    }
+
+    /**
+     * @return number of references still held to the buffer.
+     */
+    public int getReferenceCount() {
+        return referenceCount.get();
+    }
+
+    /**
+     * @return number of shared bytes.
+     */
+    public int getLength() {
+        return buffer.remaining();
+    }
+}
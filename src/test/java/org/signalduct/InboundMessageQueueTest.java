@@ -0,0 +1,45 @@
+package org.signalduct;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InboundMessageQueueTest {
+
+    private MockConnection connection;
+    private InboundMessageQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = new MockConnection();
+        queue = new InboundMessageQueue(connection, 1, 3);
+    }
+
+    @Test
+    public void testMessagesArePolledInOrder() throws Exception {
+        queue.onMessage(connection, "a");
+        queue.onMessage(connection, "b");
+
+        assertEquals(2, queue.size());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testReadingIsPausedAtHighWatermark() throws Exception {
+        queue.onMessage(connection, "a");
+        queue.onMessage(connection, "b");
+        assertFalse(connection.isReadingPaused());
+
+        queue.onMessage(connection, "c");
+        assertTrue(connection.isReadingPaused());
+
+        // Reading resumes when the queue has been drained to the low watermark
+        queue.poll();
+        assertTrue(connection.isReadingPaused());
+        queue.poll();
+        assertFalse(connection.isReadingPaused());
+    }
+}
@@ -0,0 +1,126 @@
+package org.signalduct;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection implementation that is not connected to any network, but stores custom data.
+ * Used for testing filters.
+ */
+public class MockConnection implements Connection {
+
+    private final Map<String, Object> customData = new HashMap<String, Object>();
+    private volatile int readPauseCount = 0;
+    private volatile boolean timedReadPause = false;
+
+    @Override public void addListener(ConnectionListener listener) {
+    }
+
+    @Override public void removeListener(ConnectionListener listener) {
+    }
+
+    @Override public void sendMessage(Object message) {
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public void cork() {
+    }
+
+    @Override public void uncork() {
+    }
+
+    @Override public void setFlushMode(FlushMode flushMode) {
+    }
+
+    @Override public FlushMode getFlushMode() {
+        return FlushMode.END_OF_TICK;
+    }
+
+    @Override public void setTcpNoDelay(boolean tcpNoDelay) {
+    }
+
+    @Override public void setSocketOptions(SocketOptions socketOptions) {
+    }
+
+    @Override public void pauseReading() {
+        readPauseCount++;
+    }
+
+    @Override public void resumeReading() {
+        readPauseCount--;
+    }
+
+    @Override public void pauseReading(final int delayMilliseconds) {
+        if (timedReadPause) return;
+        timedReadPause = true;
+        pauseReading();
+
+        final Thread resumer = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(delayMilliseconds);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                timedReadPause = false;
+                resumeReading();
+            }
+        });
+        resumer.setDaemon(true);
+        resumer.start();
+    }
+
+    @Override public boolean isReadingPaused() {
+        return readPauseCount > 0;
+    }
+
+    @Override public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+    }
+
+    @Override public boolean isWritable() {
+        return true;
+    }
+
+    @Override public long getQueuedBytes() {
+        return 0;
+    }
+
+    @Override public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+    }
+
+    @Override public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return SlowConsumerPolicy.QUEUE;
+    }
+
+    @Override public void setIdleTimeouts(int readIdleTimeoutMilliseconds, int writeIdleTimeoutMilliseconds) {
+    }
+
+    @Override public void setHeartbeat(Object heartbeatMessage, int intervalMilliseconds) {
+    }
+
+    @Override public boolean isConnected() {
+        return true;
+    }
+
+    @Override public void waitUntilConnected(int timeoutMilliseconds) {
+    }
+
+    @Override public void disconnect() {
+    }
+
+    @Override public void setCustomData(String name, Object data) {
+        customData.put(name, data);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T> T getCustomData(String name) {
+        return (T) customData.get(name);
+    }
+
+    @Override public <T> T getCustomData(String name, T defaultValue) {
+        final T data = getCustomData(name);
+        return data == null ? defaultValue : data;
+    }
+}
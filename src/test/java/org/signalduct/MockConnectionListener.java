@@ -3,12 +3,14 @@ package org.signalduct;
 import org.junit.Assert;
 
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 
 import static org.signalduct.MockConnectionListener.ConnectionEvent.*;
 
 /**
  * ConnectionListener implementation that remembers what events it has received since the last call to reset.
+ * Events may be received from network threads, and waited for with the waitFor methods.
  * Used for testing purposes.
  */
 public class MockConnectionListener implements ConnectionListener {
@@ -16,6 +18,7 @@ public class MockConnectionListener implements ConnectionListener {
     private final String listenerName;
 
     private EnumSet<ConnectionEvent> receivedEvents = EnumSet.noneOf(ConnectionEvent.class);
+    private final EnumMap<ConnectionEvent, Integer> eventCounts = new EnumMap<ConnectionEvent, Integer>(ConnectionEvent.class);
     private Object message;
     private String errorType;
     private String errorMessage;
@@ -44,17 +47,49 @@ public class MockConnectionListener implements ConnectionListener {
     /**
      * Clears all received events, sets received objects to null.
      */
-    public void reset() {
+    public synchronized void reset() {
         receivedEvents.clear();
+        eventCounts.clear();
         message = null;
         errorType = null;
         errorMessage = null;
     }
 
+    /**
+     * Waits until all of the specified events have been received, or the timeout passes.
+     * Does not fail on timeout, the received events should be checked with the assert methods afterwards.
+     */
+    public synchronized void waitForEvents(int timeoutMilliseconds, ConnectionEvent... events) throws InterruptedException {
+        for (ConnectionEvent event : events) {
+            waitForEventCount(timeoutMilliseconds, event, 1);
+        }
+    }
+
+    /**
+     * Waits until the specified event has been received at least the specified number of times, or the timeout passes.
+     * Does not fail on timeout, the received events should be checked afterwards.
+     */
+    public synchronized void waitForEventCount(int timeoutMilliseconds, ConnectionEvent event, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        long remaining = timeoutMilliseconds;
+        while (getEventCount(event) < count && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return number of times the event has been received since the last reset.
+     */
+    public synchronized int getEventCount(ConnectionEvent event) {
+        final Integer count = eventCounts.get(event);
+        return count == null ? 0 : count;
+    }
+
     /**
      * Assert that we have received a message event with the specified message.
      */
-    public void assertMessage(Object expectedMessage) {
+    public synchronized void assertMessage(Object expectedMessage) {
         assertReceivedEventsContain(MESSAGE);
         Assert.assertEquals("Message should be correct in " + listenerName, expectedMessage, message);
     }
@@ -62,7 +97,7 @@ public class MockConnectionListener implements ConnectionListener {
     /**
      * Assert that we have received an error event with the specified error type.
      */
-    public void assertError(String expectedErrorType) {
+    public synchronized void assertError(String expectedErrorType) {
         assertReceivedEventsContain(ERROR);
         Assert.assertEquals("Error type should be correct in " + listenerName, expectedErrorType, errorType);
     }
@@ -77,7 +112,7 @@ public class MockConnectionListener implements ConnectionListener {
     /**
      * Assert that we have received all of, and only, the specified events.
      */
-    public void assertReceivedEventsAre(ConnectionEvent... expectedEvents) {
+    public synchronized void assertReceivedEventsAre(ConnectionEvent... expectedEvents) {
         final EnumSet<ConnectionEvent> expectedEventSet = createSet(expectedEvents);
 
         for (ConnectionEvent event : values()) {
@@ -89,7 +124,7 @@ public class MockConnectionListener implements ConnectionListener {
     /**
      * Assert that we have received all of the specified events.  Other events may also have been received.
      */
-    public void assertReceivedEventsContain(ConnectionEvent... requiredEvents) {
+    public synchronized void assertReceivedEventsContain(ConnectionEvent... requiredEvents) {
         final EnumSet<ConnectionEvent> requiredEventsSet = createSet(requiredEvents);
 
         for (ConnectionEvent requiredEvent : requiredEventsSet) {
@@ -112,23 +147,29 @@ public class MockConnectionListener implements ConnectionListener {
         Assert.assertTrue(message, expectedState == actualState);
     }
 
-    @Override public void onConnected(Connection connection) {
-        receivedEvents.add(CONNECTED);
+    @Override public synchronized void onConnected(Connection connection) {
+        eventReceived(CONNECTED);
     }
 
-    @Override public void onDisconnected(Connection connection) {
-        receivedEvents.add(DISCONNECTED);
+    @Override public synchronized void onDisconnected(Connection connection) {
+        eventReceived(DISCONNECTED);
     }
 
-    @Override public void onMessage(Connection connection, Object message) {
-        receivedEvents.add(MESSAGE);
+    @Override public synchronized void onMessage(Connection connection, Object message) {
         this.message = message;
+        eventReceived(MESSAGE);
     }
 
-    @Override public void onError(Connection connection, String errorType, String errorMessage) {
-        receivedEvents.add(ERROR);
+    @Override public synchronized void onError(Connection connection, String errorType, String errorMessage) {
         this.errorType = errorType;
         this.errorMessage = errorMessage;
+        eventReceived(ERROR);
+    }
+
+    private void eventReceived(ConnectionEvent event) {
+        receivedEvents.add(event);
+        eventCounts.put(event, getEventCount(event) + 1);
+        notifyAll();
     }
 
 
@@ -1,11 +1,28 @@
 package org.signalduct;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.signalduct.filter.FilterChain;
+import org.signalduct.filter.LengthPrefixFramingFilter;
+import org.signalduct.filter.MessageCodec;
+import org.signalduct.filter.SerializationFilter;
 import org.signalduct.impl.ClientNetwork;
+import org.signalduct.impl.ConnectionBase;
+import org.signalduct.impl.NetworkException;
 import org.signalduct.impl.ServerNetwork;
+import org.signalduct.metrics.MetricsSnapshot;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 import static org.signalduct.MockConnectionListener.ConnectionEvent.*;
@@ -14,9 +31,27 @@ import static org.signalduct.MockConnectionListener.ConnectionEvent.*;
 public class NetworkTest {
 
     private static final int PORT = 8765;
+    private static final int STALLED_PORT = 8766;
     private static final String LOCALHOST = "localhost";
     private static final InetSocketAddress SERVER_LOCALHOST_ADDRESS = new InetSocketAddress(LOCALHOST, PORT);
     private static final int TIMEOUT_MILLISECONDS = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final MessageCodec<String> STRING_CODEC = new MessageCodec<String>() {
+        @Override public int getMaxEncodedSize(String message) {
+            return message.length() * 3;
+        }
+
+        @Override public void encode(String message, ByteBuffer target) {
+            target.put(message.getBytes(UTF_8));
+        }
+
+        @Override public String decode(ByteBuffer source) {
+            final byte[] bytes = new byte[source.remaining()];
+            source.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+    };
 
     private MockConnectionListener listenerOnServer;
     private MockConnectionListener listenerOnClient;
@@ -35,6 +70,12 @@ public class NetworkTest {
         listenerOnClient.assertReceivedNoEvents();
     }
 
+    @After
+    public void tearDown() throws Exception {
+        clientNetwork.stop();
+        serverNetwork.stop();
+    }
+
     @Test
     public void testConnect() throws Exception {
 
@@ -50,5 +91,464 @@ public class NetworkTest {
         assertTrue(connectionToServer.isConnected());
     }
 
+    @Test
+    public void testDisconnect() throws Exception {
+
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        connectionToServer.disconnect();
+
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+
+        listenerOnServer.assertReceivedEventsAre(CONNECTED, DISCONNECTED);
+        listenerOnClient.assertReceivedEventsAre(CONNECTED, DISCONNECTED);
+        assertFalse(connectionToServer.isConnected());
+        assertEquals("Closed connections should be removed", 0, serverNetwork.getConnectionCount());
+    }
+
+    @Test
+    public void testStopDisconnectsConnections() throws Exception {
+
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, CONNECTED);
+
+        serverNetwork.stop();
+
+        listenerOnServer.assertReceivedEventsAre(CONNECTED, DISCONNECTED);
+        assertEquals("Connections closed by stopping should be removed", 0, serverNetwork.getConnectionCount());
+
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+        listenerOnClient.assertReceivedEventsAre(CONNECTED, DISCONNECTED);
+    }
+
+    @Test
+    public void testMessagesSentBeforeDisconnectAreDelivered() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        // More data than fits in the socket buffers, so that it is still queued when disconnecting
+        final StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            padding.append('x');
+        }
+        final int messageCount = 100;
+        for (int i = 0; i < messageCount; i++) {
+            connectionToServer.sendMessage("Message " + i + " " + padding);
+        }
+        connectionToServer.disconnect();
+
+        listenerOnServer.waitForEvents(5 * TIMEOUT_MILLISECONDS, DISCONNECTED);
+
+        assertEquals(messageCount, listenerOnServer.getEventCount(MESSAGE));
+        listenerOnServer.assertMessage("Message " + (messageCount - 1) + " " + padding);
+        listenerOnServer.assertReceivedEventsAre(CONNECTED, MESSAGE, DISCONNECTED);
+    }
+
+    @Test
+    public void testStartFailsWhenPortIsInUse() throws Exception {
+
+        serverNetwork.start();
+
+        final ServerNetwork secondServerNetwork = new ServerNetwork(PORT, new MockConnectionListener("listener on second server"));
+        try {
+            secondServerNetwork.start();
+            fail("Starting a second server on the same port should fail");
+        } catch (NetworkException e) {
+            // Expected, the second network stops itself
+        }
+
+        // The first server is not affected
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, CONNECTED);
+        listenerOnServer.assertReceivedEventsAre(CONNECTED);
+    }
+
+    @Test
+    public void testMaxConnectionsPerAddress() throws Exception {
+
+        serverNetwork.setMaxConnectionsPerAddress(1);
+        serverNetwork.start();
+
+        Connection firstConnection = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, CONNECTED);
+
+        // The second connection from the same address is closed by the server as soon as it is accepted
+        final MockConnectionListener rejectedListener = new MockConnectionListener("rejected client");
+        clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, rejectedListener);
+        rejectedListener.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+
+        assertEquals(1, serverNetwork.getConnectionCount());
+        assertEquals(1, serverNetwork.getMetrics().getConnectionsRejected());
+
+        // Closing the first connection makes room for a new one
+        firstConnection.disconnect();
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+
+        clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, new MockConnectionListener("third client"));
+        listenerOnServer.waitForEventCount(TIMEOUT_MILLISECONDS, CONNECTED, 2);
+        assertEquals(2, listenerOnServer.getEventCount(CONNECTED));
+        assertEquals(1, serverNetwork.getConnectionCount());
+        assertEquals(1, serverNetwork.getMetrics().getConnectionsRejected());
+    }
+
+    @Test
+    public void testMultipleAcceptors() throws Exception {
+
+        serverNetwork.setAcceptorCount(3);
+        serverNetwork.setAcceptBacklog(256);
+        serverNetwork.start();
+
+        final List<Connection> connectionsToServer = new ArrayList<Connection>();
+        for (int i = 0; i < 20; i++) {
+            connectionsToServer.add(clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, new MockConnectionListener("client " + i)));
+        }
+        for (Connection connectionToServer : connectionsToServer) {
+            connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        }
+        listenerOnServer.waitForEventCount(TIMEOUT_MILLISECONDS, CONNECTED, 20);
+
+        assertEquals(20, serverNetwork.getConnectionCount());
+        assertEquals(20, serverNetwork.getMetrics().getConnectionsAccepted());
+    }
+
+    @Test
+    public void testSendMessage() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        connectionToServer.sendMessage("Hello server");
+
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+        listenerOnServer.assertMessage("Hello server");
+    }
+
+    @Test
+    public void testListenersWithEqualHashCodes() throws Exception {
+
+        final MockConnectionListener firstListener = new MockConnectionListener("first listener") {
+            @Override public int hashCode() {
+                return 1;
+            }
+        };
+        final MockConnectionListener secondListener = new MockConnectionListener("second listener") {
+            @Override public int hashCode() {
+                return 1;
+            }
+        };
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.addListener(firstListener);
+        connectionToServer.addListener(secondListener);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, CONNECTED);
+
+        serverNetwork.broadcast("Hello clients");
+
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+        firstListener.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+        secondListener.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+        listenerOnClient.assertMessage("Hello clients");
+        firstListener.assertMessage("Hello clients");
+        secondListener.assertMessage("Hello clients");
+    }
+
+    @Test
+    public void testBatchListenerChangesAreNotSeenByOtherListeners() throws Exception {
+
+        final MockConnectionListener listenerAfterBatchListener = new MockConnectionListener("listener after batch listener");
+        final BatchConnectionListener clearingBatchListener = new BatchConnectionListener() {
+            @Override public void onMessages(Connection connection, MessageBatch messages) {
+                messages.clear();
+            }
+
+            @Override public void onMessage(Connection connection, Object message) {
+            }
+
+            @Override public void onConnected(Connection connection) {
+            }
+
+            @Override public void onDisconnected(Connection connection) {
+            }
+
+            @Override public void onError(Connection connection, String errorType, String errorDescription) {
+            }
+        };
+
+        // Adds the listeners to each connection accepted by the server
+        serverNetwork = new ServerNetwork(PORT, new MockConnectionListener("listener on server") {
+            @Override public synchronized void onConnected(Connection connection) {
+                connection.addListener(clearingBatchListener);
+                connection.addListener(listenerAfterBatchListener);
+                super.onConnected(connection);
+            }
+        });
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        // Written together, so that the server decodes both from one read and passes them on as a batch
+        connectionToServer.setFlushMode(FlushMode.MANUAL);
+        connectionToServer.sendMessage("First");
+        connectionToServer.sendMessage("Second");
+        connectionToServer.flush();
+
+        listenerAfterBatchListener.waitForEventCount(TIMEOUT_MILLISECONDS, MESSAGE, 2);
+        assertEquals(2, listenerAfterBatchListener.getEventCount(MESSAGE));
+        listenerAfterBatchListener.assertMessage("Second");
+    }
+
+    @Test
+    public void testIdleTimeoutAndHeartbeat() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        // The server sends nothing, while the client keeps the connection alive
+        connectionToServer.setIdleTimeouts(200, 0);
+        connectionToServer.setHeartbeat("Heartbeat", 100);
+
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, ERROR);
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+        listenerOnClient.assertError(ConnectionBase.READ_IDLE_ERROR);
+        listenerOnServer.assertMessage("Heartbeat");
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.setFilterTiming(true);
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        connectionToServer.sendMessage("Hello server");
+
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+        listenerOnServer.assertMessage("Hello server");
+
+        final MetricsSnapshot serverMetrics = serverNetwork.getMetrics().snapshot();
+        assertEquals(1, serverMetrics.getConnectionsAccepted());
+        assertEquals(1, serverMetrics.getMessagesReceived());
+        assertTrue(serverMetrics.getBytesRead() > 0);
+        assertTrue(serverMetrics.getSelectorLoops() > 0);
+        assertEquals(2, serverMetrics.getFilterTimes().size());
+
+        // The client records the written bytes after the write, so wait for its selector thread to close the connection
+        connectionToServer.disconnect();
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, DISCONNECTED);
+
+        final MetricsSnapshot clientMetrics = clientNetwork.getMetrics().snapshot();
+        assertEquals(1, clientMetrics.getMessagesSent());
+        assertEquals(serverMetrics.getBytesRead(), clientMetrics.getBytesWritten());
+        assertEquals(0, clientMetrics.getQueuedOutboundBytes());
+    }
+
+    @Test
+    public void testListenerExecutor() throws Exception {
+
+        final ExecutorService listenerExecutor = Executors.newFixedThreadPool(2);
+        try {
+            addFilters(serverNetwork.getFilterChain());
+            addFilters(clientNetwork.getFilterChain());
+            serverNetwork.setListenerExecutor(listenerExecutor);
+            serverNetwork.start();
+
+            Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+            connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+            connectionToServer.sendMessage("Hello server");
+
+            listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+            listenerOnServer.assertReceivedEventsAre(CONNECTED, MESSAGE);
+            listenerOnServer.assertMessage("Hello server");
+        } finally {
+            listenerExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testListenerExecutorReceivesIntactBuffers() throws Exception {
+
+        final int messageCount = 50;
+        final List<byte[]> receivedMessages = new ArrayList<byte[]>();
+        final ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
+        try {
+            // Received frames are slices of the read buffer, so the first message is held until later reads have reused it
+            final MockConnectionListener bufferReadingListener = new MockConnectionListener("listener on server") {
+                @Override public synchronized void onMessage(Connection connection, Object message) {
+                    if (receivedMessages.isEmpty()) {
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    final ByteBuffer buffer = (ByteBuffer) message;
+                    final byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    receivedMessages.add(bytes);
+                    super.onMessage(connection, bytes);
+                }
+            };
+            serverNetwork = new ServerNetwork(PORT, bufferReadingListener);
+            serverNetwork.getFilterChain().addFilterLast(new LengthPrefixFramingFilter());
+            clientNetwork.getFilterChain().addFilterLast(new LengthPrefixFramingFilter());
+            serverNetwork.setListenerExecutor(listenerExecutor);
+            serverNetwork.start();
+
+            Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+            connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+            // Sent in separate reads, so that later reads reuse the read buffer of earlier messages
+            for (int i = 0; i < messageCount; i++) {
+                final byte[] message = new byte[100];
+                Arrays.fill(message, (byte) i);
+                connectionToServer.sendMessage(message);
+                if (i % 10 == 0) Thread.sleep(10);
+            }
+
+            bufferReadingListener.waitForEventCount(TIMEOUT_MILLISECONDS, MESSAGE, messageCount);
+
+            synchronized (bufferReadingListener) {
+                assertEquals(messageCount, receivedMessages.size());
+                for (int i = 0; i < messageCount; i++) {
+                    final byte[] expected = new byte[100];
+                    Arrays.fill(expected, (byte) i);
+                    assertTrue("Message " + i + " should not have been overwritten", Arrays.equals(expected, receivedMessages.get(i)));
+                }
+            }
+        } finally {
+            listenerExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testManualFlush() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        connectionToServer.setFlushMode(FlushMode.MANUAL);
+
+        connectionToServer.sendMessage("Hello server");
+
+        // Nothing should arrive before the flush, so this wait is expected to time out
+        listenerOnServer.waitForEvents(300, MESSAGE);
+        listenerOnServer.assertReceivedEventsAre(CONNECTED);
+
+        connectionToServer.flush();
+
+        listenerOnServer.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+        listenerOnServer.assertMessage("Hello server");
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+
+        addFilters(serverNetwork.getFilterChain());
+        addFilters(clientNetwork.getFilterChain());
+        serverNetwork.start();
+
+        final MockConnectionListener listenerOnSecondClient = new MockConnectionListener("listener on second client");
+        Connection connectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnClient);
+        Connection secondConnectionToServer = clientNetwork.connectTo(SERVER_LOCALHOST_ADDRESS, listenerOnSecondClient);
+        connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+        secondConnectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+
+        listenerOnServer.waitForEventCount(TIMEOUT_MILLISECONDS, CONNECTED, 2);
+
+        serverNetwork.broadcast("Hello clients");
+
+        listenerOnClient.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+        listenerOnSecondClient.waitForEvents(TIMEOUT_MILLISECONDS, MESSAGE);
+
+        listenerOnClient.assertMessage("Hello clients");
+        listenerOnSecondClient.assertMessage("Hello clients");
+        assertEquals("A broadcast should count as a sent message for each target", 2, serverNetwork.getMetrics().getMessagesSent());
+    }
+
+    @Test
+    public void testSlowConsumerDropsNewest() throws Exception {
+
+        // Server that accepts the connection but never reads from it.  The socket buffers are kept small, so that
+        // they can not take in enough of the queued data to make the connection writable again.
+        final ServerSocketChannel stalledServer = ServerSocketChannel.open();
+        stalledServer.socket().setReceiveBufferSize(4096);
+        stalledServer.socket().bind(new InetSocketAddress(LOCALHOST, STALLED_PORT));
+        try {
+            final SocketOptions smallSendBuffer = new SocketOptions();
+            smallSendBuffer.setSendBufferSize(4096);
+            Connection connectionToServer = clientNetwork.connectTo(new InetSocketAddress(LOCALHOST, STALLED_PORT), listenerOnClient, smallSendBuffer);
+            connectionToServer.waitUntilConnected(TIMEOUT_MILLISECONDS);
+            final SocketChannel acceptedChannel = stalledServer.accept();
+
+            final int highWatermark = 64 * 1024;
+            final byte[] message = new byte[16 * 1024];
+            connectionToServer.setWriteWatermarks(16 * 1024, highWatermark);
+            connectionToServer.setSlowConsumerPolicy(SlowConsumerPolicy.DROP_NEWEST);
+
+            // Send far more than the socket buffers can hold
+            for (int i = 0; i < 4096; i++) {
+                connectionToServer.sendMessage(message);
+                assertTrue(connectionToServer.getQueuedBytes() <= highWatermark + message.length);
+            }
+
+            assertFalse(connectionToServer.isWritable());
+            assertTrue(connectionToServer.isConnected());
+
+            acceptedChannel.close();
+        } finally {
+            stalledServer.close();
+        }
+    }
+
+    private void addFilters(FilterChain filterChain) {
+        final SerializationFilter serializationFilter = new SerializationFilter();
+        serializationFilter.register(1, String.class, STRING_CODEC);
+
+        filterChain.addFilterLast(new LengthPrefixFramingFilter());
+        filterChain.addFilterLast(serializationFilter);
+    }
 
 }
@@ -0,0 +1,55 @@
+package org.signalduct;
+
+import org.junit.Test;
+
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class SocketOptionsTest {
+
+    @Test
+    public void testOverrides() throws Exception {
+        final SocketOptions networkOptions = SocketOptions.bulkThroughput();
+        networkOptions.setKeepAlive(true);
+
+        final SocketOptions overrides = new SocketOptions();
+        overrides.setTcpNoDelay(true);
+        overrides.setLingerSeconds(0);
+
+        final SocketOptions options = networkOptions.overriddenWith(overrides);
+        assertEquals(Boolean.TRUE, options.getTcpNoDelay());
+        assertEquals(Boolean.TRUE, options.getKeepAlive());
+        assertEquals(Integer.valueOf(0), options.getLingerSeconds());
+        assertEquals(Integer.valueOf(1024 * 1024), options.getSendBufferSize());
+        assertTrue("Options not set anywhere should stay unset", options.getReuseAddress() == null);
+
+        // The originals are not changed
+        assertEquals(Boolean.FALSE, networkOptions.getTcpNoDelay());
+        assertTrue(networkOptions.getLingerSeconds() == null);
+    }
+
+    @Test
+    public void testApplyToChannel() throws Exception {
+        final SocketOptions options = SocketOptions.lowLatency();
+        options.setKeepAlive(true);
+        options.setLingerSeconds(0);
+
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            options.applyTo(channel);
+
+            assertTrue(channel.getOption(StandardSocketOptions.TCP_NODELAY));
+            assertTrue(channel.getOption(StandardSocketOptions.SO_KEEPALIVE));
+            assertEquals(0, (int) channel.getOption(StandardSocketOptions.SO_LINGER));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPositiveLingerIsRejected() throws Exception {
+        new SocketOptions().setLingerSeconds(5);
+    }
+}
@@ -0,0 +1,162 @@
+package org.signalduct.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signalduct.BatchConnectionListener;
+import org.signalduct.Connection;
+import org.signalduct.MessageBatch;
+import org.signalduct.MockConnection;
+import org.signalduct.impl.ConnectionListenerAdapter;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LengthPrefixFramingFilterTest {
+
+    private Connection connection;
+    private List<String> receivedFrames;
+    private List<String> receivedErrors;
+    private ConnectionListenerAdapter higherLevel;
+    private LowerLevel lowerLevel;
+    private List<ByteBuffer> sentBuffers;
+    private boolean disconnectSent;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = new MockConnection();
+        receivedFrames = new ArrayList<String>();
+        receivedErrors = new ArrayList<String>();
+        sentBuffers = new ArrayList<ByteBuffer>();
+        disconnectSent = false;
+
+        higherLevel = new ConnectionListenerAdapter() {
+            @Override public void onMessage(Connection connection, Object message) {
+                final ByteBuffer frame = (ByteBuffer) message;
+                final byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                receivedFrames.add(new String(bytes));
+            }
+
+            @Override public void onError(Connection connection, String errorType, String errorDescription) {
+                receivedErrors.add(errorType);
+            }
+        };
+
+        lowerLevel = new LowerLevel() {
+            @Override public void sendMessage(Connection connection, Object message) {
+                for (ByteBuffer buffer : (ByteBuffer[]) message) {
+                    sentBuffers.add(buffer);
+                }
+            }
+
+            @Override public void sendDisconnect(Connection connection) {
+                disconnectSent = true;
+            }
+        };
+    }
+
+    @Test
+    public void testFramesInOneRead() throws Exception {
+        for (LengthPrefixFramingFilter.PrefixType prefixType : LengthPrefixFramingFilter.PrefixType.values()) {
+            final LengthPrefixFramingFilter filter = new LengthPrefixFramingFilter(prefixType);
+            receivedFrames.clear();
+
+            filter.receiveMessage(connection, encode(filter, "foo", "", "barbaz"), higherLevel, lowerLevel);
+
+            assertEquals(3, receivedFrames.size());
+            assertEquals("foo", receivedFrames.get(0));
+            assertEquals("", receivedFrames.get(1));
+            assertEquals("barbaz", receivedFrames.get(2));
+        }
+    }
+
+    @Test
+    public void testFramesInOneReadArePassedOnAsBatch() throws Exception {
+        final LengthPrefixFramingFilter filter = new LengthPrefixFramingFilter();
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        filter.receiveMessage(connection, encode(filter, "foo", "bar", "baz"), new BatchListener(batchSizes), lowerLevel);
+
+        assertEquals(1, batchSizes.size());
+        assertEquals(3, (int) batchSizes.get(0));
+    }
+
+    @Test
+    public void testFramesSplitAcrossReads() throws Exception {
+        for (LengthPrefixFramingFilter.PrefixType prefixType : LengthPrefixFramingFilter.PrefixType.values()) {
+            final LengthPrefixFramingFilter filter = new LengthPrefixFramingFilter(prefixType);
+            receivedFrames.clear();
+
+            final StringBuilder longMessage = new StringBuilder();
+            for (int i = 0; i < 300; i++) {
+                longMessage.append((char) ('a' + i % 26));
+            }
+
+            // Deliver the data one byte at a time
+            final ByteBuffer data = encode(filter, "hello", longMessage.toString(), "world");
+            while (data.hasRemaining()) {
+                final ByteBuffer read = ByteBuffer.allocate(1);
+                read.put(data.get());
+                read.flip();
+                filter.receiveMessage(connection, read, higherLevel, lowerLevel);
+            }
+
+            assertEquals(3, receivedFrames.size());
+            assertEquals("hello", receivedFrames.get(0));
+            assertEquals(longMessage.toString(), receivedFrames.get(1));
+            assertEquals("world", receivedFrames.get(2));
+        }
+    }
+
+    @Test
+    public void testTooLongFrameDisconnects() throws Exception {
+        final LengthPrefixFramingFilter filter = new LengthPrefixFramingFilter(LengthPrefixFramingFilter.PrefixType.VARINT, 4, new BufferPool());
+
+        filter.receiveMessage(connection, encode(filter, "too long"), higherLevel, lowerLevel);
+
+        assertTrue(receivedFrames.isEmpty());
+        assertEquals(LengthPrefixFramingFilter.FRAME_TOO_LONG_ERROR, receivedErrors.get(0));
+        assertTrue(disconnectSent);
+    }
+
+    /**
+     * @return the messages framed by the send side of the filter, in one buffer.
+     */
+    private ByteBuffer encode(LengthPrefixFramingFilter filter, String... messages) {
+        sentBuffers.clear();
+        for (String message : messages) {
+            filter.sendMessage(connection, message.getBytes(), lowerLevel, higherLevel);
+        }
+
+        int length = 0;
+        for (ByteBuffer buffer : sentBuffers) {
+            length += buffer.remaining();
+        }
+
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : sentBuffers) {
+            data.put(buffer);
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Records the sizes of received batches.
+     */
+    private static final class BatchListener extends ConnectionListenerAdapter implements BatchConnectionListener {
+        private final List<Integer> batchSizes;
+
+        private BatchListener(List<Integer> batchSizes) {
+            this.batchSizes = batchSizes;
+        }
+
+        @Override public void onMessages(Connection connection, MessageBatch messages) {
+            batchSizes.add(messages.size());
+        }
+    }
+}
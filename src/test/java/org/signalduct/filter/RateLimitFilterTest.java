@@ -0,0 +1,120 @@
+package org.signalduct.filter;
+
+import org.junit.Test;
+import org.signalduct.Connection;
+import org.signalduct.MessageBatch;
+import org.signalduct.MockConnection;
+import org.signalduct.impl.ConnectionListenerAdapter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RateLimitFilterTest {
+
+    private final List<Object> receivedMessages = new ArrayList<Object>();
+    private final List<String> errors = new ArrayList<String>();
+
+    private final ConnectionListenerAdapter higherLevel = new ConnectionListenerAdapter() {
+        @Override public void onMessage(Connection connection, Object message) {
+            receivedMessages.add(message);
+        }
+
+        @Override public void onError(Connection connection, String errorType, String errorDescription) {
+            errors.add(errorType);
+        }
+    };
+
+    @Test
+    public void testExcessMessagesAreDropped() throws Exception {
+        // Refills so slowly that no messages are let through during the test after the first second worth of them
+        final RateLimitFilter filter = new RateLimitFilter(10, 0, RateLimitFilter.ExcessPolicy.DROP);
+        final Connection connection = new MockConnection();
+
+        final MessageBatch batch = new MessageBatch();
+        for (int i = 0; i < 25; i++) {
+            batch.add(i);
+        }
+        filter.receiveMessages(connection, batch, higherLevel, null);
+
+        assertEquals(10, receivedMessages.size());
+        assertEquals(9, receivedMessages.get(9));
+
+        // The error is reported once, when the connection starts exceeding the limit
+        assertEquals(1, errors.size());
+        assertEquals(RateLimitFilter.RATE_LIMIT_ERROR, errors.get(0));
+
+        // Other connections have their own buckets
+        filter.receiveMessage(new MockConnection(), "other", higherLevel, null);
+        assertEquals("other", receivedMessages.get(10));
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        final RateLimitFilter filter = new RateLimitFilter(0, 100, RateLimitFilter.ExcessPolicy.DROP);
+        final Connection connection = new MockConnection();
+
+        // A message larger than the bucket gets through when the bucket is full, but empties it
+        filter.receiveMessage(connection, ByteBuffer.allocate(150), higherLevel, null);
+        filter.receiveMessage(connection, ByteBuffer.allocate(1), higherLevel, null);
+        assertEquals(1, receivedMessages.size());
+    }
+
+    @Test
+    public void testDisconnectOnExcessMessages() throws Exception {
+        final RateLimitFilter filter = new RateLimitFilter(2, 0, RateLimitFilter.ExcessPolicy.DISCONNECT);
+        final Connection connection = new MockConnection();
+        final List<Connection> disconnected = new ArrayList<Connection>();
+        final LowerLevel lowerLevel = new LowerLevel() {
+            @Override public void sendMessage(Connection connection, Object message) {
+                fail("No messages should be sent");
+            }
+
+            @Override public void sendDisconnect(Connection connection) {
+                disconnected.add(connection);
+            }
+        };
+
+        final MessageBatch batch = new MessageBatch();
+        for (int i = 0; i < 4; i++) {
+            batch.add(i);
+        }
+        filter.receiveMessages(connection, batch, higherLevel, lowerLevel);
+
+        // The messages admitted before the excess one are discarded with the rest of the batch
+        assertTrue("No messages should be passed on", receivedMessages.isEmpty());
+        assertTrue(batch.isEmpty());
+        assertEquals(1, disconnected.size());
+        assertSame(connection, disconnected.get(0));
+        assertEquals(1, errors.size());
+        assertEquals(RateLimitFilter.RATE_LIMIT_ERROR, errors.get(0));
+
+        // Messages received after the disconnect are discarded, without disconnecting again
+        filter.receiveMessage(connection, "late", higherLevel, lowerLevel);
+        assertTrue(receivedMessages.isEmpty());
+        assertEquals(1, disconnected.size());
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void testExcessMessagesAreDelayed() throws Exception {
+        final RateLimitFilter filter = new RateLimitFilter(5, 0, RateLimitFilter.ExcessPolicy.DELAY);
+        final MockConnection connection = new MockConnection();
+
+        for (int i = 0; i < 6; i++) {
+            filter.receiveMessage(connection, i, higherLevel, null);
+        }
+
+        // Messages are passed on, but reading is paused until the bucket has been refilled
+        assertEquals(6, receivedMessages.size());
+        assertTrue("Reading should be paused", connection.isReadingPaused());
+
+        final long waitStart = System.currentTimeMillis();
+        while (connection.isReadingPaused() && System.currentTimeMillis() - waitStart < 5000) {
+            Thread.sleep(10);
+        }
+        assertFalse("Reading should be resumed", connection.isReadingPaused());
+    }
+}
@@ -0,0 +1,106 @@
+package org.signalduct.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signalduct.Connection;
+import org.signalduct.MockConnection;
+import org.signalduct.impl.ConnectionListenerAdapter;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SerializationFilterTest {
+
+    /**
+     * Message type used in the tests.
+     */
+    private static final class Position {
+        private final int x;
+        private final int y;
+
+        private Position(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final MessageCodec<Position> POSITION_CODEC = new MessageCodec<Position>() {
+        @Override public int getMaxEncodedSize(Position message) {
+            return 8;
+        }
+
+        @Override public void encode(Position message, ByteBuffer target) {
+            target.putInt(message.x);
+            target.putInt(message.y);
+        }
+
+        @Override public Position decode(ByteBuffer source) {
+            return new Position(source.getInt(), source.getInt());
+        }
+    };
+
+    private Connection connection;
+    private SerializationFilter filter;
+    private Object receivedMessage;
+    private String receivedError;
+    private ByteBuffer sentBuffer;
+    private ConnectionListenerAdapter higherLevel;
+    private LowerLevel lowerLevel;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = new MockConnection();
+        filter = new SerializationFilter();
+        filter.register(300, Position.class, POSITION_CODEC);
+
+        higherLevel = new ConnectionListenerAdapter() {
+            @Override public void onMessage(Connection connection, Object message) {
+                receivedMessage = message;
+            }
+
+            @Override public void onError(Connection connection, String errorType, String errorDescription) {
+                receivedError = errorType;
+            }
+        };
+
+        lowerLevel = new LowerLevel() {
+            @Override public void sendMessage(Connection connection, Object message) {
+                sentBuffer = (ByteBuffer) message;
+            }
+
+            @Override public void sendDisconnect(Connection connection) {
+            }
+        };
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        filter.sendMessage(connection, new Position(3, -7), lowerLevel, higherLevel);
+
+        // Two bytes for the id, eight for the payload
+        assertEquals(10, sentBuffer.remaining());
+
+        filter.receiveMessage(connection, sentBuffer, higherLevel, lowerLevel);
+
+        final Position position = (Position) receivedMessage;
+        assertEquals(3, position.x);
+        assertEquals(-7, position.y);
+    }
+
+    @Test
+    public void testUnknownAndMalformedMessages() throws Exception {
+        filter.receiveMessage(connection, ByteBuffer.wrap(new byte[]{5, 1, 2}), higherLevel, lowerLevel);
+        assertEquals(SerializationFilter.UNKNOWN_MESSAGE_TYPE_ERROR, receivedError);
+
+        filter.receiveMessage(connection, ByteBuffer.wrap(new byte[]{(byte) 0xAC, 0x02, 1, 2}), higherLevel, lowerLevel);
+        assertEquals(SerializationFilter.MALFORMED_MESSAGE_ERROR, receivedError);
+
+        assertNull(receivedMessage);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSendingUnregisteredClassFails() throws Exception {
+        filter.sendMessage(connection, "not registered", lowerLevel, higherLevel);
+    }
+}
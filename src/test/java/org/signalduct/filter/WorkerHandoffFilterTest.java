@@ -0,0 +1,128 @@
+package org.signalduct.filter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signalduct.Connection;
+import org.signalduct.MessageBatch;
+import org.signalduct.MockConnection;
+import org.signalduct.impl.ConnectionListenerAdapter;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WorkerHandoffFilterTest {
+
+    private static final int MESSAGE_COUNT = 1000;
+
+    private ExecutorService workerPool;
+    private WorkerHandoffFilter filter;
+    private Map<Connection, List<Integer>> receivedMessages;
+    private CountDownLatch disconnects;
+    private ConnectionListenerAdapter higherLevel;
+
+    @Before
+    public void setUp() throws Exception {
+        workerPool = Executors.newFixedThreadPool(4);
+        filter = new WorkerHandoffFilter(workerPool);
+        receivedMessages = new ConcurrentHashMap<Connection, List<Integer>>();
+        disconnects = new CountDownLatch(2);
+
+        higherLevel = new ConnectionListenerAdapter() {
+            @Override public void onConnected(Connection connection) {
+                receivedMessages.put(connection, Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+
+            @Override public void onMessage(Connection connection, Object message) {
+                receivedMessages.get(connection).add(((ByteBuffer) message).getInt());
+            }
+
+            @Override public void onDisconnected(Connection connection) {
+                receivedMessages.get(connection).add(-1);
+                disconnects.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        workerPool.shutdownNow();
+    }
+
+    @Test
+    public void testMessagesOfEachConnectionStayInOrder() throws Exception {
+        final Connection first = new MockConnection();
+        final Connection second = new MockConnection();
+        filter.receiveConnect(first, higherLevel, null);
+        filter.receiveConnect(second, higherLevel, null);
+
+        // The same buffer is reused for every message, so the filter has to copy it
+        final ByteBuffer readBuffer = ByteBuffer.allocate(4);
+        final MessageBatch batch = new MessageBatch();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            readBuffer.clear();
+            readBuffer.putInt(i).flip();
+            filter.receiveMessage(first, readBuffer, higherLevel, null);
+
+            readBuffer.clear();
+            readBuffer.putInt(i).flip();
+            batch.clear();
+            batch.add(readBuffer);
+            filter.receiveMessages(second, batch, higherLevel, null);
+        }
+        filter.receiveDisconnect(first, higherLevel);
+        filter.receiveDisconnect(second, higherLevel);
+
+        assertTrue("Disconnects should be delivered", disconnects.await(5, TimeUnit.SECONDS));
+
+        for (Connection connection : new Connection[]{first, second}) {
+            final List<Integer> messages = receivedMessages.get(connection);
+            assertEquals(MESSAGE_COUNT + 1, messages.size());
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                assertEquals(i, (int) messages.get(i));
+            }
+            assertEquals("Disconnect should come after the messages", -1, (int) messages.get(MESSAGE_COUNT));
+            assertFalse(connection.isReadingPaused());
+            assertEquals(0, filter.getPendingMessageCount(connection));
+        }
+    }
+
+    @Test
+    public void testReadingIsPausedWhileWorkersAreBehind() throws Exception {
+        final WorkerHandoffFilter filter = new WorkerHandoffFilter(workerPool, 64, new BufferPool());
+        final CountDownLatch workerBlocked = new CountDownLatch(1);
+        final Connection connection = new MockConnection();
+
+        filter.receiveConnect(connection, new ConnectionListenerAdapter() {
+            @Override public void onConnected(Connection connection) {
+                try {
+                    workerBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, null);
+
+        for (int i = 0; i < 64; i++) {
+            filter.receiveMessage(connection, "message " + i, new ConnectionListenerAdapter() {}, null);
+        }
+        assertTrue(connection.isReadingPaused());
+        assertEquals(64, filter.getPendingMessageCount(connection));
+
+        workerBlocked.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (connection.isReadingPaused() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertFalse("Reading should be resumed when the workers catch up", connection.isReadingPaused());
+    }
+}
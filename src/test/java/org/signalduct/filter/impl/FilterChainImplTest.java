@@ -0,0 +1,255 @@
+package org.signalduct.filter.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signalduct.BatchConnectionListener;
+import org.signalduct.Connection;
+import org.signalduct.ConnectionListener;
+import org.signalduct.MessageBatch;
+import org.signalduct.MockConnection;
+import org.signalduct.filter.LowerLevel;
+import org.signalduct.filter.MessageFilter;
+import org.signalduct.filter.TransformingFilterBase;
+import org.signalduct.impl.ConnectionListenerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterChainImplTest {
+
+    /**
+     * Filter that appends its name to received and sent string messages.
+     */
+    private static final class AppendingFilter implements MessageFilter {
+        private final String name;
+
+        private AppendingFilter(String name) {
+            this.name = name;
+        }
+
+        @Override public void receiveMessage(Connection connection, Object message, ConnectionListener nextFilter, LowerLevel previousFilter) {
+            nextFilter.onMessage(connection, message + name);
+        }
+
+        @Override public void sendMessage(Connection connection, Object message, LowerLevel nextFilter, ConnectionListener previousFilter) {
+            nextFilter.sendMessage(connection, message + name);
+        }
+
+        @Override public void receiveConnect(Connection connection, ConnectionListener nextFilter, LowerLevel previousFilter) {
+            nextFilter.onConnected(connection);
+        }
+
+        @Override public void receiveDisconnect(Connection connection, ConnectionListener nextFilter) {
+            nextFilter.onDisconnected(connection);
+        }
+
+        @Override public void sendDisconnect(Connection connection, LowerLevel nextFilter) {
+            nextFilter.sendDisconnect(connection);
+        }
+    }
+
+    /**
+     * Transforming filter that appends its name to received and sent string messages, and drops messages saying "drop".
+     */
+    private static final class TransformingAppendingFilter extends TransformingFilterBase {
+        private final String name;
+
+        private TransformingAppendingFilter(String name) {
+            this.name = name;
+        }
+
+        @Override public Object transformReceivedMessage(Connection connection, Object message) {
+            return "drop".equals(message) ? null : message + name;
+        }
+
+        @Override public Object transformSentMessage(Connection connection, Object message) {
+            return "drop".equals(message) ? null : message + name;
+        }
+    }
+
+    private FilterChainImpl filterChain;
+    private Connection connection;
+    private Object receivedMessage;
+    private Object sentMessage;
+
+    @Before
+    public void setUp() throws Exception {
+        filterChain = new FilterChainImpl();
+        connection = new MockConnection();
+
+        filterChain.initialize(new LowerLevel() {
+                                   @Override public void sendMessage(Connection connection, Object message) {
+                                       sentMessage = message;
+                                   }
+
+                                   @Override public void sendDisconnect(Connection connection) {
+                                   }
+                               },
+                               new ConnectionListenerAdapter() {
+                                   @Override public void onMessage(Connection connection, Object message) {
+                                       receivedMessage = message;
+                                   }
+                               });
+    }
+
+    @Test
+    public void testEmptyChain() throws Exception {
+        filterChain.filterReceivedMessage(connection, "in");
+        filterChain.filterSentMessage(connection, "out");
+
+        assertEquals("in", receivedMessage);
+        assertEquals("out", sentMessage);
+    }
+
+    @Test
+    public void testFilterOrder() throws Exception {
+        final AppendingFilter b = new AppendingFilter("b");
+        filterChain.addFilterFirst(b);
+        filterChain.addFilterFirst(new AppendingFilter("a"));
+        filterChain.addFilterLast(new AppendingFilter("d"));
+        filterChain.addFilterAt(new AppendingFilter("c"), -2);
+
+        assertEquals(4, filterChain.getFilters().size());
+        assertSame(b, filterChain.getFilters().get(1));
+
+        // Received messages pass the filters from the lowest level up, sent ones from the highest level down
+        filterChain.filterReceivedMessage(connection, "");
+        filterChain.filterSentMessage(connection, "");
+        assertEquals("abcd", receivedMessage);
+        assertEquals("dcba", sentMessage);
+
+        // Remaining filters are linked to each other after a removal
+        filterChain.removeFilter(b);
+        filterChain.filterReceivedMessage(connection, "");
+        filterChain.filterSentMessage(connection, "");
+        assertEquals("acd", receivedMessage);
+        assertEquals("dca", sentMessage);
+    }
+
+    @Test
+    public void testCompiledChain() throws Exception {
+        filterChain.addFilterLast(new TransformingAppendingFilter("a"));
+        filterChain.addFilterLast(new TransformingAppendingFilter("b"));
+        filterChain.addFilterLast(new AppendingFilter("c"));
+        filterChain.addFilterLast(new TransformingAppendingFilter("d"));
+        filterChain.addFilterLast(new TransformingAppendingFilter("e"));
+        filterChain.addFilterLast(new TransformingAppendingFilter("f"));
+
+        for (boolean compiled : new boolean[]{false, true}) {
+            filterChain.setCompiled(compiled);
+
+            filterChain.filterReceivedMessage(connection, "");
+            filterChain.filterSentMessage(connection, "");
+            assertEquals("abcdef", receivedMessage);
+            assertEquals("fedcba", sentMessage);
+
+            // Messages dropped by a transforming filter do not reach the end of the chain
+            receivedMessage = null;
+            sentMessage = null;
+            filterChain.filterReceivedMessage(connection, "drop");
+            filterChain.filterSentMessage(connection, "drop");
+            assertNull(receivedMessage);
+            assertNull(sentMessage);
+        }
+    }
+
+    @Test
+    public void testFiltersAddedBeforeInitialization() throws Exception {
+        final FilterChainImpl uninitializedChain = new FilterChainImpl();
+        uninitializedChain.addFilterLast(new AppendingFilter("x"));
+
+        uninitializedChain.initialize(new LowerLevel() {
+                                          @Override public void sendMessage(Connection connection, Object message) {
+                                              sentMessage = message;
+                                          }
+
+                                          @Override public void sendDisconnect(Connection connection) {
+                                          }
+                                      },
+                                      new ConnectionListenerAdapter() {
+                                      });
+
+        uninitializedChain.filterSentMessage(connection, "");
+        assertEquals("x", sentMessage);
+    }
+
+    @Test
+    public void testReceivedBatch() throws Exception {
+        final List<Object> receivedMessages = new ArrayList<Object>();
+        final int[] batchCount = {0};
+
+        final FilterChainImpl batchChain = new FilterChainImpl();
+        batchChain.initialize(new LowerLevel() {
+                                  @Override public void sendMessage(Connection connection, Object message) {
+                                  }
+
+                                  @Override public void sendDisconnect(Connection connection) {
+                                  }
+                              },
+                              new BatchListener(receivedMessages, batchCount));
+        batchChain.addFilterLast(new TransformingAppendingFilter("a"));
+        batchChain.addFilterLast(new TransformingAppendingFilter("b"));
+
+        // Filters that handle batches pass them on as one batch, with dropped messages removed
+        for (boolean compiled : new boolean[]{false, true}) {
+            batchChain.setCompiled(compiled);
+            receivedMessages.clear();
+            batchCount[0] = 0;
+
+            batchChain.filterReceivedMessages(connection, createBatch("x", "drop", "y"));
+            assertEquals(1, batchCount[0]);
+            assertEquals(2, receivedMessages.size());
+            assertEquals("xab", receivedMessages.get(0));
+            assertEquals("yab", receivedMessages.get(1));
+        }
+
+        // Filters that do not handle batches are passed the messages one at a time
+        batchChain.addFilterAt(new AppendingFilter("c"), 1);
+        receivedMessages.clear();
+        batchCount[0] = 0;
+        batchChain.filterReceivedMessages(connection, createBatch("x", "y"));
+        assertEquals(0, batchCount[0]);
+        assertEquals(2, receivedMessages.size());
+        assertEquals("xacb", receivedMessages.get(0));
+        assertEquals("yacb", receivedMessages.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddingOutOfBoundsFails() throws Exception {
+        filterChain.addFilterAt(new AppendingFilter("a"), 1);
+    }
+
+    private static MessageBatch createBatch(Object... messages) {
+        final MessageBatch batch = new MessageBatch();
+        for (Object message : messages) {
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    /**
+     * Records received messages, and counts the batches they were received in.
+     */
+    private static final class BatchListener extends ConnectionListenerAdapter implements BatchConnectionListener {
+        private final List<Object> receivedMessages;
+        private final int[] batchCount;
+
+        private BatchListener(List<Object> receivedMessages, int[] batchCount) {
+            this.receivedMessages = receivedMessages;
+            this.batchCount = batchCount;
+        }
+
+        @Override public void onMessage(Connection connection, Object message) {
+            receivedMessages.add(message);
+        }
+
+        @Override public void onMessages(Connection connection, MessageBatch messages) {
+            batchCount[0]++;
+            for (int i = 0; i < messages.size(); i++) {
+                receivedMessages.add(messages.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.signalduct.impl;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class ConnectionAdmissionTest {
+
+    @Test
+    public void testLimits() throws Exception {
+        final InetAddress first = InetAddress.getByName("10.0.0.1");
+        final InetAddress second = InetAddress.getByName("10.0.0.2");
+
+        final ConnectionAdmission admission = new ConnectionAdmission();
+        admission.setMaxConnections(3);
+        admission.setMaxConnectionsPerAddress(2);
+
+        assertTrue(admission.admit(first));
+        assertTrue(admission.admit(first));
+        assertFalse("The per address limit should be enforced", admission.admit(first));
+        assertTrue(admission.admit(second));
+        assertFalse("The total limit should be enforced", admission.admit(second));
+        assertEquals(3, admission.getConnectionCount());
+        assertEquals(1, admission.getConnectionCount(second));
+
+        admission.release(first);
+        assertTrue(admission.admit(second));
+        assertEquals(2, admission.getConnectionCount(second));
+
+        // Counters of addresses without connections are removed and created again when needed
+        admission.release(first);
+        assertEquals(0, admission.getConnectionCount(first));
+        assertTrue(admission.admit(first));
+        assertEquals(1, admission.getConnectionCount(first));
+    }
+
+    @Test
+    public void testNoLimitsByDefault() throws Exception {
+        final ConnectionAdmission admission = new ConnectionAdmission();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(admission.admit(InetAddress.getByName("10.0.0.1")));
+        }
+        assertEquals(1000, admission.getConnectionCount());
+    }
+}
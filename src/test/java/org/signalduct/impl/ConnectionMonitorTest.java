@@ -0,0 +1,40 @@
+package org.signalduct.impl;
+
+import org.junit.Test;
+import org.signalduct.filter.impl.FilterChainImpl;
+import org.signalduct.utils.BufferPool;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class ConnectionMonitorTest {
+
+    @Test
+    public void testAssignedConnectionsAreCountedUntilClosed() throws Exception {
+        final ConnectionMonitor monitor = new ConnectionMonitor();
+
+        // The monitor is not started, so the channels stay waiting for registration
+        final ConnectionToClient first = createConnection();
+        final ConnectionToClient second = createConnection();
+        monitor.listenToConnection(first, SelectionKey.OP_READ);
+        monitor.listenToConnection(second, SelectionKey.OP_READ);
+        assertEquals(2, monitor.getAssignedConnectionCount());
+        assertEquals("The channels should not be registered yet", 0, monitor.getChannelCount());
+
+        first.closeChannel();
+        first.closeChannel();
+        assertEquals("A connection should be uncounted only once", 1, monitor.getAssignedConnectionCount());
+
+        monitor.stop();
+        assertFalse("Channels waiting for registration should be closed when the monitor stops", second.getSocketChannel().isOpen());
+        assertEquals("Connections closed by stopping should be uncounted", 0, monitor.getAssignedConnectionCount());
+    }
+
+    private ConnectionToClient createConnection() throws Exception {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        return new ConnectionToClient(channel, new FilterChainImpl(), new BufferPool());
+    }
+}
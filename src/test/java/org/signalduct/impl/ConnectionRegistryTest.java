@@ -0,0 +1,53 @@
+package org.signalduct.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+
+    @Test
+    public void testConnectionsAreFoundById() throws Exception {
+        final ConnectionRegistry<String> registry = new ConnectionRegistry<String>(2);
+
+        final List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(registry.add("connection " + i));
+        }
+
+        assertEquals(10, registry.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("connection " + i, registry.get(ids.get(i)));
+        }
+
+        final List<String> iterated = new ArrayList<String>();
+        for (String connection : registry) {
+            iterated.add(connection);
+        }
+        assertEquals(10, iterated.size());
+    }
+
+    @Test
+    public void testRemovedSlotsAreReusedWithNewIds() throws Exception {
+        final ConnectionRegistry<String> registry = new ConnectionRegistry<String>();
+
+        final long firstId = registry.add("first");
+        assertTrue(registry.remove(firstId));
+        assertFalse("Removing twice should do nothing", registry.remove(firstId));
+        assertEquals(0, registry.size());
+        assertNull(registry.get(firstId));
+
+        final long secondId = registry.add("second");
+        assertEquals("The slot should be reused", (int) firstId, (int) secondId);
+        assertTrue("The id should differ", firstId != secondId);
+        assertTrue("An old id should not find the new connection", registry.get(firstId) == null);
+        assertFalse(registry.remove(firstId));
+        assertEquals("second", registry.get(secondId));
+
+        assertNull(registry.get(-1));
+        assertNull(registry.get(12345));
+    }
+}
@@ -0,0 +1,72 @@
+package org.signalduct.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signalduct.utils.SharedBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private OutboundQueue queue;
+    private List<ByteBuffer> releasedBuffers;
+    private OutboundQueue.BufferReleaser releaser;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new OutboundQueue();
+        releasedBuffers = new ArrayList<ByteBuffer>();
+        releaser = new OutboundQueue.BufferReleaser() {
+            @Override public void release(ByteBuffer buffer, SharedBuffer owner) {
+                releasedBuffers.add(buffer);
+            }
+        };
+    }
+
+    @Test
+    public void testBuffersArePolledInOrder() throws Exception {
+        final ByteBuffer a = ByteBuffer.allocate(1);
+        final ByteBuffer b = ByteBuffer.allocate(2);
+        final ByteBuffer c = ByteBuffer.allocate(3);
+        queue.add(a);
+        queue.add(new ByteBuffer[]{b, c});
+
+        assertEquals(6, queue.getQueuedBytes());
+        assertSame(a, queue.poll());
+        assertSame(b, queue.poll());
+        assertSame(c, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDropOldestMessagesKeepsPartlyPolledMessage() throws Exception {
+        final ByteBuffer prefix = ByteBuffer.allocate(1);
+        final ByteBuffer payload = ByteBuffer.allocate(10);
+        final ByteBuffer oldest = ByteBuffer.allocate(10);
+        final ByteBuffer older = ByteBuffer.allocate(10);
+        final ByteBuffer newest = ByteBuffer.allocate(10);
+        queue.add(new ByteBuffer[]{prefix, payload});
+        queue.add(oldest);
+        queue.add(older);
+        queue.add(newest);
+
+        // The first message has been partly taken for writing
+        assertSame(prefix, queue.poll());
+
+        assertEquals(2, queue.dropOldestMessages(30, releaser));
+        assertEquals(2, releasedBuffers.size());
+        assertSame(oldest, releasedBuffers.get(0));
+        assertSame(older, releasedBuffers.get(1));
+        assertEquals(21, queue.getQueuedBytes());
+
+        // The rest of the partly taken message is kept, as well as the newest message
+        assertSame(payload, queue.poll());
+        assertSame(newest, queue.poll());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,67 @@
+package org.signalduct.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testTimeoutsExpireInTime() throws Exception {
+        final TimerWheel wheel = new TimerWheel(10, 8, 0);
+        final List<String> expired = new ArrayList<String>();
+
+        wheel.schedule(TimerWheel.createTimeout(recorder(expired, "short")), 25, 0);
+        wheel.schedule(TimerWheel.createTimeout(recorder(expired, "long")), 500, 0);
+        final TimerWheel.Timeout cancelled = TimerWheel.createTimeout(recorder(expired, "cancelled"));
+        wheel.schedule(cancelled, 25, 0);
+        wheel.cancel(cancelled);
+        assertEquals(2, wheel.getTimeoutCount());
+
+        wheel.advance(20);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(30);
+        assertEquals("[short]", expired.toString());
+
+        // The long timeout passes the wheel several times before expiring
+        wheel.advance(490);
+        assertEquals("[short]", expired.toString());
+        wheel.advance(500);
+        assertEquals("[short, long]", expired.toString());
+        assertEquals(0, wheel.getTimeoutCount());
+        assertEquals(0, wheel.getMillisecondsUntilNextTick(500));
+    }
+
+    @Test
+    public void testTasksCanRescheduleTheirTimeout() throws Exception {
+        final TimerWheel wheel = new TimerWheel(10, 8, 0);
+        final int[] runCount = new int[1];
+        final TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+
+        timeout[0] = TimerWheel.createTimeout(new Runnable() {
+            @Override public void run() {
+                runCount[0]++;
+                wheel.schedule(timeout[0], 10, runCount[0] * 10);
+            }
+        });
+        wheel.schedule(timeout[0], 10, 0);
+
+        for (int time = 0; time <= 100; time += 10) {
+            wheel.advance(time);
+        }
+        assertEquals(10, runCount[0]);
+        assertEquals(1, wheel.getTimeoutCount());
+    }
+
+    private static Runnable recorder(final List<String> expired, final String name) {
+        return new Runnable() {
+            @Override public void run() {
+                expired.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,44 @@
+package org.signalduct.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        final HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+
+        // Values are kept with a relative precision of one sub bucket
+        assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 / LatencyHistogram.SUB_BUCKET_COUNT);
+        assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 / LatencyHistogram.SUB_BUCKET_COUNT);
+        assertEquals(1000000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testBucketsCoverAllValues() throws Exception {
+        final long[] values = {0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("The bucket of " + value + " should contain it", LatencyHistogram.highestValueInBucket(index) >= value);
+            if (index > 0) {
+                assertTrue("The previous bucket of " + value + " should not contain it", LatencyHistogram.highestValueInBucket(index - 1) < value);
+            }
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.snapshot().getValueAtPercentile(100));
+    }
+}
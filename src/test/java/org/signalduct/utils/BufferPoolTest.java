@@ -0,0 +1,37 @@
+package org.signalduct.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBuffersAreReused() throws Exception {
+        final BufferPool pool = new BufferPool();
+
+        final ByteBuffer buffer = pool.acquire(1000);
+        assertEquals(1024, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledBufferCount());
+        assertSame(buffer, pool.acquire(1000));
+    }
+
+    @Test
+    public void testBuffersFromElsewhereAreNotPooled() throws Exception {
+        final BufferPool pool = new BufferPool();
+
+        // A direct buffer with the capacity of a size class, that the application may still be using
+        pool.release(ByteBuffer.allocateDirect(1024));
+
+        // A slice of a pooled buffer, for example a received frame that is sent back
+        final ByteBuffer pooledBuffer = pool.acquire(4096);
+        pooledBuffer.position(1024);
+        pooledBuffer.limit(2048);
+        pool.release(pooledBuffer.slice());
+
+        assertEquals(0, pool.getPooledBufferCount());
+    }
+}
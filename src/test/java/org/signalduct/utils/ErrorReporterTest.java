@@ -0,0 +1,45 @@
+package org.signalduct.utils;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class ErrorReporterTest {
+
+    @Test
+    public void testErrorsAreSuppressedAfterBurst() throws Exception {
+        // Refills so slowly that no errors are let through during the test after the burst
+        final ErrorReporter errorReporter = new ErrorReporter(LoggerFactory.getLogger(getClass()), 0.001, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Errors within the burst should be logged", errorReporter.report("test_error", "Error " + i, null));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertFalse("Errors after the burst should be suppressed", errorReporter.report("test_error", "Error", null));
+        }
+        assertEquals(5, errorReporter.getSuppressedCount("test_error"));
+
+        // Other types of errors have their own limit
+        assertTrue(errorReporter.report("other_error", "Other error", new IllegalStateException("Test exception")));
+        assertEquals(0, errorReporter.getSuppressedCount("other_error"));
+
+        errorReporter.logSuppressedSummaries();
+        assertEquals(0, errorReporter.getSuppressedCount("test_error"));
+        assertFalse(errorReporter.report("test_error", "Error", null));
+        assertEquals(1, errorReporter.getSuppressedCount("test_error"));
+    }
+
+    @Test
+    public void testErrorsAreLoggedAgainAfterRefill() throws Exception {
+        final ErrorReporter errorReporter = new ErrorReporter(LoggerFactory.getLogger(getClass()), 100, 1);
+
+        assertTrue(errorReporter.report("test_error", "Error", null));
+        assertFalse(errorReporter.report("test_error", "Error", null));
+
+        Thread.sleep(50);
+
+        assertTrue("An error should be let through after the bucket has been refilled", errorReporter.report("test_error", "Error", null));
+        assertEquals(0, errorReporter.getSuppressedCount("test_error"));
+    }
+}
@@ -0,0 +1,87 @@
+package org.signalduct.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SerialExecutorTest {
+
+    private static final int TASK_COUNT = 1000;
+
+    private ExecutorService threadPool;
+
+    @Before
+    public void setUp() throws Exception {
+        threadPool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+    }
+
+    @Test
+    public void testTasksRunInOrderOneAtATime() throws Exception {
+        final SerialExecutor serialExecutor = new SerialExecutor(threadPool, 10);
+        final List<Integer> completedTasks = new ArrayList<Integer>();
+        final AtomicInteger runningTasks = new AtomicInteger();
+        final AtomicInteger maxRunningTasks = new AtomicInteger();
+        final CountDownLatch allTasksCompleted = new CountDownLatch(TASK_COUNT);
+
+        for (int i = 0; i < TASK_COUNT; i++) {
+            final int taskNumber = i;
+            serialExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    maxRunningTasks.set(Math.max(maxRunningTasks.get(), runningTasks.incrementAndGet()));
+                    synchronized (completedTasks) {
+                        completedTasks.add(taskNumber);
+                    }
+                    runningTasks.decrementAndGet();
+                    allTasksCompleted.countDown();
+                }
+            });
+        }
+
+        assertTrue(allTasksCompleted.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, maxRunningTasks.get());
+        synchronized (completedTasks) {
+            assertEquals(TASK_COUNT, completedTasks.size());
+            for (int i = 0; i < TASK_COUNT; i++) {
+                assertEquals(i, (int) completedTasks.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedTasksAreNotRun() throws Exception {
+        final SerialExecutor serialExecutor = new SerialExecutor(threadPool);
+        final AtomicInteger runCount = new AtomicInteger();
+        threadPool.shutdown();
+
+        try {
+            serialExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    runCount.incrementAndGet();
+                }
+            });
+            fail("The task should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        assertEquals(0, serialExecutor.getPendingTaskCount());
+        assertEquals(0, runCount.get());
+    }
+}